@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.rule.GrantPermissionRule;
+import androidx.test.runner.AndroidJUnit4;
+import jp.sacredsanctuary.gridviewtest.util.CreateThumbnails;
+import jp.sacredsanctuary.gridviewtest.util.MediaStoreScanner;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Instrumented benchmark of the thumbnail lookup of a grid cell, comparing the former lookup
+ * by path, which queried MediaStore for the id of every cell, with the lookup by the id from
+ * the list scan. Needs images on the device; skipped otherwise.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailBenchmark {
+    private static final String TAG = ThumbnailBenchmark.class.getSimpleName();
+    /** About the number of cells appearing during a long fling. */
+    private static final int IMAGE_COUNT = 300;
+
+    @Rule
+    public GrantPermissionRule mPermissionRule =
+            GrantPermissionRule.grant(Manifest.permission.READ_EXTERNAL_STORAGE);
+
+    private Context mContext;
+    private long[] mIds;
+    private String[] mPaths;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        Cursor cursor = mContext.getContentResolver().query(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Images.Media._ID, MediaStore.Images.Media.DATA},
+                null, null, MediaStoreScanner.SORT_ORDER);
+        assertNotNull(cursor);
+        try {
+            int count = Math.min(IMAGE_COUNT, cursor.getCount());
+            mIds = new long[count];
+            mPaths = new String[count];
+            for (int i = 0; i < count && cursor.moveToNext(); i++) {
+                mIds[i] = cursor.getLong(0);
+                mPaths[i] = cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+        assumeTrue("no images on the device", mIds.length > 0);
+    }
+
+    @Test
+    public void thumbnailsPerSecond_byIdBeatsByPath() {
+        CreateThumbnails thumbnails = new CreateThumbnails(mContext);
+        // Create every thumbnail once so both runs read cached thumbnails.
+        for (long id : mIds) {
+            thumbnails.releaseThumbnails(thumbnails.getThumbnails(id, 0));
+        }
+
+        long start = System.nanoTime();
+        for (String path : mPaths) {
+            recycle(getThumbnailByPath(mContext.getContentResolver(), path));
+        }
+        double byPath = mPaths.length / ((System.nanoTime() - start) / 1e9);
+
+        start = System.nanoTime();
+        for (long id : mIds) {
+            thumbnails.releaseThumbnails(thumbnails.getThumbnails(id, 0));
+        }
+        double byId = mIds.length / ((System.nanoTime() - start) / 1e9);
+
+        Log.i(TAG, "thumbnails/s for " + mIds.length + " images: by path " + (long) byPath
+                + ", by id " + (long) byId);
+        assertTrue("lookup by id (" + byId + "/s) slower than by path (" + byPath + "/s)",
+                byId >= byPath);
+    }
+
+    /** The former lookup: resolve the id with a query on the path, then get the thumbnail. */
+    private static Bitmap getThumbnailByPath(ContentResolver resolver, String path) {
+        Cursor cursor = resolver.query(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, null,
+                MediaStore.Images.ImageColumns.DATA + " = ?", new String[]{path}, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            long id = cursor.getLong(cursor.getColumnIndex(MediaStore.Images.Media._ID));
+            return MediaStore.Images.Thumbnails.getThumbnail(resolver, id,
+                    MediaStore.Images.Thumbnails.MICRO_KIND, null);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void recycle(Bitmap bitmap) {
+        if (bitmap != null) {
+            bitmap.recycle();
+        }
+    }
+}
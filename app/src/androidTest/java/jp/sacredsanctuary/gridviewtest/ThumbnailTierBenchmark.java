@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+import jp.sacredsanctuary.gridviewtest.util.ThumbnailPack;
+import jp.sacredsanctuary.gridviewtest.util.ThumbnailSlab;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumented benchmark of loading a cached micro thumbnail from the compressed tier, a
+ * JPEG in a {@link ThumbnailPack} which has to be decoded, against the raw tier, pixels in a
+ * {@link ThumbnailSlab} which are only copied. Uses synthetic thumbnails, so it runs without
+ * images on the device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ThumbnailTierBenchmark {
+    private static final String TAG = ThumbnailTierBenchmark.class.getSimpleName();
+    private static final int THUMBNAIL_COUNT = 200;
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 96;
+    private static final int ROUNDS = 5;
+
+    private File mPackDirectory;
+    private File mSlabFile;
+    private ThumbnailPack mPack;
+    private ThumbnailSlab mSlab;
+
+    @Before
+    public void setUp() throws IOException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mPackDirectory = new File(context.getCacheDir(), "benchmark_pack");
+        mSlabFile = new File(context.getCacheDir(), "benchmark_slab");
+        mPack = ThumbnailPack.open(mPackDirectory, 64 * 1024 * 1024, Runnable::run);
+        mSlab = ThumbnailSlab.open(mSlabFile, WIDTH, HEIGHT, 4, 2 * THUMBNAIL_COUNT);
+        Random random = new Random(18);
+        for (long id = 0; id < THUMBNAIL_COUNT; id++) {
+            Bitmap thumbnail = createThumbnail(random);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(thumbnail.compress(Bitmap.CompressFormat.JPEG, 90, out));
+            assertTrue(mPack.put(id, 0, 0, out.toByteArray()));
+            assertTrue(mSlab.put(id, 0, WIDTH, HEIGHT, thumbnail::copyPixelsToBuffer));
+            thumbnail.recycle();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mPack.close();
+        File[] files = mPackDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mPackDirectory.delete();
+        mSlabFile.delete();
+    }
+
+    @Test
+    public void loadLatency_rawTierBeatsCompressedTier() {
+        long[] compressed = new long[ROUNDS * THUMBNAIL_COUNT];
+        long[] raw = new long[ROUNDS * THUMBNAIL_COUNT];
+        long[] rawReused = new long[ROUNDS * THUMBNAIL_COUNT];
+        final Bitmap reused = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        int n = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (long id = 0; id < THUMBNAIL_COUNT; id++, n++) {
+                long start = System.nanoTime();
+                Bitmap bitmap = decode(mPack.get(id, 0, 0));
+                compressed[n] = System.nanoTime() - start;
+                assertNotNull(bitmap);
+                bitmap.recycle();
+
+                start = System.nanoTime();
+                final Bitmap[] copy = new Bitmap[1];
+                assertTrue(mSlab.get(id, 0, (width, height, pixels) -> {
+                    copy[0] = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                    copy[0].copyPixelsFromBuffer(pixels);
+                }));
+                raw[n] = System.nanoTime() - start;
+                copy[0].recycle();
+
+                // As with a bitmap taken from a pool.
+                start = System.nanoTime();
+                assertTrue(mSlab.get(id, 0,
+                        (width, height, pixels) -> reused.copyPixelsFromBuffer(pixels)));
+                rawReused[n] = System.nanoTime() - start;
+            }
+        }
+        reused.recycle();
+
+        long compressedMedian = median(compressed);
+        long rawMedian = median(raw);
+        Log.i(TAG, "median load of a " + WIDTH + "x" + HEIGHT + " thumbnail: compressed "
+                + (compressedMedian / 1000) + "us, raw " + (rawMedian / 1000)
+                + "us, raw into a reused bitmap " + (median(rawReused) / 1000) + "us");
+        assertTrue("raw tier (" + rawMedian + "ns) slower than compressed tier ("
+                + compressedMedian + "ns)", rawMedian < compressedMedian);
+    }
+
+    /** A gradient with noise, which compresses about as well as a photo. */
+    private static Bitmap createThumbnail(Random random) {
+        int[] pixels = new int[WIDTH * HEIGHT];
+        int base = random.nextInt(0x1000000);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int noise = random.nextInt(32);
+                int r = ((base >> 16) + (2 * x) + noise) & 0xff;
+                int g = ((base >> 8) + (2 * y) + noise) & 0xff;
+                int b = (base + x + y) & 0xff;
+                pixels[(y * WIDTH) + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return Bitmap.createBitmap(pixels, WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+    }
+
+    /** Decodes the way CreateThumbnails decodes the compressed tier, without a pool. */
+    private static Bitmap decode(ByteBuffer encoded) {
+        assertNotNull(encoded);
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.duplicate().get(bytes);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local benchmark of extracting the EXIF thumbnail of a camera JPEG against reading the whole
+ * file, which any decode of the image itself has to do at least. Runs on a synthetic corpus
+ * of files laid out like camera JPEGs, with thumbnails in both byte orders and a few files
+ * without one. Timing-dependent, so not part of the unit tests; run with
+ * {@code -Pbenchmark}.
+ */
+public class ExifThumbnailBenchmark {
+    private static final int FILE_COUNT = 40;
+    /** About a 12 megapixel photo. */
+    private static final int IMAGE_BYTES = 3 * 1024 * 1024;
+    private static final int ROUNDS = 5;
+
+    private File mDirectory;
+    private File[] mFiles;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("exif").toFile();
+        mFiles = new File[FILE_COUNT];
+        Random random = new Random(21);
+        for (int i = 0; i < FILE_COUNT; i++) {
+            byte[] thumbnail = (i % 10 == 9) ? null
+                    : ExifThumbnailTest.createThumbnail(160, 120, 4000 + random.nextInt(6000),
+                            random);
+            byte[] jpeg = ExifThumbnailTest.createJpeg(i % 2 == 0, 1 + random.nextInt(8),
+                    thumbnail, IMAGE_BYTES, random);
+            mFiles[i] = new File(mDirectory, "image_" + i + ".jpg");
+            FileOutputStream out = new FileOutputStream(mFiles[i]);
+            try {
+                out.write(jpeg);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mFiles) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void readLatency_exifThumbnailBeatsReadingTheImage() throws IOException {
+        long[] exif = new long[ROUNDS * FILE_COUNT];
+        long[] whole = new long[ROUNDS * FILE_COUNT];
+        byte[] buffer = new byte[64 * 1024];
+        int thumbnails = 0;
+        int n = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (File file : mFiles) {
+                long start = System.nanoTime();
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    ExifThumbnail thumbnail = ExifThumbnail.read(in);
+                    if (thumbnail != null && thumbnail.hasThumbnail()) {
+                        thumbnails++;
+                    }
+                } finally {
+                    in.close();
+                }
+                exif[n] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                in = new FileInputStream(file);
+                try {
+                    while (in.read(buffer) >= 0) {
+                        // Only the reading is measured.
+                    }
+                } finally {
+                    in.close();
+                }
+                whole[n++] = System.nanoTime() - start;
+            }
+        }
+
+        long exifMedian = median(exif);
+        long wholeMedian = median(whole);
+        assertEquals(ROUNDS * (FILE_COUNT - (FILE_COUNT / 10)), thumbnails);
+        assertTrue("EXIF thumbnail (" + exifMedian + "ns) slower than reading the image ("
+                + wholeMedian + "ns)", exifMedian < wholeMedian);
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local benchmark of {@link MediaDelta} on a 100k row snapshot with a burst of new shots and
+ * one deletion, against the full scan the delta replaces. Timing-dependent, so not part of
+ * the unit tests; run with {@code -Pbenchmark}.
+ */
+public class MediaDeltaBenchmark {
+    private static final int ROW_COUNT = 100_000;
+    private static final int NEW_SHOTS = 20;
+    private static final int ROUNDS = 7;
+
+    private MediaItemStore mStore;
+    private long[] mCurrentIds;
+
+    @Before
+    public void setUp() {
+        MediaItemStore.Builder builder = new MediaItemStore.Builder();
+        MediaStoreScanner.scan(FakeImageCursor.create(ROW_COUNT), 256, builder);
+        mStore = builder.build();
+        mCurrentIds = new long[ROW_COUNT - 1 + NEW_SHOTS];
+        int n = 0;
+        for (long id = 1; id <= ROW_COUNT + NEW_SHOTS; id++) {
+            if (id != 500) {
+                mCurrentIds[n++] = id;
+            }
+        }
+    }
+
+    @Test
+    public void latency_deltaBeatsFullScan() {
+        long[] delta = new long[ROUNDS];
+        long[] scan = new long[ROUNDS];
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            MediaDelta.compute(mStore, MediaDeltaTest.newShots(NEW_SHOTS),
+                    MediaDeltaTest.idCursor(mCurrentIds)).applyTo(mStore);
+            delta[round] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            MediaItemStore.Builder builder = new MediaItemStore.Builder();
+            MediaStoreScanner.scan(FakeImageCursor.create(ROW_COUNT + NEW_SHOTS), 256, builder);
+            builder.trimToSize().build();
+            scan[round] = System.nanoTime() - start;
+        }
+
+        long deltaMedian = median(delta);
+        long scanMedian = median(scan);
+        assertTrue("delta (" + deltaMedian + "ns) slower than a full scan (" + scanMedian
+                + "ns)", deltaMedian < scanMedian);
+    }
+
+    private static long median(long[] samples) {
+        long[] sorted = samples.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
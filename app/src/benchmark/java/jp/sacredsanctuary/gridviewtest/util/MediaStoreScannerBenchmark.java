@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local benchmark of {@link MediaStoreScanner}: the row rate and allocations of a scan of a
+ * 100k row fake provider, and the time of a multi-volume scan against fake volumes of skewed
+ * sizes and query latencies. Timing-dependent, so not part of the unit tests; run with
+ * {@code -Pbenchmark}.
+ */
+public class MediaStoreScannerBenchmark {
+    private static final int ROW_COUNT = 100_000;
+    private static final int CHUNK_SIZE = MediaStoreScanner.DEFAULT_CHUNK_SIZE;
+    private static final int WARM_UP_ROUNDS = 3;
+
+    /** Lower bound for the scan rate; a JVM does several million rows per second. */
+    private static final double MIN_ROWS_PER_SECOND = 500_000;
+    /** Upper bound for the bytes allocated by a whole scan, independent of the row count. */
+    private static final long MAX_ALLOCATED_BYTES = 256 * 1024;
+    /** Query latency of the fake volumes, growing with their size. */
+    private static final long[] VOLUME_LATENCY_MILLIS = {800, 400, 200, 40};
+
+    @Test
+    public void scan_meetsRowRateAndAllocationBudget() {
+        FakeImageCursor cursor = FakeImageCursor.create(ROW_COUNT);
+        final long[] checksum = {0};
+        MediaStoreScanner.OnChunkScannedListener listener = chunk -> {
+            for (int i = 0; i < chunk.size(); i++) {
+                checksum[0] += chunk.ids[i] + chunk.widths[i];
+            }
+        };
+        // Warm up so the measurement is not dominated by interpretation.
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            MediaStoreScanner.scan(cursor, CHUNK_SIZE, listener);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        int count = MediaStoreScanner.scan(cursor, CHUNK_SIZE, listener);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        double rowsPerSecond = count / (elapsed / 1e9);
+        assertEquals(ROW_COUNT, count);
+        assertTrue("row rate too low: " + rowsPerSecond, rowsPerSecond >= MIN_ROWS_PER_SECOND);
+        assertTrue("allocated too much: " + allocated, allocated <= MAX_ALLOCATED_BYTES);
+        assertNotEquals(0, checksum[0]);
+    }
+
+    @Test
+    public void scanVolumes_waitsForTheSlowestVolumeOnly() throws Exception {
+        long sequentialMillis = 0;
+        long slowestMillis = 0;
+        for (long latency : VOLUME_LATENCY_MILLIS) {
+            sequentialMillis += latency;
+            slowestMillis = Math.max(slowestMillis, latency);
+        }
+        ExecutorService executor =
+                Executors.newFixedThreadPool(MediaStoreScannerTest.VOLUME_ROWS.length);
+        try {
+            MediaStoreScanner.OnChunkScannedListener listener = chunk -> {
+            };
+            // Warm up without latency so the measurement is not dominated by interpretation.
+            for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+                MediaStoreScanner.scanVolumes(MediaStoreScannerTest.createVolumes(null),
+                        executor, CHUNK_SIZE, listener);
+            }
+
+            long start = System.nanoTime();
+            MediaStoreScanner.scanVolumes(
+                    MediaStoreScannerTest.createVolumes(VOLUME_LATENCY_MILLIS), executor,
+                    CHUNK_SIZE, listener);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            // The slowest volume plus less than half of the time the others would add.
+            assertTrue("volumes were not scanned in parallel: " + elapsedMillis + " ms",
+                    elapsedMillis < slowestMillis + (sequentialMillis - slowestMillis) / 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
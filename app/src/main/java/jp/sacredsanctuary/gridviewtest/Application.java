@@ -20,6 +20,7 @@ import android.content.SharedPreferences;
 import android.content.res.Configuration;
 
 import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.gridviewtest.loader.ThumbnailScheduler;
 import jp.sacredsanctuary.gridviewtest.util.CreateThumbnails;
 
 /**
@@ -29,6 +30,7 @@ public class Application extends android.app.Application {
     private static final String ClassName = Application.class.getSimpleName();
     private static Application sApplication = null;
     private CreateThumbnails mCreateThumbnails;
+    private ThumbnailScheduler mThumbnailScheduler;
 
     public Application() {
         super();
@@ -84,6 +86,7 @@ public class Application extends android.app.Application {
         super.onCreate();
 
         mCreateThumbnails = new CreateThumbnails(getContext());
+        mThumbnailScheduler = new ThumbnailScheduler(mCreateThumbnails);
     }
 
     /**
@@ -111,6 +114,21 @@ public class Application extends android.app.Application {
     public void onLowMemory() {
         LogUtil.V(ClassName, "onLowMemory() ");
         super.onLowMemory();
+        if (mCreateThumbnails != null) {
+            mCreateThumbnails.clear();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        LogUtil.V(ClassName, "onTrimMemory() level:" + level);
+        super.onTrimMemory(level);
+        if (mCreateThumbnails != null) {
+            mCreateThumbnails.trimMemory(level);
+        }
     }
 
     /**
@@ -125,4 +143,8 @@ public class Application extends android.app.Application {
     public CreateThumbnails getCreateThumbnails() {
         return mCreateThumbnails;
     }
+
+    public ThumbnailScheduler getThumbnailScheduler() {
+        return mThumbnailScheduler;
+    }
 }
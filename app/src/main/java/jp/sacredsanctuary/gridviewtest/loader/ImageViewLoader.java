@@ -16,40 +16,46 @@
 package jp.sacredsanctuary.gridviewtest.loader;
 
 import android.annotation.SuppressLint;
-import android.app.LoaderManager;
 import android.content.Context;
-import android.content.Loader;
 import android.graphics.Bitmap;
-import android.os.Bundle;
 import android.util.AttributeSet;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 
-import java.lang.ref.WeakReference;
-
+import jp.sacredsanctuary.gridviewtest.Application;
 import jp.sacredsanctuary.gridviewtest.R;
+import jp.sacredsanctuary.gridviewtest.util.CreateThumbnails;
 
 /**
- * Helper class to handle all the callbacks that occur when interacting with loaders.
+ * An ImageView drawing the thumbnail of a MediaStore image, loaded by a
+ * {@link ThumbnailScheduler}.
+ * <p>
+ * The view remembers the image and the size tier of the thumbnail it draws. A loaded
+ * thumbnail of another image, because the view was rebound meanwhile, or of a lower tier than
+ * the one drawn is dropped, so a sharp thumbnail is never replaced by a blurry one.
  */
 @SuppressLint("AppCompatCustomView")
-public class ImageViewLoader extends ImageView implements LoaderManager.LoaderCallbacks<Bitmap> {
+public class ImageViewLoader extends ImageView implements ThumbnailScheduler.Callback {
     private static final String ClassName = ImageViewLoader.class.getSimpleName();
+    private static final int NO_TIER = -1;
     private String mUrl;
-    private WeakReference<ImageViewLoader> mImageViewReference;
+    private long mImageId = -1;
+    private long mDateModified;
+    /** The thumbnail drawn, on which this view holds a pool reference; guarded by the UI thread. */
+    private Bitmap mThumbnail;
+    /** The size tier of {@link #mThumbnail}, or -1 while the placeholder is drawn. */
+    private int mThumbnailTier = NO_TIER;
+    /** The load of the thumbnail of the bound image, or {@code null}. */
+    private ThumbnailScheduler.Request mRequest;
 
     public ImageViewLoader(Context context) {
         super(context);
         mUrl = null;
-        // Use a WeakReference to ensure the ImageViewLoader can be garbage collected
-        mImageViewReference = new WeakReference<ImageViewLoader>(this);
     }
 
     public ImageViewLoader(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
         mUrl = null;
-        // Use a WeakReference to ensure the ImageViewLoader can be garbage collected
-        mImageViewReference = new WeakReference<ImageViewLoader>(this);
     }
 
     public ImageViewLoader(Context context, AttributeSet attrs) {
@@ -60,36 +66,97 @@ public class ImageViewLoader extends ImageView implements LoaderManager.LoaderCa
         this.mUrl = url;
     }
 
-    @Override
-    public Loader<Bitmap> onCreateLoader(int id, Bundle args) {
-        if (null == mImageViewReference) {
-            // Use a WeakReference to ensure the ImageViewLoader can be garbage collected
-            mImageViewReference = new WeakReference<ImageViewLoader>(this);
+    /**
+     * Sets the MediaStore id of the image whose thumbnail is loaded.
+     *
+     * @param id           the id from the list scan, or -1 for none
+     * @param dateModified the {@code date_modified} of the image, or 0 if unknown
+     */
+    public void setImageId(long id, long dateModified) {
+        this.mImageId = id;
+        this.mDateModified = dateModified;
+    }
+
+    /**
+     * Draws a thumbnail returned by {@link CreateThumbnails}, taking over the reference the
+     * caller holds on it, and releases the one drawn before.
+     *
+     * @param thumbnail the thumbnail
+     * @param tier      the size tier of the thumbnail
+     */
+    public void setThumbnail(Bitmap thumbnail, int tier) {
+        setImageBitmap(thumbnail);
+        releaseThumbnail();
+        mThumbnail = thumbnail;
+        mThumbnailTier = tier;
+    }
+
+    /**
+     * Draws the loading placeholder and releases the thumbnail drawn before, if any.
+     */
+    public void setPlaceholder() {
+        setImageResource(R.drawable.progress_small);
+        releaseThumbnail();
+    }
+
+    private void releaseThumbnail() {
+        if (mThumbnail != null) {
+            Application.getApplication().getCreateThumbnails().releaseThumbnails(mThumbnail);
+            mThumbnail = null;
         }
-        return new ImageAsyncTaskLoader(getContext(), mUrl);
+        mThumbnailTier = NO_TIER;
     }
 
-    @Override
-    public void onLoadFinished(Loader<Bitmap> loader, Bitmap bitmap) {
-        if (null != mImageViewReference) {
-            ImageViewLoader imageView = mImageViewReference.get();
-            if (null != imageView) {
-                if (null != bitmap) {
-                    ViewGroup.MarginLayoutParams lp =
-                            (ViewGroup.MarginLayoutParams) getLayoutParams();
-                    lp.leftMargin = 0;
-                    lp.rightMargin = 0;
-                    lp.topMargin = 0;
-                    lp.bottomMargin = 0;
-                    imageView.setImageBitmap(bitmap);
-                } else {
-                    imageView.setImageResource(R.drawable.progress_small);
-                }
-            }
+    /**
+     * Starts loading the thumbnail of the bound image, cancelling the load of the image
+     * bound before.
+     *
+     * @param scheduler the scheduler to load it on
+     */
+    public void loadThumbnail(ThumbnailScheduler scheduler) {
+        cancelLoad();
+        mRequest = scheduler.schedule(mImageId, mUrl, mDateModified, this);
+    }
+
+    /**
+     * Cancels the load of the thumbnail, as the view is recycled.
+     */
+    public void cancelLoad() {
+        if (mRequest != null) {
+            mRequest.cancel();
+            mRequest = null;
         }
     }
 
+    /**
+     * Moves the load of the thumbnail behind or in front of those of the other cells.
+     *
+     * @param priority {@link ThumbnailScheduler#PRIORITY_VISIBLE} or
+     *                 {@link ThumbnailScheduler#PRIORITY_OFFSCREEN}
+     */
+    public void setLoadPriority(int priority) {
+        if (mRequest != null) {
+            mRequest.setPriority(priority);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
     @Override
-    public void onLoaderReset(Loader<Bitmap> loader) {
+    public void onThumbnailLoaded(ThumbnailScheduler.Request request, Thumbnail thumbnail) {
+        Bitmap bitmap = thumbnail.getBitmap();
+        if (request != mRequest || thumbnail.getId() != mImageId
+                || thumbnail.getTier() < mThumbnailTier) {
+            // Rebound to another image, or already drawing a better thumbnail.
+            Application.getApplication().getCreateThumbnails().releaseThumbnails(bitmap);
+            return;
+        }
+        ViewGroup.MarginLayoutParams lp = (ViewGroup.MarginLayoutParams) getLayoutParams();
+        lp.leftMargin = 0;
+        lp.rightMargin = 0;
+        lp.topMargin = 0;
+        lp.bottomMargin = 0;
+        setThumbnail(bitmap, thumbnail.getTier());
     }
 }
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.loader;
+
+import android.graphics.Bitmap;
+
+import jp.sacredsanctuary.gridviewtest.util.CreateThumbnails;
+
+/**
+ * A loaded thumbnail together with the image and the size tier it is of, so a cell can tell
+ * whether it is still for the image the cell shows and whether it is better than what the
+ * cell shows.
+ */
+public final class Thumbnail {
+    private final long mId;
+    private final int mTier;
+    private final Bitmap mBitmap;
+
+    /**
+     * @param id     the MediaStore id of the image
+     * @param tier   {@link CreateThumbnails#SIZE_TIER_MICRO} or
+     *               {@link CreateThumbnails#SIZE_TIER_CELL}
+     * @param bitmap the thumbnail
+     */
+    public Thumbnail(long id, int tier, Bitmap bitmap) {
+        mId = id;
+        mTier = tier;
+        mBitmap = bitmap;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    public int getTier() {
+        return mTier;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.loader;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.gridviewtest.util.CreateThumbnails;
+import jp.sacredsanctuary.gridviewtest.util.InFlightRegistry;
+
+/**
+ * Loads the thumbnails of the grid cells on a few background threads, the cells on screen
+ * first and the most recently bound of them first.
+ * <p>
+ * After a fling the cells bound last are the ones on screen, while those bound on the way
+ * are long gone, so requests are served last in, first out. A request whose cell leaves the
+ * screen drops behind every request of a cell on screen, and comes back to the front when
+ * its cell does; a request whose cell is recycled is cancelled. Within the same priority the
+ * micro thumbnails, cheap to get, go before the cell thumbnails: a request first delivers
+ * the micro thumbnail if it has one at hand, then queues again for the cell one.
+ * <p>
+ * Prefetches of the cells about to scroll into view only load the cell thumbnail into the
+ * memory cache, after the cells on screen but before the cells which left it.
+ * <p>
+ * Requests are made, re-prioritised and cancelled on the main thread, and their results are
+ * delivered there.
+ */
+public final class ThumbnailScheduler {
+    private static final String ClassName = ThumbnailScheduler.class.getSimpleName();
+    /** The priority of a request whose cell is on screen. */
+    public static final int PRIORITY_VISIBLE = 3;
+    /** The priority of a load ahead of the scroll, for a cell not bound yet. */
+    public static final int PRIORITY_PREFETCH = 2;
+    /** The priority of a request whose cell was bound but is not on screen. */
+    public static final int PRIORITY_OFFSCREEN = 1;
+    private static final int STAGE_MICRO = 0;
+    private static final int STAGE_CELL = 1;
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    /** As AsyncTask: leave a core to the UI, but use 2 to 4 threads. */
+    private static final int THREAD_COUNT = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+
+    /**
+     * Receives the thumbnails of a request on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param request   the request, not cancelled
+         * @param thumbnail a thumbnail of the image, with a reference the callback takes over
+         */
+        void onThumbnailLoaded(Request request, Thumbnail thumbnail);
+    }
+
+    /**
+     * The load of the thumbnails of one cell.
+     */
+    public final class Request implements Runnable, Comparable<Request> {
+        private final long mId;
+        private final String mPath;
+        private final long mDateModified;
+        private final Callback mCallback;
+        /** Set on the main thread. */
+        private volatile boolean mCancelled;
+        /** The ordering of the request; only changed while it is not queued, under mLock. */
+        private int mPriority = PRIORITY_VISIBLE;
+        private int mStage = STAGE_MICRO;
+        private long mSequence;
+        /** The stake of the running load in a shared one; guarded by this. */
+        private InFlightRegistry<Bitmap>.Waiter mWaiter;
+
+        private Request(long id, String path, long dateModified, Callback callback) {
+            mId = id;
+            mPath = path;
+            mDateModified = dateModified;
+            mCallback = callback;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Stops the request: it leaves the queue, a running load is abandoned unless another
+         * request waits for it, and nothing more is delivered.
+         */
+        public void cancel() {
+            mCancelled = true;
+            synchronized (mLock) {
+                mExecutor.remove(this);
+            }
+            synchronized (this) {
+                if (mWaiter != null) {
+                    mWaiter.cancel();
+                }
+            }
+        }
+
+        /**
+         * Moves the request behind, or back in front of, the requests of the other cells.
+         *
+         * @param priority {@link #PRIORITY_VISIBLE}, {@link #PRIORITY_PREFETCH} or
+         *                 {@link #PRIORITY_OFFSCREEN}
+         */
+        public void setPriority(int priority) {
+            synchronized (mLock) {
+                if (mPriority == priority) {
+                    return;
+                }
+                boolean queued = mExecutor.remove(this);
+                if (priority > mPriority) {
+                    // Back on screen: as if just bound.
+                    mSequence = ++mNextSequence;
+                }
+                mPriority = priority;
+                if (queued) {
+                    mExecutor.execute(this);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            if (mPriority != other.mPriority) {
+                return (mPriority > other.mPriority) ? -1 : 1;
+            }
+            if (mStage != other.mStage) {
+                return (mStage < other.mStage) ? -1 : 1;
+            }
+            // Last in, first out.
+            return Long.compare(other.mSequence, mSequence);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            if (mStage == STAGE_MICRO) {
+                Bitmap micro = mCreateThumbnails.getQuickThumbnails(mId, mDateModified);
+                if (micro != null) {
+                    deliver(new Thumbnail(mId, CreateThumbnails.SIZE_TIER_MICRO, micro));
+                    // The cell thumbnail after the micro ones of the other cells.
+                    synchronized (mLock) {
+                        mStage = STAGE_CELL;
+                        if (!mCancelled) {
+                            mExecutor.execute(this);
+                        }
+                    }
+                    return;
+                }
+            }
+            Bitmap cell = mCreateThumbnails.getCellThumbnails(mId, mPath, mDateModified,
+                    newWaiter());
+            if (cell != null) {
+                deliver(new Thumbnail(mId, CreateThumbnails.SIZE_TIER_CELL, cell));
+                return;
+            }
+            if (mCancelled) {
+                return;
+            }
+            // Nothing to decode a cell thumbnail from; MediaStore may still create a micro one.
+            Bitmap micro = mCreateThumbnails.getThumbnails(mId, mDateModified, newWaiter());
+            if (micro != null) {
+                deliver(new Thumbnail(mId, CreateThumbnails.SIZE_TIER_MICRO, micro));
+            }
+        }
+
+        private synchronized InFlightRegistry<Bitmap>.Waiter newWaiter() {
+            mWaiter = mCreateThumbnails.newWaiter();
+            if (mCancelled) {
+                mWaiter.cancel();
+            }
+            return mWaiter;
+        }
+
+        private void deliver(final Thumbnail thumbnail) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCancelled) {
+                        mCreateThumbnails.releaseThumbnails(thumbnail.getBitmap());
+                    } else {
+                        mCallback.onThumbnailLoaded(Request.this, thumbnail);
+                    }
+                }
+            });
+        }
+    }
+
+    private final CreateThumbnails mCreateThumbnails;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    /** Guards the queue order: requests change their ordering only under it. */
+    private final Object mLock = new Object();
+    private long mNextSequence;
+
+    public ThumbnailScheduler(CreateThumbnails createThumbnails) {
+        LogUtil.V(ClassName, "ThumbnailScheduler() threads:" + THREAD_COUNT);
+        mCreateThumbnails = createThumbnails;
+        mExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, ClassName + " #" + mCount.incrementAndGet());
+                    }
+                });
+    }
+
+    /**
+     * Queues the load of the thumbnails of a cell on screen in front of all others. The
+     * callback may first get a micro thumbnail and then the cell one.
+     *
+     * @param id           the MediaStore id of the image
+     * @param path         the path of the image
+     * @param dateModified the {@code date_modified} of the image in seconds, or 0 if unknown
+     * @param callback     receives the thumbnails on the main thread
+     * @return the request, to be re-prioritised or cancelled
+     */
+    public Request schedule(long id, String path, long dateModified, Callback callback) {
+        return enqueue(new Request(id, path, dateModified, callback), PRIORITY_VISIBLE,
+                STAGE_MICRO);
+    }
+
+    /**
+     * Queues the load of the cell thumbnail of a cell not bound yet, behind the cells on
+     * screen. Only the cell thumbnail is loaded: the micro one is of no use before the cell
+     * is bound.
+     *
+     * @param id           the MediaStore id of the image
+     * @param path         the path of the image
+     * @param dateModified the {@code date_modified} of the image in seconds, or 0 if unknown
+     * @param callback     receives the thumbnail on the main thread
+     * @return the request, to be cancelled
+     */
+    public Request prefetch(long id, String path, long dateModified, Callback callback) {
+        return enqueue(new Request(id, path, dateModified, callback), PRIORITY_PREFETCH,
+                STAGE_CELL);
+    }
+
+    private Request enqueue(Request request, int priority, int stage) {
+        synchronized (mLock) {
+            request.mPriority = priority;
+            request.mStage = stage;
+            request.mSequence = ++mNextSequence;
+            mExecutor.execute(request);
+        }
+        return request;
+    }
+
+    /**
+     * Returns the number of requests waiting for a thread, the ones running not included.
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /** Returns the number of requests running. */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+}
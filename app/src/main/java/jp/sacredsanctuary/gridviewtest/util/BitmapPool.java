@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.LongSparseArray;
+
+import java.util.ArrayDeque;
+import java.util.WeakHashMap;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * Bitmaps no longer drawn anywhere, kept by size and config to be decoded into again, so
+ * scrolling through the grid does not allocate a new bitmap for every thumbnail.
+ * <p>
+ * Thumbnails are shared between the memory cache, the loaders and the cells drawing them,
+ * so each of them holds a reference: {@link #acquire(Bitmap)} when it starts using a bitmap
+ * and {@link #release(Bitmap)} when it stops. A bitmap taken from the pool, created through
+ * it, or just decoded and acquired starts with one reference. Only bitmaps the pool tracks
+ * are kept for reuse: once the last reference is released, if they are mutable and the pool
+ * is within its budget; the bitmaps released longest ago are dropped first. Releasing a
+ * bitmap the pool does not track, or one already back in the pool, is logged and ignored, so
+ * a double release cannot hand out one bitmap twice. A bitmap must not be acquired again
+ * once its last reference was released. References are held weakly, so a bitmap whose holder
+ * went away without releasing it is simply collected.
+ * <p>
+ * All methods are thread safe.
+ */
+public final class BitmapPool {
+    private static final String ClassName = BitmapPool.class.getSimpleName();
+
+    /** Free bitmaps by {@link #key(int, int, Bitmap.Config)}, most recently released last. */
+    private final LongSparseArray<ArrayDeque<Bitmap>> mFree = new LongSparseArray<>();
+    /** All free bitmaps, least recently released first. */
+    private final ArrayDeque<Bitmap> mReleaseOrder = new ArrayDeque<>();
+    /** Reference counts of the tracked bitmaps; 0 for the free ones. */
+    private final WeakHashMap<Bitmap, int[]> mReferences = new WeakHashMap<>();
+    private final int mMaxBytes;
+    private int mSizeBytes;
+    private int mHitCount;
+    private int mMissCount;
+
+    /**
+     * Creates a pool keeping at most {@code maxBytes} of free bitmaps.
+     *
+     * @param maxBytes the budget of the pool in bytes
+     */
+    public BitmapPool(int maxBytes) {
+        LogUtil.V(ClassName, "BitmapPool() [INF] maxBytes:" + maxBytes);
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Takes a free bitmap out of the pool, to be decoded or copied into. Its pixels are
+     * undefined, and it comes with one reference for the caller.
+     *
+     * @param width  the width of the bitmap
+     * @param height the height of the bitmap
+     * @param config the config of the bitmap
+     * @return a mutable bitmap of exactly these dimensions and config, or {@code null}
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> free = mFree.get(key(width, height, config));
+        Bitmap bitmap = (free != null) ? free.pollLast() : null;
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+        mReleaseOrder.removeFirstOccurrence(bitmap);
+        mSizeBytes -= bitmap.getAllocationByteCount();
+        mHitCount++;
+        mReferences.get(bitmap)[0] = 1;
+        return bitmap;
+    }
+
+    /**
+     * Takes a free bitmap out of the pool as {@link #get(int, int, Bitmap.Config)} does, or
+     * creates one if there is none.
+     *
+     * @param width  the width of the bitmap
+     * @param height the height of the bitmap
+     * @param config the config of the bitmap
+     * @return a mutable bitmap of exactly these dimensions and config, with one reference for
+     * the caller
+     */
+    public Bitmap create(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = get(width, height, config);
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(width, height, config);
+            acquire(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds a reference to {@code bitmap}, which keeps it out of the pool until released. A
+     * bitmap not tracked yet, such as one just decoded, is tracked from now on.
+     *
+     * @param bitmap the bitmap, may be {@code null}
+     */
+    public synchronized void acquire(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        int[] count = mReferences.get(bitmap);
+        if (count == null) {
+            mReferences.put(bitmap, new int[] {1});
+        } else if (count[0] == 0) {
+            LogUtil.E(ClassName, "acquire() [ERR] already released:" + bitmap);
+        } else {
+            count[0]++;
+        }
+    }
+
+    /**
+     * Drops a reference to {@code bitmap}. Once none is left the bitmap is kept for reuse,
+     * so the caller must not draw it anymore.
+     *
+     * @param bitmap the bitmap, may be {@code null}
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        int[] count = mReferences.get(bitmap);
+        if (count == null || count[0] == 0) {
+            LogUtil.E(ClassName, "release() [ERR] "
+                    + ((count == null) ? "not tracked:" : "already released:") + bitmap);
+            return;
+        }
+        if (--count[0] > 0) {
+            return;
+        }
+        if (bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getAllocationByteCount() > mMaxBytes) {
+            mReferences.remove(bitmap);
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> free = mFree.get(key);
+        if (free == null) {
+            free = new ArrayDeque<>();
+            mFree.put(key, free);
+        }
+        free.addLast(bitmap);
+        mReleaseOrder.addLast(bitmap);
+        mSizeBytes += bytes;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drops free bitmaps until at most {@code maxBytes} remain, the ones released longest ago
+     * first. Dropped bitmaps are not recycled; the garbage collector reclaims them.
+     *
+     * @param maxBytes the bytes to keep
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        while (mSizeBytes > maxBytes) {
+            Bitmap bitmap = mReleaseOrder.pollFirst();
+            if (bitmap == null) {
+                break;
+            }
+            long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> free = mFree.get(key);
+            free.removeFirstOccurrence(bitmap);
+            if (free.isEmpty()) {
+                mFree.remove(key);
+            }
+            mReferences.remove(bitmap);
+            mSizeBytes -= bitmap.getAllocationByteCount();
+        }
+    }
+
+    /**
+     * Shrinks the pool in response to {@link ComponentCallbacks2#onTrimMemory(int)}: by half
+     * when the device runs low on memory, entirely once the UI is hidden or memory is
+     * critical, since no thumbnails are decoded then.
+     *
+     * @param level the trim level
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(mMaxBytes / 2);
+        }
+        LogUtil.V(ClassName, "trimMemory() [INF] level:" + level + " " + this);
+    }
+
+    public void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{size:" + mSizeBytes + "/" + mMaxBytes + " free:" + mReleaseOrder.size()
+                + " hits:" + mHitCount + " misses:" + mMissCount + "}";
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        int ordinal = (config != null) ? config.ordinal() : 0xff;
+        return ((long) width << 32) | ((long) (height & 0xffffff) << 8) | ordinal;
+    }
+}
@@ -15,46 +15,655 @@
  */
 package jp.sacredsanctuary.gridviewtest.util;
 
-import android.content.ContentResolver;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
 import android.provider.MediaStore;
+import android.util.SparseArray;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import jp.sacredsanctuary.common.thread.AsyncHandler;
 import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.gridviewtest.R;
 
+/**
+ * Creates the thumbnails of the grid cells.
+ * <p>
+ * The grid shows thumbnails of the cell tier, decoded by a {@link DownsamplingDecoder} to
+ * exactly the size of a cell from the first source large enough: the {@link ExifThumbnail}
+ * embedded in a JPEG, the MediaStore mini thumbnail, or the image itself. The micro tier, at
+ * about 128 x 96, is what a cell shows meanwhile when it can be had cheaply, see
+ * {@link #getQuickThumbnails(long, long)}; it is loaded as described below.
+ * <p>
+ * Thumbnails are keyed by the MediaStore id read by the list scan. Thumbnails MediaStore
+ * already created are located for a whole screen at once by a {@link ThumbnailResolver} and
+ * decoded straight from their files, without a round trip through the provider; only the
+ * missing or stale ones are generated through MediaStore. Every thumbnail obtained this way
+ * is also written to a {@link ThumbnailPack}, which is checked before MediaStore, so
+ * thumbnails outlive the process. The size tiers given as {@link RawTier}s are kept as raw
+ * pixels in a {@link ThumbnailSlab} as well, and loaded from there without a decode. Decoded
+ * thumbnails are kept in a {@link ThumbnailMemoryCache} in front of all of this.
+ * <p>
+ * Thumbnails are decoded and copied into bitmaps taken from a {@link BitmapPool} when one of
+ * the right size is free. The thumbnails returned carry a pool reference for the caller,
+ * which has to {@link #releaseThumbnails(Bitmap) release} it once it stops drawing them.
+ */
 public class CreateThumbnails {
     private static final String ClassName = CreateThumbnails.class.getSimpleName();
+    /** Scales a mini thumbnail of 512 x 384 down to about the size of a micro one. */
+    private static final int MINI_TO_MICRO_SAMPLE_SIZE = 4;
+    /** Size tier of the micro thumbnails, shown until the cell thumbnail is loaded. */
+    public static final int SIZE_TIER_MICRO = 0;
+    /** Size tier of the thumbnails decoded to the size of a grid cell. */
+    public static final int SIZE_TIER_CELL = 1;
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+    /** Several thousand micro thumbnails encoded as JPEG. */
+    private static final long DISK_CACHE_MAX_BYTES = 24 * 1024 * 1024;
+    private static final int DISK_CACHE_QUALITY = 90;
+    private static final String SLAB_FILE_PREFIX = "slab_";
+    /** Share of the memory cache budget kept in free bitmaps. */
+    private static final int BITMAP_POOL_DIVISOR = 4;
+
+    /** A size tier kept as raw pixels, and the geometry of its slab. */
+    public static final class RawTier {
+        final int tier;
+        final int width;
+        final int height;
+        final Bitmap.Config config;
+        final int slots;
+
+        /**
+         * @param tier   the size tier, such as {@link #SIZE_TIER_MICRO}
+         * @param width  the largest width of a landscape thumbnail of the tier; portrait ones
+         *               fit transposed
+         * @param height the largest height of a landscape thumbnail of the tier
+         * @param config ARGB_8888, or RGB_565 at half the size at the cost of banding
+         * @param slots  the number of thumbnails kept at most
+         */
+        public RawTier(int tier, int width, int height, Bitmap.Config config, int slots) {
+            this.tier = tier;
+            this.width = width;
+            this.height = height;
+            this.config = config;
+            this.slots = slots;
+        }
+
+        int bytesPerPixel() {
+            return (config == Bitmap.Config.RGB_565) ? 2 : 4;
+        }
+    }
+
+    /**
+     * Size tiers kept as raw pixels unless others are given. A micro thumbnail in ARGB_8888
+     * takes 48 KB, so the slots of the micro tier map 24 MB.
+     */
+    private static final RawTier[] DEFAULT_RAW_TIERS = {
+            new RawTier(SIZE_TIER_MICRO, 128, 96, Bitmap.Config.ARGB_8888, 512),
+    };
     private Context mContext;
+    private final ThumbnailResolver mThumbnailResolver;
+    private final ThumbnailMemoryCache mMemoryCache;
+    private final BitmapPool mBitmapPool;
+    private final DownsamplingDecoder mDecoder;
+    /** The micro and cell loads running, so a load requested twice is only run once. */
+    private final InFlightRegistry<Bitmap> mInFlight;
+    /** The side of a grid cell in pixels. */
+    private final int mCellSize;
+    /** Whether opaque cell thumbnails are decoded to RGB_565, on low-memory devices. */
+    private final boolean mPreferRgb565;
+    /** Opened on the first load, off the main thread; guarded by this. */
+    private ThumbnailPack mDiskCache;
+    private final SparseArray<ThumbnailSlab> mSlabs = new SparseArray<>();
+    /** The size tiers also kept as raw pixels. */
+    private final RawTier[] mRawTiers;
+    private boolean mDiskCacheOpened;
 
     public CreateThumbnails(Context context) {
-        LogUtil.V(ClassName, "ImageListFactory() ");
+        this(context, DEFAULT_RAW_TIERS);
+    }
+
+    /**
+     * @param context  the context to use
+     * @param rawTiers the size tiers also kept as raw pixels, at most one per tier; none for
+     *                 a compressed disk cache only
+     */
+    public CreateThumbnails(Context context, RawTier... rawTiers) {
+        LogUtil.V(ClassName, "ImageListFactory() rawTiers:" + rawTiers.length);
         this.mContext = context;
+        this.mRawTiers = rawTiers.clone();
+        this.mThumbnailResolver = new ThumbnailResolver(context.getContentResolver());
+        int maxBytes = ThumbnailMemoryCache.getDefaultMaxBytes(context);
+        this.mBitmapPool = new BitmapPool(maxBytes / BITMAP_POOL_DIVISOR);
+        this.mCellSize =
+                context.getResources().getDimensionPixelSize(R.dimen.image_list_item_size);
+        this.mMemoryCache = new ThumbnailMemoryCache(maxBytes, mCellSize, mBitmapPool);
+        this.mDecoder = new DownsamplingDecoder(mBitmapPool);
+        this.mInFlight = new InFlightRegistry<>(new InFlightRegistry.Sharing<Bitmap>() {
+            @Override
+            public void acquire(Bitmap value) {
+                mBitmapPool.acquire(value);
+            }
+
+            @Override
+            public void release(Bitmap value) {
+                mBitmapPool.release(value);
+            }
+        });
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        this.mPreferRgb565 = am.isLowRamDevice();
+    }
+
+    public ThumbnailMemoryCache getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+    /**
+     * Returns the thumbnail of {@code id} of a size tier if it is in memory. Cheap enough for
+     * the main thread.
+     *
+     * @param id           the MediaStore id of the image
+     * @param tier         {@link #SIZE_TIER_MICRO} or {@link #SIZE_TIER_CELL}
+     * @param dateModified the {@code date_modified} of the image, or 0 if unknown
+     * @return the cached thumbnail with a reference for the caller, or {@code null}
+     */
+    public Bitmap getCachedThumbnails(long id, int tier, long dateModified) {
+        return mMemoryCache.get(id, tier, dateModified);
+    }
+
+    /**
+     * Adds a reference to a thumbnail returned by this class, for another user of it.
+     *
+     * @param bitmap the thumbnail, may be {@code null}
+     */
+    public void acquireThumbnails(Bitmap bitmap) {
+        mBitmapPool.acquire(bitmap);
+    }
+
+    /**
+     * Drops a reference to a thumbnail returned by this class. The caller must not draw it
+     * anymore, since it may be decoded into again.
+     *
+     * @param bitmap the thumbnail, may be {@code null}
+     */
+    public void releaseThumbnails(Bitmap bitmap) {
+        mBitmapPool.release(bitmap);
+    }
+
+    /**
+     * Announces that the thumbnail of {@code id} is about to be loaded, so that it is
+     * resolved in the same batch as the rest of the screen.
+     *
+     * @param id the MediaStore id of the image
+     */
+    public void requestThumbnails(long id) {
+        mThumbnailResolver.request(id);
+    }
+
+    /**
+     * Drops the cached thumbnails and the resolved thumbnail locations.
+     */
+    public void clear() {
+        LogUtil.V(ClassName, "clear() [INF] " + mMemoryCache + " " + mBitmapPool);
+        mMemoryCache.clear();
+        mBitmapPool.clear();
+        mThumbnailResolver.clear();
+    }
+
+    /**
+     * Shrinks the memory held by thumbnails in response to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}. The memory cache is halved when the
+     * device runs low on memory and emptied once the app is in the background; the bitmap
+     * pool, which also receives what the cache evicts, is trimmed afterwards.
+     *
+     * @param level the trim level
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            mMemoryCache.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMemoryCache.trimToSize(mMemoryCache.getMaxBytes() / 2);
+        }
+        mBitmapPool.trimMemory(level);
     }
 
     /**
      * Gets thumbnail.
+     *
+     * @param id           the MediaStore id of the image
+     * @param dateModified the {@code date_modified} of the image in seconds, or 0 if unknown;
+     *                     thumbnail files older than the image are not used
+     * @return the micro thumbnail with a reference for the caller, or {@code null} if it
+     * could not be created
      */
-    public Bitmap getThumbnails(String path) {
-        LogUtil.V(ClassName, "getThumbnails() path:" + path);
+    public Bitmap getThumbnails(long id, long dateModified) {
+        return getThumbnails(id, dateModified, mInFlight.newWaiter());
+    }
 
-        Bitmap image = null;
-        ContentResolver resolver = mContext.getContentResolver();
-        Cursor cursor = resolver.query(
-                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, // data type
-                null, // projection (null is all items)
-                MediaStore.Images.ImageColumns.DATA + " = ?",
-                // filter selection (null is no selection)
-                new String[]{path}, // filter parameters
-                null // sort order
-        );
-        if (cursor.moveToFirst()) {
-            // Get thumbnail
-            long id = cursor.getLong(cursor.getColumnIndex("_id"));
-            image = MediaStore.Images.Thumbnails.getThumbnail(
-                    resolver, id, MediaStore.Images.Thumbnails.MICRO_KIND, null);
+    /**
+     * Gets thumbnail, waiting for the same load if it is running already.
+     *
+     * @param id           the MediaStore id of the image
+     * @param dateModified the {@code date_modified} of the image in seconds, or 0 if unknown
+     * @param waiter       from {@link #newWaiter()}; cancelling it makes this return
+     *                     {@code null}
+     * @return the micro thumbnail with a reference for the caller, or {@code null} if it
+     * could not be created or the waiter was cancelled
+     */
+    public Bitmap getThumbnails(final long id, final long dateModified,
+            InFlightRegistry<Bitmap>.Waiter waiter) {
+        return mInFlight.get(id, SIZE_TIER_MICRO, waiter, new InFlightRegistry.Work<Bitmap>() {
+            @Override
+            public Bitmap run(InFlightRegistry.Signal signal) {
+                return createThumbnails(id, dateModified, signal);
+            }
+        });
+    }
+
+    private Bitmap createThumbnails(long id, long dateModified, InFlightRegistry.Signal signal) {
+        LogUtil.V(ClassName, "getThumbnails() id:" + id);
+        Bitmap image = getQuickThumbnails(id, dateModified);
+        if (image != null || signal.isCancelled()) {
+            return image;
+        }
+        image = MediaStore.Images.Thumbnails.getThumbnail(mContext.getContentResolver(),
+                id, MediaStore.Images.Thumbnails.MICRO_KIND, null);
+        mBitmapPool.acquire(image);
+        mThumbnailResolver.invalidate(id);
+        storeThumbnails(getDiskCache(), SIZE_TIER_MICRO, id, dateModified, image);
+        storeRawThumbnails(SIZE_TIER_MICRO, id, dateModified, image);
+        return cacheThumbnails(id, SIZE_TIER_MICRO, dateModified, image);
+    }
+
+    /**
+     * Gets the micro thumbnail only if it is cheap to get: from memory, from the raw or
+     * compressed disk cache, or from a thumbnail file MediaStore already created. Never asks
+     * MediaStore to create one.
+     *
+     * @param id           the MediaStore id of the image
+     * @param dateModified the {@code date_modified} of the image in seconds, or 0 if unknown
+     * @return the micro thumbnail with a reference for the caller, or {@code null}
+     */
+    public Bitmap getQuickThumbnails(long id, long dateModified) {
+        Bitmap image = mMemoryCache.get(id, SIZE_TIER_MICRO, dateModified);
+        if (image != null) {
+            return image;
+        }
+        ThumbnailPack diskCache = getDiskCache();
+        image = loadRawThumbnails(SIZE_TIER_MICRO, id, dateModified);
+        if (image == null) {
+            image = loadCachedThumbnails(diskCache, SIZE_TIER_MICRO, id, dateModified);
+            if (image == null) {
+                image = loadThumbnailFile(id, dateModified);
+                storeThumbnails(diskCache, SIZE_TIER_MICRO, id, dateModified, image);
+            }
+            storeRawThumbnails(SIZE_TIER_MICRO, id, dateModified, image);
+        }
+        return cacheThumbnails(id, SIZE_TIER_MICRO, dateModified, image);
+    }
+
+    /**
+     * Gets the thumbnail of the size of a grid cell.
+     *
+     * @param id           the MediaStore id of the image
+     * @param path         the path of the image, decoded when its mini thumbnail cannot be
+     * @param dateModified the {@code date_modified} of the image in seconds, or 0 if unknown
+     * @param waiter       from {@link #newWaiter()}; cancelling it makes this return
+     *                     {@code null}, and stops the decode if no other caller waits for it
+     * @return the cell thumbnail with a reference for the caller, or {@code null} if no
+     * source can be decoded or the waiter was cancelled
+     */
+    public Bitmap getCellThumbnails(final long id, final String path, final long dateModified,
+            InFlightRegistry<Bitmap>.Waiter waiter) {
+        Bitmap image = mMemoryCache.get(id, SIZE_TIER_CELL, dateModified);
+        if (image != null) {
+            return image;
+        }
+        return mInFlight.get(id, SIZE_TIER_CELL, waiter, new InFlightRegistry.Work<Bitmap>() {
+            @Override
+            public Bitmap run(InFlightRegistry.Signal signal) {
+                return createCellThumbnails(id, path, dateModified, signal);
+            }
+        });
+    }
+
+    /**
+     * Creates a stake in a thumbnail load, to be passed to one call and cancelled from any
+     * thread once its result is not wanted any more.
+     */
+    public InFlightRegistry<Bitmap>.Waiter newWaiter() {
+        return mInFlight.newWaiter();
+    }
+
+    private Bitmap createCellThumbnails(long id, String path, long dateModified,
+            InFlightRegistry.Signal signal) {
+        LogUtil.V(ClassName, "getCellThumbnails() id:" + id);
+        // Another load may have finished between the look up of the caller and this one.
+        Bitmap image = mMemoryCache.get(id, SIZE_TIER_CELL, dateModified);
+        if (image != null) {
+            return image;
+        }
+        ThumbnailPack diskCache = getDiskCache();
+        image = loadRawThumbnails(SIZE_TIER_CELL, id, dateModified);
+        if (image == null) {
+            image = loadCachedThumbnails(diskCache, SIZE_TIER_CELL, id, dateModified);
+            if (image == null) {
+                image = decodeCellThumbnails(id, path, dateModified, signal);
+                storeThumbnails(diskCache, SIZE_TIER_CELL, id, dateModified, image);
+            }
+            storeRawThumbnails(SIZE_TIER_CELL, id, dateModified, image);
+        }
+        return cacheThumbnails(id, SIZE_TIER_CELL, dateModified, image);
+    }
+
+    /**
+     * Puts a thumbnail just obtained into the memory cache.
+     *
+     * @param image the thumbnail with one pool reference, which is handed to the caller
+     * @return {@code image} with a reference for the caller, or {@code null}
+     */
+    private Bitmap cacheThumbnails(long id, int tier, long dateModified, Bitmap image) {
+        if (image != null) {
+            mMemoryCache.put(id, tier, dateModified, image);
         }
         return image;
+    }
+
+    private synchronized ThumbnailPack getDiskCache() {
+        if (!mDiskCacheOpened) {
+            mDiskCacheOpened = true;
+            try {
+                mDiskCache = ThumbnailPack.open(
+                        new File(mContext.getCacheDir(), DISK_CACHE_DIRECTORY),
+                        DISK_CACHE_MAX_BYTES, AsyncHandler::post);
+            } catch (IOException e) {
+                LogUtil.E(ClassName, "getDiskCache() [ERR] " + e.getMessage());
+            }
+            for (RawTier rawTier : mRawTiers) {
+                File file = new File(mContext.getCacheDir(), SLAB_FILE_PREFIX + rawTier.tier);
+                try {
+                    mSlabs.put(rawTier.tier, ThumbnailSlab.open(file, rawTier.width,
+                            rawTier.height, rawTier.bytesPerPixel(), rawTier.slots));
+                } catch (IOException e) {
+                    LogUtil.E(ClassName, "getDiskCache() [ERR] " + e.getMessage());
+                }
+            }
+        }
+        return mDiskCache;
+    }
+
+    private synchronized ThumbnailSlab getSlab(int tier) {
+        return mSlabs.get(tier);
+    }
+
+    private RawTier getRawTier(int tier) {
+        for (RawTier rawTier : mRawTiers) {
+            if (rawTier.tier == tier) {
+                return rawTier;
+            }
+        }
+        return null;
+    }
+
+    /** Copies a thumbnail out of the slab of {@code tier}, if the tier has one. */
+    private Bitmap loadRawThumbnails(int tier, long id, long dateModified) {
+        ThumbnailSlab slab = getSlab(tier);
+        if (slab == null) {
+            return null;
+        }
+        final Bitmap.Config config = getRawTier(tier).config;
+        final Bitmap[] image = new Bitmap[1];
+        slab.get(id, dateModified, (width, height, pixels) -> {
+            image[0] = mBitmapPool.create(width, height, config);
+            image[0].copyPixelsFromBuffer(pixels);
+        });
+        return image[0];
+    }
 
+    private void storeRawThumbnails(int tier, long id, long dateModified, Bitmap image) {
+        ThumbnailSlab slab = getSlab(tier);
+        if (slab == null || image == null || !slab.fits(image.getWidth(), image.getHeight())) {
+            return;
+        }
+        Bitmap.Config config = getRawTier(tier).config;
+        Bitmap pixels = (image.getConfig() == config) ? image : image.copy(config, true);
+        if (pixels == null) {
+            LogUtil.E(ClassName, "storeRawThumbnails() [ERR] cannot convert id:" + id);
+            return;
+        }
+        if (pixels != image) {
+            mBitmapPool.acquire(pixels);
+        }
+        slab.put(id, dateModified, pixels.getWidth(), pixels.getHeight(),
+                pixels::copyPixelsToBuffer);
+        if (pixels != image) {
+            mBitmapPool.release(pixels);
+        }
+    }
+
+    private Bitmap loadCachedThumbnails(ThumbnailPack diskCache, int tier, long id,
+            long dateModified) {
+        if (diskCache == null) {
+            return null;
+        }
+        ByteBuffer encoded = diskCache.get(id, tier, dateModified);
+        return (encoded != null) ? decodeBuffer(encoded) : null;
+    }
+
+    private static void storeThumbnails(ThumbnailPack diskCache, int tier, long id,
+            long dateModified, Bitmap image) {
+        if (diskCache == null || image == null) {
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!image.compress(Bitmap.CompressFormat.JPEG, DISK_CACHE_QUALITY, out)) {
+            LogUtil.E(ClassName, "storeThumbnails() [ERR] cannot encode id:" + id);
+            return;
+        }
+        diskCache.put(id, tier, dateModified, out.toByteArray());
+    }
+
+    /**
+     * Decodes the micro thumbnail from the thumbnail file MediaStore created for {@code id}.
+     *
+     * @return the thumbnail, or {@code null} if there is no such file or it is stale; the
+     * provider has to create the thumbnail then
+     */
+    private Bitmap loadThumbnailFile(long id, long dateModified) {
+        String path = mThumbnailResolver.resolve(id);
+        return (path != null) ? decodeThumbnailFile(new File(path), dateModified) : null;
+    }
+
+    /**
+     * Decodes a MediaStore thumbnail file, scaled down to micro size.
+     *
+     * @return the thumbnail, or {@code null} if the file is missing, stale or unreadable
+     */
+    private Bitmap decodeThumbnailFile(File file, long dateModified) {
+        if (isMissingOrStale(file, dateModified)) {
+            return null;
+        }
+        return decodeFile(file, MINI_TO_MICRO_SAMPLE_SIZE);
+    }
+
+    /**
+     * Decodes a cell thumbnail, upright, from the first of these which covers a cell: the
+     * thumbnail embedded in the EXIF data of the image at {@code path}, the mini thumbnail
+     * of {@code id}, or else the image itself.
+     *
+     * @return the thumbnail, or {@code null} if none can be decoded or the load was cancelled
+     */
+    private Bitmap decodeCellThumbnails(long id, String path, long dateModified,
+            InFlightRegistry.Signal signal) {
+        if (signal.isCancelled()) {
+            return null;
+        }
+        ExifThumbnail exif = (path != null) ? readExif(new File(path)) : null;
+        int orientation = (exif != null) ? exif.getOrientation()
+                : ExifThumbnail.ORIENTATION_NORMAL;
+        Bitmap image = null;
+        if (exif != null && exif.hasThumbnail()
+                && Math.max(exif.getWidth(), exif.getHeight()) >= mCellSize) {
+            image = decodeExifThumbnail(exif);
+        }
+        if (image == null && !signal.isCancelled()) {
+            String thumbnailPath = mThumbnailResolver.resolve(id);
+            if (thumbnailPath != null) {
+                File file = new File(thumbnailPath);
+                if (!isMissingOrStale(file, dateModified)) {
+                    image = decodeFileToFit(file, true);
+                }
+                if (image != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                    // From Android Q on MediaStore creates its thumbnails upright.
+                    return image;
+                }
+            }
+        }
+        if (image == null && path != null && !signal.isCancelled()) {
+            image = decodeFileToFit(new File(path), false);
+        }
+        return (image != null) ? mDecoder.orient(image, orientation) : null;
+    }
+
+    /**
+     * Reads the EXIF data of a JPEG file; only its first few KB are read.
+     *
+     * @return the EXIF data, or {@code null} if the file is not a readable JPEG with EXIF
+     */
+    private static ExifThumbnail readExif(File file) {
+        BufferedInputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            return ExifThumbnail.read(in);
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "readExif() [ERR] " + e.getMessage());
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    private Bitmap decodeExifThumbnail(ExifThumbnail exif) {
+        final byte[] data = exif.getData();
+        final int offset = exif.getOffset();
+        final int length = exif.getLength();
+        DownsamplingDecoder.BitmapSource source =
+                options -> BitmapFactory.decodeByteArray(data, offset, length, options);
+        try {
+            return mDecoder.decodeToFit(source, DownsamplingDecoder.decodeBounds(source),
+                    mCellSize, mPreferRgb565);
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "decodeExifThumbnail() [ERR] " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static boolean isMissingOrStale(File file, long dateModified) {
+        long lastModified = file.lastModified();
+        if (lastModified == 0 || (lastModified / 1000) < dateModified) {
+            LogUtil.V(ClassName, "isMissingOrStale() [INF] missing or stale:" + file);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Decodes an encoded image held in memory, such as a slice of a mapped pack segment. The
+     * bytes are streamed to BitmapFactory straight from the buffer, so they are not copied to
+     * the Java heap, and the image can still be decoded into a pooled bitmap.
+     *
+     * @return the image, or {@code null} if the bytes cannot be decoded
+     */
+    private Bitmap decodeBuffer(ByteBuffer encoded) {
+        try {
+            return mDecoder.decode(bufferSource(encoded), 1);
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "decodeBuffer() [ERR] " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an image file, mapped read-only so no bytes are copied to the Java heap.
+     *
+     * @return the image, or {@code null} if the file is missing or unreadable
+     */
+    private Bitmap decodeFile(File file, int sampleSize) {
+        try {
+            return mDecoder.decode(bufferSource(mapFile(file)), sampleSize);
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "decodeFile() [ERR] " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an image file scaled down to fit into a grid cell, mapped read-only as in
+     * {@link #decodeFile(File, int)}.
+     *
+     * @param mustCover whether a file smaller than a cell is not decoded
+     * @return the image, or {@code null} if the file is missing, unreadable, or too small
+     */
+    private Bitmap decodeFileToFit(File file, boolean mustCover) {
+        try {
+            DownsamplingDecoder.BitmapSource source = bufferSource(mapFile(file));
+            BitmapFactory.Options bounds = DownsamplingDecoder.decodeBounds(source);
+            if (mustCover && Math.max(bounds.outWidth, bounds.outHeight) < mCellSize) {
+                LogUtil.V(ClassName, "decodeFileToFit() [INF] smaller than a cell:" + file);
+                return null;
+            }
+            return mDecoder.decodeToFit(source, bounds, mCellSize, mPreferRgb565);
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "decodeFileToFit() [ERR] " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Maps a file read-only. The mapping stays valid once the file is closed, and is released
+     * with the buffer.
+     */
+    private static ByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Each decode reads the bytes from the start, through a stream over the buffer which
+     * BitmapFactory decodes as it would a file, {@code inBitmap} included.
+     */
+    private static DownsamplingDecoder.BitmapSource bufferSource(final ByteBuffer encoded) {
+        return options -> BitmapFactory.decodeStream(new ByteBufferInputStream(encoded), null,
+                options);
+    }
+
+    private static void close(InputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LogUtil.E(ClassName, "close() [ERR] " + e.getMessage());
+            }
+        }
     }
 }
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * Decodes images into bitmaps of the {@link BitmapPool}, optionally scaled down to fit a
+ * target size exactly.
+ * <p>
+ * Scaling down reads the bounds of the image first, lets BitmapFactory subsample by the
+ * largest power of two which keeps the image at least as large as the target, and then
+ * filters the subsampled image down to the exact target size. A photo of several megapixels
+ * is so never decoded at full resolution, while the cell still gets every pixel it shows.
+ * Decoded images can then be turned upright according to their EXIF orientation.
+ * <p>
+ * Every image returned is tracked by the pool and comes with one reference for the caller.
+ */
+public final class DownsamplingDecoder {
+    private static final String ClassName = DownsamplingDecoder.class.getSimpleName();
+    private static final String MIME_TYPE_JPEG = "image/jpeg";
+
+    /**
+     * Decodes an image with the given options, as BitmapFactory does. Called once for the
+     * bounds and once for the pixels, so it must be able to read the image twice.
+     */
+    public interface BitmapSource {
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    private final BitmapPool mBitmapPool;
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    public DownsamplingDecoder(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Reads the dimensions and type of an image without decoding it.
+     *
+     * @return the options holding {@code outWidth}, {@code outHeight} and
+     * {@code outMimeType}; the dimensions are not positive if the image cannot be read
+     */
+    public static BitmapFactory.Options decodeBounds(BitmapSource source) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        return options;
+    }
+
+    /**
+     * Returns the largest power of two by which an image can be subsampled and still cover
+     * the target in both dimensions.
+     *
+     * @param width        the width of the image
+     * @param height       the height of the image
+     * @param targetWidth  the width to cover
+     * @param targetHeight the height to cover
+     * @return the sample size, at least 1
+     */
+    static int computeSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        while ((width / (sampleSize * 2)) >= targetWidth
+                && (height / (sampleSize * 2)) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Returns the dimensions of an image scaled down to fit into a square of
+     * {@code targetSize}, keeping its aspect ratio, as the grid cells draw it. Images already
+     * fitting are not scaled up.
+     *
+     * @return the width and the height
+     */
+    static int[] computeTargetSize(int width, int height, int targetSize) {
+        if (width <= targetSize && height <= targetSize) {
+            return new int[] {width, height};
+        }
+        if (width >= height) {
+            return new int[] {targetSize,
+                    Math.max(1, (int) (((long) height * targetSize + (width / 2)) / width))};
+        }
+        return new int[] {Math.max(1, (int) (((long) width * targetSize + (height / 2)) / height)),
+                targetSize};
+    }
+
+    /**
+     * Decodes an image at its size, or subsampled by {@code sampleSize}.
+     *
+     * @return the image, or {@code null} if it cannot be decoded
+     */
+    public Bitmap decode(BitmapSource source, int sampleSize) throws IOException {
+        BitmapFactory.Options bounds = decodeBounds(source);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        return decodeSampled(source, bounds, sampleSize, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Decodes an image scaled down to fit exactly into a square of {@code targetSize}.
+     *
+     * @param source       the image
+     * @param bounds       the bounds of the image from {@link #decodeBounds(BitmapSource)}
+     * @param targetSize   the side of the square in pixels
+     * @param preferRgb565 whether opaque images should be decoded to RGB_565, at half the
+     *                     memory; only JPEG is known to be opaque from its bounds
+     * @return the image, or {@code null} if it cannot be decoded
+     */
+    public Bitmap decodeToFit(BitmapSource source, BitmapFactory.Options bounds, int targetSize,
+            boolean preferRgb565) throws IOException {
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return null;
+        }
+        int[] target = computeTargetSize(bounds.outWidth, bounds.outHeight, targetSize);
+        int sampleSize =
+                computeSampleSize(bounds.outWidth, bounds.outHeight, target[0], target[1]);
+        Bitmap.Config config = (preferRgb565 && MIME_TYPE_JPEG.equals(bounds.outMimeType))
+                ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        Bitmap sampled = decodeSampled(source, bounds, sampleSize, config);
+        if (sampled == null
+                || (sampled.getWidth() == target[0] && sampled.getHeight() == target[1])) {
+            return sampled;
+        }
+        Bitmap scaled = mBitmapPool.create(target[0], target[1], sampled.getConfig());
+        clearIfTranslucent(scaled, sampled);
+        Canvas canvas = new Canvas(scaled);
+        synchronized (mScalePaint) {
+            canvas.drawBitmap(sampled, null, new Rect(0, 0, target[0], target[1]), mScalePaint);
+        }
+        mBitmapPool.release(sampled);
+        return scaled;
+    }
+
+    /**
+     * Turns an image upright according to an EXIF orientation, drawing it into another
+     * bitmap of the pool and releasing the reference of the caller on {@code image}.
+     *
+     * @param image       the image as stored
+     * @param orientation the EXIF orientation, from 1 to 8
+     * @return the upright image; {@code image} itself if it is upright already
+     */
+    public Bitmap orient(Bitmap image, int orientation) {
+        if (orientation <= ExifThumbnail.ORIENTATION_NORMAL
+                || orientation > ExifThumbnail.ORIENTATION_MAX) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        // Orientations 5 to 8 swap the axes.
+        boolean transposed = orientation >= 5;
+        int orientedWidth = transposed ? height : width;
+        int orientedHeight = transposed ? width : height;
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case 2: // Mirrored horizontally.
+                matrix.postScale(-1, 1);
+                matrix.postTranslate(width, 0);
+                break;
+            case 3: // Rotated by 180 degrees.
+                matrix.postRotate(180);
+                matrix.postTranslate(width, height);
+                break;
+            case 4: // Mirrored vertically.
+                matrix.postScale(1, -1);
+                matrix.postTranslate(0, height);
+                break;
+            case 5: // Transposed.
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case 6: // Rotated by 90 degrees clockwise.
+                matrix.postRotate(90);
+                matrix.postTranslate(height, 0);
+                break;
+            case 7: // Transversed.
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                matrix.postTranslate(height, width);
+                break;
+            default: // 8, rotated by 90 degrees counterclockwise.
+                matrix.postRotate(270);
+                matrix.postTranslate(0, width);
+                break;
+        }
+        Bitmap.Config config =
+                (image.getConfig() != null) ? image.getConfig() : Bitmap.Config.ARGB_8888;
+        Bitmap oriented = mBitmapPool.create(orientedWidth, orientedHeight, config);
+        clearIfTranslucent(oriented, image);
+        Canvas canvas = new Canvas(oriented);
+        synchronized (mScalePaint) {
+            canvas.drawBitmap(image, matrix, mScalePaint);
+        }
+        mBitmapPool.release(image);
+        return oriented;
+    }
+
+    /**
+     * Erases a bitmap of the pool before {@code source} is drawn over it, as it may still hold
+     * the pixels of an earlier thumbnail. An opaque source covers them all anyway.
+     */
+    private static void clearIfTranslucent(Bitmap target, Bitmap source) {
+        if (source.hasAlpha()) {
+            target.eraseColor(Color.TRANSPARENT);
+        }
+    }
+
+    /**
+     * Decodes an image subsampled by {@code sampleSize} into a mutable bitmap, reusing a
+     * free one of the pool when there is one of the decoded size.
+     */
+    private Bitmap decodeSampled(BitmapSource source, BitmapFactory.Options bounds,
+            int sampleSize, Bitmap.Config config) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        options.inPreferredConfig = config;
+        // JPEG rounds the sampled size up.
+        options.inBitmap = mBitmapPool.get((bounds.outWidth + sampleSize - 1) / sampleSize,
+                (bounds.outHeight + sampleSize - 1) / sampleSize, config);
+        Bitmap reused = options.inBitmap;
+        try {
+            Bitmap image = source.decode(options);
+            if (image != reused) {
+                mBitmapPool.release(reused);
+                mBitmapPool.acquire(image);
+            }
+            return image;
+        } catch (IllegalArgumentException e) {
+            // The decoded size or config did not fit the pooled bitmap after all.
+            LogUtil.V(ClassName, "decodeSampled() [INF] cannot reuse: " + e.getMessage());
+            mBitmapPool.release(reused);
+            options.inBitmap = null;
+            Bitmap image = source.decode(options);
+            mBitmapPool.acquire(image);
+            return image;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The EXIF orientation and embedded thumbnail of a JPEG file, read from its APP1 segment.
+ * <p>
+ * Cameras store a thumbnail of about 160 x 120 in the EXIF data at the start of the file,
+ * so it can be had by reading a few KB instead of decoding megapixels. Only the markers in
+ * front of the image data are read: the segments before APP1 are skipped, the APP1 segment,
+ * at most 64 KB, is read whole, and reading stops there. Malformed data never reads past the
+ * segment; it yields no thumbnail or no result.
+ */
+public final class ExifThumbnail {
+    /** The EXIF orientation of an image stored upright. */
+    public static final int ORIENTATION_NORMAL = 1;
+    /** The largest EXIF orientation, transposed and rotated. */
+    public static final int ORIENTATION_MAX = 8;
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_EOI = 0xd9;
+    private static final int MARKER_APP1 = 0xe1;
+    /** Segments in front of APP1 looked at before giving up. */
+    private static final int MAX_SEGMENTS = 16;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int IFD_ENTRY_BYTES = 12;
+    /** Entries of an IFD looked at; real files have a few dozen at most. */
+    private static final int MAX_IFD_ENTRIES = 256;
+
+    private final int mOrientation;
+    private final byte[] mData;
+    private final int mOffset;
+    private final int mLength;
+    private final int mWidth;
+    private final int mHeight;
+
+    private ExifThumbnail(int orientation, byte[] data, int offset, int length, int width,
+            int height) {
+        mOrientation = orientation;
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    /**
+     * Reads the EXIF data at the start of a JPEG stream. The stream is left somewhere in its
+     * header.
+     *
+     * @param in the JPEG file, preferably buffered
+     * @return the EXIF data, or {@code null} if the stream is not a JPEG or has no EXIF data
+     * @throws IOException if the stream cannot be read
+     */
+    public static ExifThumbnail read(InputStream in) throws IOException {
+        if (in.read() != 0xff || in.read() != MARKER_SOI) {
+            return null;
+        }
+        for (int segment = 0; segment < MAX_SEGMENTS; segment++) {
+            int marker = readMarker(in);
+            if (marker < 0 || marker == MARKER_SOS || marker == MARKER_EOI) {
+                return null;
+            }
+            int length = (readByte(in) << 8) | readByte(in);
+            if (length < 2) {
+                return null;
+            }
+            if (marker == MARKER_APP1) {
+                byte[] app1 = new byte[length - 2];
+                readFully(in, app1);
+                if (startsWith(app1, EXIF_HEADER)) {
+                    return parse(app1, EXIF_HEADER.length);
+                }
+            } else {
+                skipFully(in, length - 2);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the EXIF orientation of the image, {@link #ORIENTATION_NORMAL} if it has none
+     * or an invalid one.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    public boolean hasThumbnail() {
+        return mLength > 0;
+    }
+
+    /** Returns the array holding the encoded thumbnail, at {@link #getOffset()}. */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getOffset() {
+        return mOffset;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /** Returns the width of the thumbnail as stored, before the orientation is applied. */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /** Returns the height of the thumbnail as stored, before the orientation is applied. */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** Parses the TIFF structure starting at {@code tiff} in the APP1 segment. */
+    private static ExifThumbnail parse(byte[] app1, int tiff) {
+        Tiff t = new Tiff(app1, tiff);
+        if (!t.readHeader()) {
+            return null;
+        }
+        int ifd0 = t.u32(4);
+        int orientation = ORIENTATION_NORMAL;
+        int entries = t.entryCount(ifd0);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd0 + 2 + (i * IFD_ENTRY_BYTES);
+            if (t.u16(entry) == TAG_ORIENTATION) {
+                int value = t.u16(entry + 8);
+                if (value >= ORIENTATION_NORMAL && value <= ORIENTATION_MAX) {
+                    orientation = value;
+                }
+            }
+        }
+        ExifThumbnail none = new ExifThumbnail(orientation, app1, 0, 0, 0, 0);
+        if (entries < 0) {
+            return none;
+        }
+        int nextOffset = ifd0 + 2 + (entries * IFD_ENTRY_BYTES);
+        if (!t.inRange(nextOffset, 4)) {
+            return none;
+        }
+        int ifd1 = t.u32(nextOffset);
+        int thumbnailOffset = -1;
+        int thumbnailLength = -1;
+        int thumbnailEntries = (ifd1 > 0) ? t.entryCount(ifd1) : -1;
+        for (int i = 0; i < thumbnailEntries; i++) {
+            int entry = ifd1 + 2 + (i * IFD_ENTRY_BYTES);
+            int tag = t.u16(entry);
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                thumbnailOffset = t.u32(entry + 8);
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                thumbnailLength = t.u32(entry + 8);
+            }
+        }
+        if (thumbnailOffset < 0 || thumbnailLength <= 0
+                || !t.inRange(thumbnailOffset, thumbnailLength)) {
+            return none;
+        }
+        int offset = tiff + thumbnailOffset;
+        int[] size = readJpegSize(app1, offset, thumbnailLength);
+        if (size == null) {
+            return none;
+        }
+        return new ExifThumbnail(orientation, app1, offset, thumbnailLength, size[0], size[1]);
+    }
+
+    /**
+     * Returns the width and height in the frame header of the JPEG in {@code data}, or
+     * {@code null} if there is none.
+     */
+    static int[] readJpegSize(byte[] data, int offset, int length) {
+        int end = offset + length;
+        if (length < 4 || (data[offset] & 0xff) != 0xff
+                || (data[offset + 1] & 0xff) != MARKER_SOI) {
+            return null;
+        }
+        int position = offset + 2;
+        while (position + 4 <= end) {
+            if ((data[position] & 0xff) != 0xff) {
+                return null;
+            }
+            int marker = data[position + 1] & 0xff;
+            if (marker == 0xff) {
+                // Fill byte.
+                position++;
+                continue;
+            }
+            int segmentLength = ((data[position + 2] & 0xff) << 8) | (data[position + 3] & 0xff);
+            if (segmentLength < 2 || marker == MARKER_SOS || marker == MARKER_EOI) {
+                return null;
+            }
+            if (isStartOfFrame(marker)) {
+                if (segmentLength < 7 || position + 9 > end) {
+                    return null;
+                }
+                int height = ((data[position + 5] & 0xff) << 8) | (data[position + 6] & 0xff);
+                int width = ((data[position + 7] & 0xff) << 8) | (data[position + 8] & 0xff);
+                return (width > 0 && height > 0) ? new int[] {width, height} : null;
+            }
+            position += 2 + segmentLength;
+        }
+        return null;
+    }
+
+    /** SOF0 to SOF15, except DHT, JPG and DAC which share the range. */
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8
+                && marker != 0xcc;
+    }
+
+    /** Reads a marker, skipping fill bytes; -1 if the stream is not at a marker. */
+    private static int readMarker(InputStream in) throws IOException {
+        if (readByte(in) != 0xff) {
+            return -1;
+        }
+        int marker = readByte(in);
+        while (marker == 0xff) {
+            marker = readByte(in);
+        }
+        return marker;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int value = in.read();
+        if (value < 0) {
+            throw new EOFException();
+        }
+        return value;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count = in.read(buffer, offset, buffer.length - offset);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            offset += count;
+        }
+    }
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                readByte(in);
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    private static boolean startsWith(byte[] data, byte[] prefix) {
+        if (data.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Bounds-checked reads of a TIFF structure; offsets are relative to its header. */
+    private static final class Tiff {
+        private final byte[] mData;
+        private final int mStart;
+        private boolean mLittleEndian;
+
+        Tiff(byte[] data, int start) {
+            mData = data;
+            mStart = start;
+        }
+
+        boolean readHeader() {
+            if (!inRange(0, 8)) {
+                return false;
+            }
+            if (mData[mStart] == 'I' && mData[mStart + 1] == 'I') {
+                mLittleEndian = true;
+            } else if (mData[mStart] != 'M' || mData[mStart + 1] != 'M') {
+                return false;
+            }
+            return u16(2) == 42;
+        }
+
+        /** Returns the number of entries of the IFD at {@code ifd}, -1 if it is invalid. */
+        int entryCount(int ifd) {
+            if (ifd < 8 || !inRange(ifd, 2)) {
+                return -1;
+            }
+            int count = u16(ifd);
+            if (count > MAX_IFD_ENTRIES || !inRange(ifd + 2, count * IFD_ENTRY_BYTES)) {
+                return -1;
+            }
+            return count;
+        }
+
+        boolean inRange(int offset, int length) {
+            return offset >= 0 && length >= 0
+                    && (long) mStart + offset + length <= mData.length;
+        }
+
+        int u16(int offset) {
+            int a = mData[mStart + offset] & 0xff;
+            int b = mData[mStart + offset + 1] & 0xff;
+            return mLittleEndian ? ((b << 8) | a) : ((a << 8) | b);
+        }
+
+        /** Returns an unsigned 32-bit value, or -1 if it does not fit an int. */
+        int u32(int offset) {
+            long high = u16(offset);
+            long low = u16(offset + 2);
+            long value = mLittleEndian ? ((low << 16) | high) : ((high << 16) | low);
+            return (value > Integer.MAX_VALUE) ? -1 : (int) value;
+        }
+    }
+}
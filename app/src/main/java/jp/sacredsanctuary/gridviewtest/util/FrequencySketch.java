@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+/**
+ * Count-min sketch estimating how often a key was accessed recently, for the admission
+ * policy of {@link WTinyLfuCache}.
+ * <p>
+ * Each key maps to one 4-bit counter in each of {@link #DEPTH} rows and its frequency is the
+ * smallest of them. Every row hashes the key with its own odd multiplier, so two keys sharing
+ * a counter in one row are no more likely than any others to share one in the next. Counters
+ * saturate at 15, and once the sample size is reached every counter is halved, so old
+ * popularity fades away.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    /** Counters per row for each expected entry; keeps collisions rare. */
+    private static final int WIDTH_PER_ENTRY = 4;
+    /** The multiplier of each row; odd, so each is a bijection of the keys. */
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L,
+    };
+
+    /** Two 4-bit counters per byte; row r starts at r * mWidth / 2. */
+    private final byte[] mTable;
+    private final int mWidth;
+    private final int mSampleSize;
+    private int mAdditions;
+
+    /**
+     * @param expectedEntries the number of entries the cache will hold about
+     */
+    FrequencySketch(int expectedEntries) {
+        int entries = Math.max(16, expectedEntries);
+        mWidth = Integer.highestOneBit((WIDTH_PER_ENTRY * entries) - 1) << 1;
+        mTable = new byte[(DEPTH * mWidth) / 2];
+        mSampleSize = 10 * entries;
+    }
+
+    /**
+     * Returns the estimated number of recent accesses of {@code key}, 0 to 15.
+     */
+    int frequency(long key) {
+        long hash = spread(key);
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, get(row, index(hash, row)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an access of {@code key}. Only the smallest counters are incremented, which
+     * keeps the overestimation caused by collisions low.
+     */
+    void increment(long key) {
+        long hash = spread(key);
+        int min = frequency(key);
+        if (min == MAX_COUNT) {
+            return;
+        }
+        // The indexes are hashed again rather than kept, so an access allocates nothing.
+        for (int row = 0; row < DEPTH; row++) {
+            int index = index(hash, row);
+            if (get(row, index) == min) {
+                set(row, index, min + 1);
+            }
+        }
+        if (++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /** Halves every counter. */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            int high = ((mTable[i] >>> 4) & 0x0f) >>> 1;
+            int low = (mTable[i] & 0x0f) >>> 1;
+            mTable[i] = (byte) ((high << 4) | low);
+        }
+        mAdditions /= 2;
+    }
+
+    /** Mixes the bits of a key, so keys close to each other differ in their high bits. */
+    private static long spread(long key) {
+        long hash = key * 0x9e3779b97f4a7c15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private int index(long hash, int row) {
+        long rowHash = (hash + SEEDS[row]) * SEEDS[row];
+        rowHash += rowHash >>> 32;
+        return (int) rowHash & (mWidth - 1);
+    }
+
+    private int get(int row, int index) {
+        int slot = (row * mWidth) + index;
+        int value = mTable[slot >>> 1];
+        return ((slot & 1) == 0) ? (value & 0x0f) : ((value >>> 4) & 0x0f);
+    }
+
+    private void set(int row, int index, int count) {
+        int slot = (row * mWidth) + index;
+        int value = mTable[slot >>> 1];
+        value = ((slot & 1) == 0) ? ((value & 0xf0) | count) : ((value & 0x0f) | (count << 4));
+        mTable[slot >>> 1] = (byte) value;
+    }
+}
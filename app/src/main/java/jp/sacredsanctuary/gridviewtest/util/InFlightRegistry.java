@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.util.HashMap;
+
+/**
+ * The thumbnail loads in flight, keyed by image id and size tier, so a load requested again
+ * while it runs, by a rebound cell or by a loader restarted after a configuration change,
+ * waits for the running one instead of decoding the image a second time.
+ * <p>
+ * The first caller of {@link #get(long, int, Waiter, Work)} for a key runs the work on its
+ * thread; the callers coming while it runs block until it is done, and every one of them
+ * gets the result. Each caller passes a {@link Waiter} which another thread may cancel: the
+ * caller then returns {@code null} at once, while the work goes on for the others. Only
+ * when the last caller waiting for a load is cancelled is the work itself told to stop; it
+ * checks {@link Signal#isCancelled()} between its steps.
+ * <p>
+ * Results are shared: each caller is given its own reference through the {@link Sharing},
+ * and the reference the work returned is released once no caller is left to take it.
+ * <p>
+ * All methods are thread safe.
+ *
+ * @param <V> the type of the results
+ */
+public final class InFlightRegistry<V> {
+    private static final int TIER_BITS = 2;
+
+    /**
+     * Tells a running work whether all callers waiting for it were cancelled.
+     */
+    public interface Signal {
+        boolean isCancelled();
+    }
+
+    /**
+     * Loads the result of a key on the thread of the first caller.
+     */
+    public interface Work<V> {
+        /**
+         * @param signal cancelled once no caller waits for the result any more
+         * @return the result with a reference for the registry, or {@code null}
+         */
+        V run(Signal signal);
+    }
+
+    /**
+     * Takes and drops references on results, as {@link BitmapPool} does.
+     */
+    public interface Sharing<V> {
+        void acquire(V value);
+
+        void release(V value);
+    }
+
+    /**
+     * The stake of one caller in a load, which may be cancelled from any thread.
+     */
+    public final class Waiter {
+        /** The load waited for; guarded by {@link #mFlights}. */
+        private Flight mFlight;
+        private boolean mCancelled;
+
+        private Waiter() {
+        }
+
+        /**
+         * Makes the caller return {@code null}, and stops the load if nobody else waits for
+         * it. Cancelling before the caller joined a load makes it return at once.
+         */
+        public void cancel() {
+            synchronized (mFlights) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                if (mFlight != null) {
+                    leave(mFlight);
+                    mFlights.notifyAll();
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (mFlights) {
+                return mCancelled;
+            }
+        }
+    }
+
+    private final class Flight implements Signal {
+        final long key;
+        /** Callers which joined and neither got the result nor were cancelled. */
+        int waiters;
+        boolean done;
+        V value;
+        volatile boolean cancelled;
+
+        Flight(long key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private final Sharing<V> mSharing;
+    private final HashMap<Long, Flight> mFlights = new HashMap<>();
+    private int mCoalescedCount;
+
+    public InFlightRegistry(Sharing<V> sharing) {
+        mSharing = sharing;
+    }
+
+    public Waiter newWaiter() {
+        return new Waiter();
+    }
+
+    /**
+     * Gets the result of the load of {@code id} at {@code tier}, running {@code work} unless
+     * the same load is running already.
+     *
+     * @param id     the MediaStore id of the image
+     * @param tier   the size tier of the thumbnail
+     * @param waiter the stake of the caller, not used for another call
+     * @param work   the load, run on the calling thread if it is the first caller
+     * @return the result with a reference for the caller, or {@code null} if there is none
+     * or the waiter was cancelled
+     */
+    public V get(long id, int tier, Waiter waiter, Work<V> work) {
+        Flight flight;
+        boolean first;
+        synchronized (mFlights) {
+            if (waiter.mCancelled) {
+                return null;
+            }
+            long key = key(id, tier);
+            flight = mFlights.get(key);
+            first = (flight == null);
+            if (first) {
+                flight = new Flight(key);
+                mFlights.put(key, flight);
+            } else {
+                mCoalescedCount++;
+            }
+            flight.waiters++;
+            waiter.mFlight = flight;
+        }
+        if (first) {
+            V value = null;
+            try {
+                value = work.run(flight);
+            } finally {
+                complete(flight, value);
+            }
+        }
+        synchronized (mFlights) {
+            try {
+                while (!flight.done && !waiter.mCancelled) {
+                    mFlights.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!waiter.mCancelled) {
+                    waiter.mCancelled = true;
+                    leave(flight);
+                }
+            }
+            waiter.mFlight = null;
+            if (waiter.mCancelled) {
+                return null;
+            }
+            V value = flight.value;
+            if (value != null) {
+                mSharing.acquire(value);
+            }
+            leave(flight);
+            return value;
+        }
+    }
+
+    /**
+     * Returns the number of calls which waited for a running load instead of starting one.
+     */
+    public int getCoalescedCount() {
+        synchronized (mFlights) {
+            return mCoalescedCount;
+        }
+    }
+
+    /** Returns the number of loads running. */
+    public int size() {
+        synchronized (mFlights) {
+            return mFlights.size();
+        }
+    }
+
+    private void complete(Flight flight, V value) {
+        synchronized (mFlights) {
+            if (mFlights.get(flight.key) == flight) {
+                mFlights.remove(flight.key);
+            }
+            flight.done = true;
+            flight.value = value;
+            if (flight.waiters == 0 && value != null) {
+                // Everybody was cancelled while the work finished anyway.
+                mSharing.release(value);
+            }
+            mFlights.notifyAll();
+        }
+    }
+
+    /** Drops a caller from a load; must hold the lock. */
+    private void leave(Flight flight) {
+        flight.waiters--;
+        if (flight.waiters > 0) {
+            return;
+        }
+        if (flight.done) {
+            if (flight.value != null) {
+                mSharing.release(flight.value);
+            }
+        } else {
+            // Nobody waits any more: stop the work, and let a later call start afresh.
+            flight.cancelled = true;
+            if (mFlights.get(flight.key) == flight) {
+                mFlights.remove(flight.key);
+            }
+        }
+    }
+
+    private static long key(long id, int tier) {
+        return (id << TIER_BITS) | tier;
+    }
+}
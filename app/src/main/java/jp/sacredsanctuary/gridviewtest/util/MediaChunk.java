@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-capacity block of MediaStore image rows stored as parallel columns.
+ * <p>
+ * A single instance is reused by {@link MediaStoreScanner} for every chunk of a scan, so
+ * listeners must copy whatever they want to keep before returning.
+ */
+public final class MediaChunk {
+    public final long[] ids;
+    public final String[] paths;
+    public final long[] dateModified;
+    public final String[] mimeTypes;
+    public final int[] widths;
+    public final int[] heights;
+    private int mSize;
+
+    public MediaChunk(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        ids = new long[capacity];
+        paths = new String[capacity];
+        dateModified = new long[capacity];
+        mimeTypes = new String[capacity];
+        widths = new int[capacity];
+        heights = new int[capacity];
+    }
+
+    /**
+     * Returns the number of valid rows in this chunk.
+     *
+     * @return the number of valid rows
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum number of rows this chunk can hold.
+     *
+     * @return the capacity of this chunk
+     */
+    public int capacity() {
+        return ids.length;
+    }
+
+    boolean isFull() {
+        return mSize == ids.length;
+    }
+
+    void add(long id, String path, long modified, String mimeType, int width, int height) {
+        ids[mSize] = id;
+        paths[mSize] = path;
+        dateModified[mSize] = modified;
+        mimeTypes[mSize] = mimeType;
+        widths[mSize] = width;
+        heights[mSize] = height;
+        mSize++;
+    }
+
+    void clear() {
+        // Drop the String references so a reused chunk does not pin the previous rows.
+        Arrays.fill(paths, 0, mSize, null);
+        Arrays.fill(mimeTypes, 0, mSize, null);
+        mSize = 0;
+    }
+}
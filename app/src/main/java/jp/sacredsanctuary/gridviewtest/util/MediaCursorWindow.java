@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.content.ContentResolver;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import java.io.Closeable;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * Read access to the rows of a live, sorted MediaStore cursor without copying them.
+ * <p>
+ * Only the rows of the cursor's current {@link CursorWindow} are held in memory. Rows inside
+ * that window are read directly on the main thread; reading any other row would refill the
+ * window, so the getters return a miss instead and the caller refills it in the background
+ * with {@link #fill(int)}. The main thread never waits for the cursor: it gives up when a
+ * fill or close is in progress.
+ */
+public final class MediaCursorWindow implements Closeable {
+    private static final String ClassName = MediaCursorWindow.class.getSimpleName();
+
+    /** Only the columns needed to bind a cell. */
+    static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.DATA,
+            MediaStore.Images.Media.DATE_MODIFIED,
+    };
+
+    /** Value returned by {@link #getId(int)} for a row outside the filled window. */
+    public static final long NO_ID = -1;
+
+    /**
+     * Value returned by {@link #getPath(int)} for a row outside the filled window. Compared by
+     * reference, so no path read from a row, {@code null} included, is taken for a miss.
+     */
+    @SuppressWarnings("RedundantStringConstructorCall")
+    public static final String NO_PATH = new String("");
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Cursor mCursor;
+    /** The cursor owning the window, or {@code null} if the rows are all in memory. */
+    private final AbstractWindowedCursor mWindowedCursor;
+    private final int mCount;
+    private final int mIdColumn;
+    private final int mPathColumn;
+    private final int mDateColumn;
+    /** Written while holding {@link #mLock}. */
+    private volatile boolean mClosed;
+
+    MediaCursorWindow(Cursor cursor) {
+        mCursor = cursor;
+        Cursor inner = cursor;
+        while (inner instanceof CursorWrapper) {
+            inner = ((CursorWrapper) inner).getWrappedCursor();
+        }
+        mWindowedCursor = (inner instanceof AbstractWindowedCursor)
+                ? (AbstractWindowedCursor) inner : null;
+        // Counting fills the first window, so the top of the list is readable right away.
+        mCount = cursor.getCount();
+        mIdColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+        mPathColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+        mDateColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATE_MODIFIED);
+    }
+
+    /**
+     * Queries the rows of {@code uri} which have a path, in
+     * {@link MediaStoreScanner#SORT_ORDER}. Must not be called on the main thread.
+     *
+     * @param resolver the resolver to query
+     * @param uri      the MediaStore collection
+     * @return the rows, or {@code null} if the query failed
+     */
+    public static MediaCursorWindow query(ContentResolver resolver, Uri uri) {
+        LogUtil.V(ClassName, "query() [I N] uri:" + uri);
+        Cursor cursor = resolver.query(uri, PROJECTION, MediaStoreScanner.SELECTION_HAS_DATA,
+                null, MediaStoreScanner.SORT_ORDER);
+        if (cursor == null) {
+            LogUtil.E(ClassName, "query() [ERR] cursor is null");
+            return null;
+        }
+        MediaCursorWindow window = new MediaCursorWindow(cursor);
+        LogUtil.V(ClassName, "query() [OUT] count:" + window.getCount());
+        return window;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Returns the id of the row at {@code position} if it can be read without I/O.
+     *
+     * @param position the position of the row
+     * @return the id, or {@link #NO_ID} if the row is outside the filled window
+     */
+    public long getId(int position) {
+        if (!mLock.tryLock()) {
+            return NO_ID;
+        }
+        try {
+            return moveToFilledRow(position) ? mCursor.getLong(mIdColumn) : NO_ID;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the path of the row at {@code position} if it can be read without I/O.
+     *
+     * @param position the position of the row
+     * @return the path, or {@link #NO_PATH} if the row is outside the filled window
+     */
+    public String getPath(int position) {
+        if (!mLock.tryLock()) {
+            return NO_PATH;
+        }
+        try {
+            return moveToFilledRow(position) ? mCursor.getString(mPathColumn) : NO_PATH;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the {@code date_modified} of the row at {@code position} if it can be read
+     * without I/O.
+     *
+     * @param position the position of the row
+     * @return the date in seconds, or 0 if the row is outside the filled window
+     */
+    public long getDateModified(int position) {
+        if (!mLock.tryLock()) {
+            return 0;
+        }
+        try {
+            return moveToFilledRow(position) ? mCursor.getLong(mDateColumn) : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Fills the cursor window around {@code position}. Must not be called on the main thread.
+     *
+     * @param position the position which has to become readable
+     */
+    public void fill(int position) {
+        mLock.lock();
+        try {
+            if (!mClosed && position >= 0 && position < mCount) {
+                LogUtil.V(ClassName, "fill() [INF] position:" + position);
+                mCursor.moveToPosition(position);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        mLock.lock();
+        try {
+            if (!mClosed) {
+                mClosed = true;
+                mCursor.close();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /** Moves to {@code position} if its row is already in memory; {@link #mLock} is held. */
+    private boolean moveToFilledRow(int position) {
+        if (mClosed || position < 0 || position >= mCount) {
+            return false;
+        }
+        if (mWindowedCursor != null) {
+            CursorWindow window = mWindowedCursor.getWindow();
+            if (window == null) {
+                return false;
+            }
+            int start = window.getStartPosition();
+            if (position < start || position >= start + window.getNumRows()) {
+                return false;
+            }
+        }
+        return mCursor.moveToPosition(position);
+    }
+}
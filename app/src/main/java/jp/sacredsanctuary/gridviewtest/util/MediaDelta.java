@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.database.Cursor;
+import android.provider.MediaStore;
+
+import java.util.Arrays;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * Changes of the MediaStore images since a previous snapshot.
+ * <p>
+ * Inserted and updated rows come from a query restricted to rows modified or added at or
+ * after the newest date of the snapshot; deletions are found by diffing the set of current
+ * ids against the snapshot.
+ * <p>
+ * Dates are in whole seconds, so a row written in the same second as the newest one of the
+ * snapshot has the same date: the query includes that second, and drops the rows it returns
+ * which the snapshot already holds with the same date.
+ */
+public final class MediaDelta {
+    private static final String ClassName = MediaDelta.class.getSimpleName();
+
+    /** Selection for rows added or modified at or after a date, in seconds. */
+    public static final String SELECTION_CHANGED_SINCE = MediaStore.Images.Media.DATE_MODIFIED
+            + " >= ? OR " + MediaStore.Images.Media.DATE_ADDED + " >= ?";
+
+    /** Projection used to enumerate the current ids. */
+    public static final String[] PROJECTION_ID = {MediaStore.Images.Media._ID};
+
+    private final MediaItemStore mChanged;
+    private final long[] mInsertedIds;
+    private final long[] mUpdatedIds;
+    private final long[] mDeletedIds;
+
+    private MediaDelta(MediaItemStore changed, long[] insertedIds, long[] updatedIds,
+            long[] deletedIds) {
+        mChanged = changed;
+        mInsertedIds = insertedIds;
+        mUpdatedIds = updatedIds;
+        mDeletedIds = deletedIds;
+    }
+
+    /**
+     * Computes the delta against {@code previous}.
+     *
+     * @param previous      the snapshot to compare with
+     * @param changedCursor rows selected with {@link #SELECTION_CHANGED_SINCE} using
+     *                      {@link MediaItemStore#getLastSync()}, with the
+     *                      {@link MediaStoreScanner#PROJECTION} columns and sorted by
+     *                      {@link MediaStoreScanner#SORT_ORDER}
+     * @param idCursor      the {@code _id} of every current row, in any order
+     * @return the delta
+     */
+    public static MediaDelta compute(MediaItemStore previous, Cursor changedCursor,
+            Cursor idCursor) {
+        long start = System.nanoTime();
+        final int previousCount = previous.size();
+        long[] previousIds = new long[previousCount];
+        for (int i = 0; i < previousCount; i++) {
+            previousIds[i] = previous.getId(i);
+        }
+        Arrays.sort(previousIds);
+
+        MediaItemStore.Builder builder = new MediaItemStore.Builder();
+        MediaStoreScanner.scan(changedCursor, MediaStoreScanner.DEFAULT_CHUNK_SIZE, builder);
+        MediaItemStore selected = builder.build();
+        long[] knownDates = findKnownDates(previous, previousIds, selected);
+
+        MediaItemStore.Builder changedBuilder = new MediaItemStore.Builder();
+        long[] insertedIds = new long[selected.size()];
+        long[] updatedIds = new long[selected.size()];
+        int inserted = 0;
+        int updated = 0;
+        for (int i = 0; i < selected.size(); i++) {
+            long id = selected.getId(i);
+            if (Arrays.binarySearch(previousIds, id) < 0) {
+                insertedIds[inserted++] = id;
+            } else if (knownDates[i] != selected.getDateModified(i)) {
+                updatedIds[updated++] = id;
+            } else {
+                // Selected again by the second of the snapshot, but unchanged.
+                continue;
+            }
+            changedBuilder.add(selected, i);
+        }
+
+        long[] deletedIds = findDeletedIds(previousIds, idCursor);
+        MediaDelta delta = new MediaDelta(changedBuilder.build(),
+                Arrays.copyOf(insertedIds, inserted), Arrays.copyOf(updatedIds, updated),
+                deletedIds);
+        LogUtil.V(ClassName, "compute() [INF] " + delta + " elapsed(us):"
+                + ((System.nanoTime() - start) / 1000));
+        return delta;
+    }
+
+    /**
+     * Returns the {@code date_modified} in {@code previous} of each row of {@code selected},
+     * or -1 for the rows it does not hold. The selected rows are few, so the previous ones are
+     * read once and looked up among them.
+     */
+    private static long[] findKnownDates(MediaItemStore previous, long[] sortedPreviousIds,
+            MediaItemStore selected) {
+        final int selectedCount = selected.size();
+        long[] knownDates = new long[selectedCount];
+        Arrays.fill(knownDates, -1);
+        long[] knownIds = new long[selectedCount];
+        int known = 0;
+        for (int i = 0; i < selectedCount; i++) {
+            if (Arrays.binarySearch(sortedPreviousIds, selected.getId(i)) >= 0) {
+                knownIds[known++] = selected.getId(i);
+            }
+        }
+        if (known == 0) {
+            return knownDates;
+        }
+        knownIds = Arrays.copyOf(knownIds, known);
+        Arrays.sort(knownIds);
+        long[] dates = new long[known];
+        for (int i = 0; i < previous.size(); i++) {
+            int index = Arrays.binarySearch(knownIds, previous.getId(i));
+            if (index >= 0) {
+                dates[index] = previous.getDateModified(i);
+            }
+        }
+        for (int i = 0; i < selectedCount; i++) {
+            int index = Arrays.binarySearch(knownIds, selected.getId(i));
+            if (index >= 0) {
+                knownDates[i] = dates[index];
+            }
+        }
+        return knownDates;
+    }
+
+    /**
+     * Returns the ids of {@code sortedPreviousIds} which are no longer present in
+     * {@code idCursor}. Every row is read: the number of rows cannot tell a deletion from an
+     * insertion the changed query missed.
+     */
+    private static long[] findDeletedIds(long[] sortedPreviousIds, Cursor idCursor) {
+        final int idColumn = idCursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+        boolean[] present = new boolean[sortedPreviousIds.length];
+        idCursor.moveToPosition(-1);
+        while (idCursor.moveToNext()) {
+            int index = Arrays.binarySearch(sortedPreviousIds, idCursor.getLong(idColumn));
+            if (index >= 0) {
+                present[index] = true;
+            }
+        }
+        long[] deleted = new long[sortedPreviousIds.length];
+        int count = 0;
+        for (int i = 0; i < sortedPreviousIds.length; i++) {
+            if (!present[i]) {
+                deleted[count++] = sortedPreviousIds[i];
+            }
+        }
+        return Arrays.copyOf(deleted, count);
+    }
+
+    /**
+     * Returns whether the snapshot is still current.
+     *
+     * @return {@code true} if nothing was inserted, updated or deleted
+     */
+    public boolean isEmpty() {
+        return mChanged.size() == 0 && mDeletedIds.length == 0;
+    }
+
+    /** Returns the ids of rows added since the snapshot, in scan order. */
+    public long[] getInsertedIds() {
+        return mInsertedIds;
+    }
+
+    /** Returns the ids of rows modified since the snapshot, in scan order. */
+    public long[] getUpdatedIds() {
+        return mUpdatedIds;
+    }
+
+    /** Returns the ids of rows removed since the snapshot, in ascending order. */
+    public long[] getDeletedIds() {
+        return mDeletedIds;
+    }
+
+    /**
+     * Applies this delta to {@code previous}, which must be the snapshot it was computed
+     * against. Both inputs are already sorted by {@link MediaStoreScanner#SORT_ORDER}, so the
+     * result is produced with a single merge pass.
+     *
+     * @param previous the snapshot this delta was computed against
+     * @return the rows of the new snapshot
+     */
+    public MediaItemStore applyTo(MediaItemStore previous) {
+        long[] removed = new long[mUpdatedIds.length + mDeletedIds.length];
+        System.arraycopy(mUpdatedIds, 0, removed, 0, mUpdatedIds.length);
+        System.arraycopy(mDeletedIds, 0, removed, mUpdatedIds.length, mDeletedIds.length);
+        Arrays.sort(removed);
+
+        MediaItemStore.Builder result = new MediaItemStore.Builder();
+        final int previousCount = previous.size();
+        final int changedCount = mChanged.size();
+        int p = 0;
+        int c = 0;
+        while (p < previousCount || c < changedCount) {
+            if (p < previousCount && Arrays.binarySearch(removed, previous.getId(p)) >= 0) {
+                p++;
+                continue;
+            }
+            boolean takeChanged = (p >= previousCount) || ((c < changedCount)
+                    && comesBefore(mChanged.getDateModified(c), mChanged.getId(c),
+                    previous.getDateModified(p), previous.getId(p)));
+            if (takeChanged) {
+                result.add(mChanged, c++);
+            } else {
+                result.add(previous, p++);
+            }
+        }
+        return result.trimToSize().build();
+    }
+
+    /** Returns whether row a sorts before row b in {@link MediaStoreScanner#SORT_ORDER}. */
+    private static boolean comesBefore(long dateA, long idA, long dateB, long idB) {
+        return (dateA != dateB) ? (dateA > dateB) : (idA > idB);
+    }
+
+    @Override
+    public String toString() {
+        return "MediaDelta{inserted:" + mInsertedIds.length + " updated:" + mUpdatedIds.length
+                + " deleted:" + mDeletedIds.length + "}";
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * Persistent, memory-mapped snapshot of a MediaStore scan.
+ * <p>
+ * File layout (big-endian):
+ * <pre>
+ * header   : magic(4) version(4) count(4) reserved(4) lastSync(8) pathBlobSize(8)
+ * records  : count x [id(8) dateModified(8) width(4) height(4) mime(4) reserved(4)]
+ * offsets  : (count + 1) x int, byte offsets of each path in the blob
+ * path blob: UTF-8 bytes of every path, back to back
+ * </pre>
+ * Opening an index maps the file and checks its offset table, so a truncated or corrupt index
+ * is rejected there instead of failing on a later read. Nothing is copied to the heap: the
+ * store of {@link #toStore()} reads every column straight from the mapping, and decodes the
+ * paths on access.
+ */
+public final class MediaIndex implements MediaItemStore.ColumnStore {
+    private static final String ClassName = MediaIndex.class.getSimpleName();
+
+    /** File name of the index inside the application's files directory. */
+    public static final String FILE_NAME = "media_index.bin";
+
+    private static final int MAGIC = 0x47564d49; // "GVMI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32;
+
+    private static final int OFFSET_COUNT = 8;
+    private static final int OFFSET_LAST_SYNC = 16;
+    private static final int OFFSET_BLOB_SIZE = 24;
+
+    private static final int RECORD_ID = 0;
+    private static final int RECORD_DATE_MODIFIED = 8;
+    private static final int RECORD_WIDTH = 16;
+    private static final int RECORD_HEIGHT = 20;
+    private static final int RECORD_MIME = 24;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final long mLastSync;
+    private final int mOffsetTable;
+    private final int mPathBlob;
+
+    private MediaIndex(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mCount = buffer.getInt(OFFSET_COUNT);
+        mLastSync = buffer.getLong(OFFSET_LAST_SYNC);
+        mOffsetTable = HEADER_SIZE + (mCount * RECORD_SIZE);
+        mPathBlob = mOffsetTable + ((mCount + 1) * 4);
+    }
+
+    /**
+     * Maps the index stored in {@code file}.
+     *
+     * @param file the index file
+     * @return the index, or {@code null} if the file is missing or not a valid index
+     */
+    public static MediaIndex open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                LogUtil.W(ClassName, "open() [ERR] invalid size:" + size);
+                return null;
+            }
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                LogUtil.W(ClassName, "open() [ERR] unknown format file:" + file);
+                return null;
+            }
+            long count = buffer.getInt(OFFSET_COUNT);
+            long blobSize = buffer.getLong(OFFSET_BLOB_SIZE);
+            long expected = HEADER_SIZE + (count * RECORD_SIZE) + ((count + 1) * 4) + blobSize;
+            if (count < 0 || blobSize < 0 || expected != size) {
+                LogUtil.W(ClassName, "open() [ERR] truncated file:" + file + " size:" + size
+                        + " expected:" + expected);
+                return null;
+            }
+            if (!checkOffsets(buffer, (int) count, blobSize)) {
+                LogUtil.W(ClassName, "open() [ERR] corrupt offset table file:" + file);
+                return null;
+            }
+            return new MediaIndex(buffer);
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "open() [ERR] " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the path offsets start at 0, never decrease and end at the end of the
+     * blob, so every path read from the index stays inside it.
+     */
+    private static boolean checkOffsets(ByteBuffer buffer, int count, long blobSize) {
+        int position = HEADER_SIZE + (count * RECORD_SIZE);
+        int previous = buffer.getInt(position);
+        if (previous != 0) {
+            return false;
+        }
+        for (int i = 1; i <= count; i++) {
+            position += 4;
+            int offset = buffer.getInt(position);
+            if (offset < previous) {
+                return false;
+            }
+            previous = offset;
+        }
+        return previous == blobSize;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Returns the newest {@code date_modified} of the indexed rows, in seconds.
+     *
+     * @return the newest modification date, or 0 for an empty index
+     */
+    public long getLastSync() {
+        return mLastSync;
+    }
+
+    /**
+     * Returns the indexed rows as a store reading them from the mapping, so it is ready in
+     * constant time whatever the size of the library.
+     *
+     * @return the rows of this index
+     */
+    public MediaItemStore toStore() {
+        return new MediaItemStore(mCount, this, this::getPath, mLastSync);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getId(int position) {
+        return mBuffer.getLong(record(position) + RECORD_ID);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getDateModified(int position) {
+        return mBuffer.getLong(record(position) + RECORD_DATE_MODIFIED);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getWidth(int position) {
+        return mBuffer.getInt(record(position) + RECORD_WIDTH);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getHeight(int position) {
+        return mBuffer.getInt(record(position) + RECORD_HEIGHT);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getMimeCode(int position) {
+        int mime = mBuffer.getInt(record(position) + RECORD_MIME);
+        return (mime >= 0 && mime < MediaItemStore.MIME_TYPES.length) ? mime : 0;
+    }
+
+    private static int record(int position) {
+        return HEADER_SIZE + (position * RECORD_SIZE);
+    }
+
+    private String getPath(int position) {
+        int start = mBuffer.getInt(mOffsetTable + (position * 4));
+        int end = mBuffer.getInt(mOffsetTable + ((position + 1) * 4));
+        byte[] bytes = new byte[end - start];
+        ByteBuffer slice = mBuffer.duplicate();
+        slice.position(mPathBlob + start);
+        slice.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes {@code store} to {@code file}. The data is written to a temporary file first and
+     * renamed into place, so readers never observe a partially written index.
+     *
+     * @param store the rows to write
+     * @param file  the destination file
+     * @throws IOException if the index could not be written
+     */
+    public static void write(MediaItemStore store, File file) throws IOException {
+        final int count = store.size();
+        byte[][] pathBytes = new byte[count][];
+        long blobSize = 0;
+        for (int i = 0; i < count; i++) {
+            pathBytes[i] = store.getPath(i).getBytes(StandardCharsets.UTF_8);
+            blobSize += pathBytes[i].length;
+        }
+        long size = HEADER_SIZE + ((long) count * RECORD_SIZE) + ((count + 1L) * 4) + blobSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("index too large: " + size);
+        }
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(size);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(0)
+                    .putLong(store.getLastSync()).putLong(blobSize);
+            for (int i = 0; i < count; i++) {
+                buffer.putLong(store.getId(i)).putLong(store.getDateModified(i))
+                        .putInt(store.getWidth(i)).putInt(store.getHeight(i))
+                        .putInt(store.getMimeCode(i)).putInt(0);
+            }
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                buffer.putInt(offset);
+                offset += pathBytes[i].length;
+            }
+            buffer.putInt(offset);
+            for (int i = 0; i < count; i++) {
+                buffer.put(pathBytes[i]);
+            }
+            buffer.force();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("failed to rename " + temp + " to " + file);
+        }
+        LogUtil.V(ClassName, "write() [INF] count:" + count + " size:" + size);
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Immutable, columnar list of MediaStore image rows.
+ * <p>
+ * The numeric columns live in a {@link ColumnStore} and the paths in a {@link PathStore},
+ * each holding one entry per position. Stores built from scans keep the columns in primitive
+ * arrays and the paths in a directory-compressed {@link PathTable}; stores of a
+ * {@link MediaIndex} read both straight from its mapping. A store is shared by reference
+ * between the scanner, the view model and the adapter; nothing is boxed or copied per item.
+ */
+public final class MediaItemStore {
+    /** The store without any rows. */
+    public static final MediaItemStore EMPTY = new Builder().build();
+
+    /** MIME types stored as a small code; index 0 stands for any other type. */
+    static final String[] MIME_TYPES = {
+            null, "image/jpeg", "image/png", "image/gif", "image/webp", "image/heif",
+            "image/heic", "image/bmp",
+    };
+
+    /**
+     * Read-only storage of the path of every position of a store.
+     */
+    public interface PathStore {
+        /**
+         * Returns the path at {@code position}.
+         *
+         * @param position the position of the row
+         * @return the absolute file path
+         */
+        String get(int position);
+    }
+
+    /**
+     * Read-only storage of the numeric columns of every position of a store.
+     */
+    interface ColumnStore {
+        long getId(int position);
+
+        long getDateModified(int position);
+
+        int getWidth(int position);
+
+        int getHeight(int position);
+
+        /**
+         * Returns the index of the MIME type of the row in {@link #MIME_TYPES}.
+         */
+        int getMimeCode(int position);
+    }
+
+    private final int mSize;
+    private final ColumnStore mColumns;
+    private final PathStore mPaths;
+    private final long mLastSync;
+
+    MediaItemStore(int size, ColumnStore columns, PathStore paths, long lastSync) {
+        mSize = size;
+        mColumns = columns;
+        mPaths = paths;
+        mLastSync = lastSync;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the newest {@code date_modified} of the rows, in seconds, the dates later than
+     * the time the rows were added ignored: a file with a date in the future would otherwise
+     * hide every row written until then from {@link MediaDelta#SELECTION_CHANGED_SINCE}.
+     *
+     * @return the newest modification date not in the future, or 0 for an empty store
+     */
+    public long getLastSync() {
+        return mLastSync;
+    }
+
+    public long getId(int position) {
+        return mColumns.getId(checkPosition(position));
+    }
+
+    public long getDateModified(int position) {
+        return mColumns.getDateModified(checkPosition(position));
+    }
+
+    public int getWidth(int position) {
+        return mColumns.getWidth(checkPosition(position));
+    }
+
+    public int getHeight(int position) {
+        return mColumns.getHeight(checkPosition(position));
+    }
+
+    public String getMimeType(int position) {
+        return MIME_TYPES[mColumns.getMimeCode(checkPosition(position))];
+    }
+
+    int getMimeCode(int position) {
+        return mColumns.getMimeCode(checkPosition(position));
+    }
+
+    public String getPath(int position) {
+        return mPaths.get(checkPosition(position));
+    }
+
+    /**
+     * Returns whether {@code other} holds the same rows in the same order.
+     *
+     * @param other the store to compare with, may be {@code null}
+     * @return {@code true} if both stores are equal row by row
+     */
+    public boolean contentEquals(MediaItemStore other) {
+        if (other == null || other.mSize != mSize) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (other.mColumns.getId(i) != mColumns.getId(i)
+                    || other.mColumns.getDateModified(i) != mColumns.getDateModified(i)
+                    || !Objects.equals(other.mPaths.get(i), mPaths.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int checkPosition(int position) {
+        // The columns may be longer than the store, so bounds are checked against the size.
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position:" + position + " size:" + mSize);
+        }
+        return position;
+    }
+
+    static int mimeCode(String mimeType) {
+        for (int i = 1; i < MIME_TYPES.length; i++) {
+            if (MIME_TYPES[i].equals(mimeType)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Accumulates rows and builds stores from them.
+     * <p>
+     * Rows can only be appended, so {@link #build()} may be called at any time: the returned
+     * store shares the current arrays and only sees the rows added so far. This lets a scan
+     * publish intermediate stores without copying.
+     */
+    public static final class Builder implements MediaStoreScanner.OnChunkScannedListener {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private long[] mIds = new long[INITIAL_CAPACITY];
+        private long[] mDates = new long[INITIAL_CAPACITY];
+        private int[] mWidths = new int[INITIAL_CAPACITY];
+        private int[] mHeights = new int[INITIAL_CAPACITY];
+        private int[] mMimes = new int[INITIAL_CAPACITY];
+        private final PathTable.Builder mPaths = new PathTable.Builder();
+        private int mCount;
+        private long mLastSync;
+        /** The wall-clock time the builder was created, in seconds. */
+        private final long mSyncTime = System.currentTimeMillis() / 1000;
+
+        @Override
+        public void onChunkScanned(MediaChunk chunk) {
+            for (int i = 0; i < chunk.size(); i++) {
+                add(chunk.ids[i], chunk.paths[i], chunk.dateModified[i], chunk.mimeTypes[i],
+                        chunk.widths[i], chunk.heights[i]);
+            }
+        }
+
+        public Builder add(long id, String path, long dateModified, String mimeType, int width,
+                int height) {
+            return add(id, path, dateModified, mimeCode(mimeType), width, height);
+        }
+
+        /**
+         * Appends the row at {@code position} of {@code store}.
+         */
+        public Builder add(MediaItemStore store, int position) {
+            store.checkPosition(position);
+            if (store.mPaths instanceof PathTable) {
+                mPaths.add((PathTable) store.mPaths, position);
+            } else {
+                mPaths.add(store.mPaths.get(position));
+            }
+            ColumnStore columns = store.mColumns;
+            return add(columns.getId(position), columns.getDateModified(position),
+                    columns.getMimeCode(position), columns.getWidth(position),
+                    columns.getHeight(position));
+        }
+
+        private Builder add(long id, String path, long dateModified, int mimeCode, int width,
+                int height) {
+            mPaths.add(path);
+            return add(id, dateModified, mimeCode, width, height);
+        }
+
+        private Builder add(long id, long dateModified, int mimeCode, int width, int height) {
+            if (mCount == mIds.length) {
+                // Grow into new arrays; stores built earlier keep the old ones.
+                int capacity = (mCount * 2) + 1;
+                mIds = Arrays.copyOf(mIds, capacity);
+                mDates = Arrays.copyOf(mDates, capacity);
+                mWidths = Arrays.copyOf(mWidths, capacity);
+                mHeights = Arrays.copyOf(mHeights, capacity);
+                mMimes = Arrays.copyOf(mMimes, capacity);
+            }
+            mIds[mCount] = id;
+            mDates[mCount] = dateModified;
+            mWidths[mCount] = width;
+            mHeights[mCount] = height;
+            mMimes[mCount] = mimeCode;
+            mCount++;
+            if (dateModified <= mSyncTime) {
+                mLastSync = Math.max(mLastSync, dateModified);
+            }
+            return this;
+        }
+
+        public int size() {
+            return mCount;
+        }
+
+        /**
+         * Releases the spare capacity of the builder once no more rows are expected. Stores
+         * built earlier are not affected.
+         *
+         * @return this builder
+         */
+        public Builder trimToSize() {
+            mIds = Arrays.copyOf(mIds, mCount);
+            mDates = Arrays.copyOf(mDates, mCount);
+            mWidths = Arrays.copyOf(mWidths, mCount);
+            mHeights = Arrays.copyOf(mHeights, mCount);
+            mMimes = Arrays.copyOf(mMimes, mCount);
+            mPaths.trimToSize();
+            return this;
+        }
+
+        /**
+         * Returns a store holding the rows added so far.
+         *
+         * @return an immutable store
+         */
+        public MediaItemStore build() {
+            return new MediaItemStore(mCount,
+                    new ArrayColumns(mIds, mDates, mWidths, mHeights, mMimes), mPaths.build(),
+                    mLastSync);
+        }
+    }
+
+    /**
+     * Columns held in primitive arrays, which may be longer than the store.
+     */
+    private static final class ArrayColumns implements ColumnStore {
+        private final long[] mIds;
+        private final long[] mDates;
+        private final int[] mWidths;
+        private final int[] mHeights;
+        private final int[] mMimes;
+
+        ArrayColumns(long[] ids, long[] dates, int[] widths, int[] heights, int[] mimes) {
+            mIds = ids;
+            mDates = dates;
+            mWidths = widths;
+            mHeights = heights;
+            mMimes = mimes;
+        }
+
+        @Override
+        public long getId(int position) {
+            return mIds[position];
+        }
+
+        @Override
+        public long getDateModified(int position) {
+            return mDates[position];
+        }
+
+        @Override
+        public int getWidth(int position) {
+            return mWidths[position];
+        }
+
+        @Override
+        public int getHeight(int position) {
+            return mHeights[position];
+        }
+
+        @Override
+        public int getMimeCode(int position) {
+            return mMimes[position];
+        }
+    }
+}
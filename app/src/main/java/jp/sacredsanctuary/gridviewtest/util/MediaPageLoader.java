@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.common.util.Preconditions;
+
+/**
+ * Loads pages of MediaStore image rows in {@link MediaStoreScanner#SORT_ORDER}.
+ * <p>
+ * A page following a loaded page is read with a keyset query on {@code date_modified} and
+ * {@code _id}, which lets SQLite seek instead of skipping rows. Any other page, for example
+ * after a jump with the fast scroller, is read with {@code LIMIT}/{@code OFFSET}.
+ */
+public class MediaPageLoader implements MediaPagedList.PageLoader {
+    private static final String ClassName = MediaPageLoader.class.getSimpleName();
+    /** Rows sorting after (date, id) in {@link MediaStoreScanner#SORT_ORDER}. */
+    static final String SELECTION_AFTER = "(date_modified < ? OR (date_modified = ? AND _id < ?))"
+            + " AND " + MediaStoreScanner.SELECTION_HAS_DATA;
+    /** Android R; MediaStore honors the limit and offset query arguments from there on. */
+    private static final int SDK_QUERY_ARG_LIMIT = 30;
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+
+    public MediaPageLoader(ContentResolver resolver, Uri uri) {
+        mResolver = resolver;
+        mUri = uri;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int count() {
+        // The rows a scan skips are left out, so pages hold as many rows as counted.
+        Cursor cursor = mResolver.query(mUri, MediaDelta.PROJECTION_ID,
+                MediaStoreScanner.SELECTION_HAS_DATA, null, null);
+        if (!Preconditions.checkNotNull(cursor)) {
+            LogUtil.E(ClassName, "count() [ERR] cursor is null pointer");
+            return 0;
+        }
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MediaItemStore loadPage(int offset, int limit, MediaItemStore previousPage) {
+        LogUtil.V(ClassName, "loadPage() [I N] offset:" + offset + " limit:" + limit
+                + " keyset:" + (previousPage != null));
+        String selection = MediaStoreScanner.SELECTION_HAS_DATA;
+        String[] selectionArgs = null;
+        int skip = offset;
+        if (previousPage != null && previousPage.size() > 0) {
+            int last = previousPage.size() - 1;
+            String date = String.valueOf(previousPage.getDateModified(last));
+            selection = SELECTION_AFTER;
+            selectionArgs = new String[]{date, date, String.valueOf(previousPage.getId(last))};
+            skip = 0;
+        }
+        Cursor cursor = query(selection, selectionArgs, skip, limit);
+        if (!Preconditions.checkNotNull(cursor)) {
+            LogUtil.E(ClassName, "loadPage() [OUT] cursor is null pointer");
+            return null;
+        }
+        try {
+            MediaItemStore.Builder builder = new MediaItemStore.Builder();
+            MediaStoreScanner.scan(cursor, limit, builder);
+            LogUtil.V(ClassName, "loadPage() [OUT] size:" + builder.size());
+            return builder.trimToSize().build();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private Cursor query(String selection, String[] selectionArgs, int offset, int limit) {
+        if (Build.VERSION.SDK_INT >= SDK_QUERY_ARG_LIMIT) {
+            Bundle queryArgs = new Bundle();
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, selection);
+            queryArgs.putStringArray(ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS,
+                    selectionArgs);
+            queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER,
+                    MediaStoreScanner.SORT_ORDER);
+            queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, limit);
+            queryArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, offset);
+            return mResolver.query(mUri, MediaStoreScanner.PROJECTION, queryArgs, null);
+        }
+        // Older providers pass the sort order through to SQLite, limit clause included.
+        return mResolver.query(mUri, MediaStoreScanner.PROJECTION, selection, selectionArgs,
+                MediaStoreScanner.SORT_ORDER + " LIMIT " + limit + " OFFSET " + offset);
+    }
+}
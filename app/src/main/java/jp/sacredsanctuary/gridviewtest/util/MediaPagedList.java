@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * A list of MediaStore image rows of known size of which only a few pages are resident.
+ * <p>
+ * Positions of pages which are not loaded are placeholders: {@link #getPath(int)} returns
+ * {@code null} for them and the page is loaded in the background, after which the
+ * {@link OnRangeLoadedListener} is told to rebind it. At most {@link #MAX_RESIDENT_PAGES}
+ * pages are kept; the pages farthest from the last accessed position are dropped first, and
+ * requests for pages which are no longer near it by the time they run are skipped. Jumping
+ * to any position thus only loads the pages around it. The {@code peek} getters read the
+ * resident pages only, and neither load pages nor move the accessed position, for callers
+ * looking ahead of the viewport.
+ * <p>
+ * Except for {@link #loadInitialPages(int)}, all methods must be called on the main thread.
+ */
+public final class MediaPagedList {
+    private static final String ClassName = MediaPagedList.class.getSimpleName();
+    /** Rows per page; a multiple of every span count of the grid. */
+    public static final int PAGE_SIZE = 120;
+    /** Pages kept in memory at most. */
+    static final int MAX_RESIDENT_PAGES = 6;
+    /** Load the neighbor page once a position is this close to the edge of its page. */
+    private static final int PREFETCH_DISTANCE = PAGE_SIZE / 4;
+
+    /**
+     * Reads the rows of a page; called on the loading executor.
+     */
+    public interface PageLoader {
+        /**
+         * Returns the total number of rows.
+         */
+        int count();
+
+        /**
+         * Loads {@code limit} rows starting at {@code offset}.
+         *
+         * @param offset       the position of the first row
+         * @param limit        the number of rows
+         * @param previousPage the page ending right before {@code offset}, if it is resident;
+         *                     lets the loader seek past its last row instead of skipping rows
+         * @return the rows, or {@code null} if they could not be loaded
+         */
+        MediaItemStore loadPage(int offset, int limit, MediaItemStore previousPage);
+    }
+
+    /**
+     * Receives the ranges which became resident; called on the main thread.
+     */
+    public interface OnRangeLoadedListener {
+        void onRangeLoaded(int positionStart, int itemCount);
+    }
+
+    private final PageLoader mLoader;
+    private final Executor mExecutor;
+    private final Handler mHandler;
+    private final int mCount;
+    private final SparseArray<MediaItemStore> mPages = new SparseArray<>();
+    private final Set<Integer> mLoadingPages = new HashSet<>();
+    private OnRangeLoadedListener mListener;
+    /** Read by the loading executor to skip requests the viewport has left behind. */
+    private volatile int mAccessedPage;
+    private volatile boolean mClosed;
+
+    public MediaPagedList(PageLoader loader, Executor executor, int count) {
+        this(loader, executor, new Handler(Looper.getMainLooper()), count);
+    }
+
+    MediaPagedList(PageLoader loader, Executor executor, Handler handler, int count) {
+        mLoader = loader;
+        mExecutor = executor;
+        mHandler = handler;
+        mCount = count;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public int getPageCount() {
+        return (mCount + PAGE_SIZE - 1) / PAGE_SIZE;
+    }
+
+    public int getResidentPageCount() {
+        return mPages.size();
+    }
+
+    /**
+     * Returns the page the list was accessed at last, for seeding the list which replaces
+     * this one.
+     */
+    public int getAccessedPage() {
+        return mAccessedPage;
+    }
+
+    public void setOnRangeLoadedListener(OnRangeLoadedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Returns the path at {@code position}, loading its page if needed.
+     *
+     * @param position the position of the row
+     * @return the path, or {@code null} while the position is a placeholder
+     */
+    public String getPath(int position) {
+        MediaItemStore page = getPage(position);
+        return (page != null) ? page.getPath(position % PAGE_SIZE) : null;
+    }
+
+    /**
+     * Returns the id at {@code position}, loading its page if needed.
+     *
+     * @param position the position of the row
+     * @return the id, or -1 while the position is a placeholder
+     */
+    public long getId(int position) {
+        MediaItemStore page = getPage(position);
+        return (page != null) ? page.getId(position % PAGE_SIZE) : -1;
+    }
+
+    /**
+     * Returns the {@code date_modified} at {@code position}, loading its page if needed.
+     *
+     * @param position the position of the row
+     * @return the date in seconds, or 0 while the position is a placeholder
+     */
+    public long getDateModified(int position) {
+        MediaItemStore page = getPage(position);
+        return (page != null) ? page.getDateModified(position % PAGE_SIZE) : 0;
+    }
+
+    /**
+     * Returns the path at {@code position} if its page is resident, without loading pages or
+     * counting the position as accessed.
+     *
+     * @param position the position of the row
+     * @return the path, or {@code null} if the page is not resident
+     */
+    public String peekPath(int position) {
+        MediaItemStore page = peekPage(position);
+        return (page != null) ? page.getPath(position % PAGE_SIZE) : null;
+    }
+
+    /**
+     * Returns the id at {@code position} if its page is resident, without loading pages or
+     * counting the position as accessed.
+     *
+     * @param position the position of the row
+     * @return the id, or -1 if the page is not resident
+     */
+    public long peekId(int position) {
+        MediaItemStore page = peekPage(position);
+        return (page != null) ? page.getId(position % PAGE_SIZE) : -1;
+    }
+
+    /**
+     * Returns the {@code date_modified} at {@code position} if its page is resident, without
+     * loading pages or counting the position as accessed.
+     *
+     * @param position the position of the row
+     * @return the date in seconds, or 0 if the page is not resident
+     */
+    public long peekDateModified(int position) {
+        MediaItemStore page = peekPage(position);
+        return (page != null) ? page.getDateModified(position % PAGE_SIZE) : 0;
+    }
+
+    /**
+     * Loads the pages around {@code page} synchronously, on the calling thread, before the
+     * list is handed to the main thread. Lets a list replacing another one show the same
+     * rows without passing through placeholders.
+     *
+     * @param page the page to load with its neighbors
+     */
+    public void loadInitialPages(int page) {
+        int first = Math.max(0, page - 1);
+        int last = Math.min(getPageCount() - 1, page + 1);
+        MediaItemStore previousPage = null;
+        for (int i = first; i <= last; i++) {
+            previousPage = mLoader.loadPage(i * PAGE_SIZE, pageLimit(i), previousPage);
+            if (previousPage == null) {
+                return;
+            }
+            mPages.put(i, previousPage);
+        }
+        mAccessedPage = page;
+    }
+
+    /**
+     * Stops delivering pages; loads already queued are dropped.
+     */
+    public void close() {
+        mClosed = true;
+        mListener = null;
+    }
+
+    private MediaItemStore getPage(int position) {
+        if (position < 0 || position >= mCount) {
+            throw new IndexOutOfBoundsException("position:" + position + " size:" + mCount);
+        }
+        int page = position / PAGE_SIZE;
+        mAccessedPage = page;
+        int offset = position % PAGE_SIZE;
+        MediaItemStore store = mPages.get(page);
+        if (store == null) {
+            requestPage(page);
+        }
+        if (offset < PREFETCH_DISTANCE && page > 0) {
+            requestPage(page - 1);
+        } else if (offset >= PAGE_SIZE - PREFETCH_DISTANCE && page + 1 < getPageCount()) {
+            requestPage(page + 1);
+        }
+        // A page shorter than expected means MediaStore changed; a new list is coming.
+        return (store != null && offset < store.size()) ? store : null;
+    }
+
+    private MediaItemStore peekPage(int position) {
+        if (position < 0 || position >= mCount) {
+            return null;
+        }
+        MediaItemStore store = mPages.get(position / PAGE_SIZE);
+        return (store != null && position % PAGE_SIZE < store.size()) ? store : null;
+    }
+
+    private void requestPage(int page) {
+        if (mPages.get(page) != null || !mLoadingPages.add(page)) {
+            return;
+        }
+        final MediaItemStore previousPage = mPages.get(page - 1);
+        mExecutor.execute(() -> {
+            MediaItemStore store = null;
+            if (!mClosed && isNearAccessedPage(page)) {
+                store = mLoader.loadPage(page * PAGE_SIZE, pageLimit(page), previousPage);
+            }
+            final MediaItemStore loaded = store;
+            mHandler.post(() -> onPageLoaded(page, loaded));
+        });
+    }
+
+    private void onPageLoaded(int page, MediaItemStore store) {
+        mLoadingPages.remove(page);
+        if (mClosed || store == null) {
+            return;
+        }
+        mPages.put(page, store);
+        trimPages();
+        if (mPages.get(page) != null && mListener != null) {
+            mListener.onRangeLoaded(page * PAGE_SIZE, pageLimit(page));
+        }
+    }
+
+    /** Drops the pages farthest from the last accessed one until the bound is met. */
+    private void trimPages() {
+        while (mPages.size() > MAX_RESIDENT_PAGES) {
+            int farthest = 0;
+            for (int i = 1; i < mPages.size(); i++) {
+                if (distance(mPages.keyAt(i)) > distance(mPages.keyAt(farthest))) {
+                    farthest = i;
+                }
+            }
+            LogUtil.V(ClassName, "trimPages() [INF] drop page:" + mPages.keyAt(farthest));
+            mPages.removeAt(farthest);
+        }
+    }
+
+    private boolean isNearAccessedPage(int page) {
+        return distance(page) <= MAX_RESIDENT_PAGES / 2;
+    }
+
+    private int distance(int page) {
+        return Math.abs(page - mAccessedPage);
+    }
+
+    private int pageLimit(int page) {
+        return Math.min(PAGE_SIZE, mCount - page * PAGE_SIZE);
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.MediaStore;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.common.util.Preconditions;
+
+/**
+ * Streams MediaStore image rows to a listener in fixed-size chunks.
+ * <p>
+ * Only the columns used by the grid are requested and the provider does the sorting, so the
+ * cursor is walked forward once and no per-row lookups or list growth take place. Several
+ * volumes can be scanned in parallel with {@link #scanVolumes}. Rows without a
+ * {@code _data} path are skipped.
+ */
+public final class MediaStoreScanner {
+    private static final String ClassName = MediaStoreScanner.class.getSimpleName();
+
+    /** Default number of rows handed to the listener per callback. */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    /** Columns read by the scanner, in the order of the {@code COLUMN_*} indexes. */
+    public static final String[] PROJECTION = {
+            MediaStore.Images.Media._ID,
+            MediaStore.Images.Media.DATA,
+            MediaStore.Images.Media.DATE_MODIFIED,
+            MediaStore.Images.Media.MIME_TYPE,
+            MediaStore.Images.Media.WIDTH,
+            MediaStore.Images.Media.HEIGHT,
+    };
+
+    /** Chunks read ahead by each volume of {@link #scanVolumes} while the merge catches up. */
+    private static final int VOLUME_CHUNKS = 3;
+    /** Queued by a volume after its last chunk. */
+    private static final MediaChunk END_OF_VOLUME = new MediaChunk(1);
+
+    /**
+     * Selection of the rows the scan does not skip, for queries which have to count the same
+     * rows as a scan.
+     */
+    public static final String SELECTION_HAS_DATA = MediaStore.Images.Media.DATA
+            + " IS NOT NULL";
+
+    /** Newest first; {@code _id} breaks ties so the order is total. */
+    public static final String SORT_ORDER = MediaStore.Images.Media.DATE_MODIFIED + " DESC, "
+            + MediaStore.Images.Media._ID + " DESC";
+
+    /**
+     * Callback receiving the rows of a scan.
+     */
+    public interface OnChunkScannedListener {
+        /**
+         * Called for every filled chunk and once more for the trailing partial chunk.
+         * The chunk is reused after this method returns.
+         *
+         * @param chunk the rows scanned since the previous call
+         */
+        void onChunkScanned(MediaChunk chunk);
+    }
+
+    /**
+     * Takes the chunks filled by {@link #scan(Cursor, MediaChunk, ChunkSink)}.
+     */
+    private interface ChunkSink {
+        /**
+         * @param chunk the filled chunk, handed over
+         * @param last  whether no rows are left
+         * @return the chunk to fill next, or {@code null} to stop the scan
+         */
+        MediaChunk onChunkFilled(MediaChunk chunk, boolean last);
+    }
+
+    /**
+     * The rows of one volume of {@link #scanVolumes}, passed from the thread reading them to
+     * the merging thread through a queue of a few chunks which go back and forth.
+     */
+    private static final class VolumeStream implements ChunkSink {
+        final BlockingQueue<MediaChunk> filled = new ArrayBlockingQueue<>(VOLUME_CHUNKS + 1);
+        final BlockingQueue<MediaChunk> free = new ArrayBlockingQueue<>(VOLUME_CHUNKS);
+        Future<?> future;
+        /** The chunk being merged, or {@code null} once the volume is done. */
+        MediaChunk chunk;
+        /** The next row of {@link #chunk} to merge. */
+        int position;
+
+        VolumeStream(int chunkSize) {
+            for (int i = 0; i < VOLUME_CHUNKS; i++) {
+                free.add(new MediaChunk(chunkSize));
+            }
+        }
+
+        @Override
+        public MediaChunk onChunkFilled(MediaChunk chunk, boolean last) {
+            try {
+                filled.put(chunk);
+                return last ? null : free.take();
+            } catch (InterruptedException e) {
+                // The merge was given up.
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        /**
+         * Hands the merged chunk back to the reading thread and waits for the next one.
+         *
+         * @return whether there is a next chunk; {@code false} once the volume is done
+         */
+        boolean next() throws InterruptedException, ExecutionException {
+            if (chunk != null) {
+                chunk.clear();
+                free.add(chunk);
+            }
+            chunk = filled.take();
+            position = 0;
+            if (chunk == END_OF_VOLUME) {
+                chunk = null;
+                // Rethrows the failure of the volume, if any.
+                future.get();
+                return false;
+            }
+            return true;
+        }
+
+        long getDateModified() {
+            return chunk.dateModified[position];
+        }
+
+        long getId() {
+            return chunk.ids[position];
+        }
+    }
+
+    private MediaStoreScanner() {
+    }
+
+    /**
+     * Queries {@code uri} with {@link #PROJECTION} and {@link #SORT_ORDER} and streams the
+     * result to {@code listener}.
+     *
+     * @param resolver  the resolver to query
+     * @param uri       the MediaStore images collection to scan
+     * @param chunkSize the number of rows per callback
+     * @param listener  the listener receiving the rows
+     * @return the number of rows scanned
+     */
+    public static int scan(ContentResolver resolver, Uri uri, int chunkSize,
+            OnChunkScannedListener listener) {
+        Cursor cursor = resolver.query(uri, PROJECTION, null, null, SORT_ORDER);
+        if (!Preconditions.checkNotNull(cursor)) {
+            LogUtil.E(ClassName, "scan() [ERR] cursor is null pointer uri:" + uri);
+            return 0;
+        }
+        try {
+            return scan(cursor, chunkSize, listener);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Streams every row of {@code cursor} with a path to {@code listener}. The cursor must
+     * contain the {@link #PROJECTION} columns; it is not closed by this method.
+     *
+     * @param cursor    the cursor to read
+     * @param chunkSize the number of rows per callback
+     * @param listener  the listener receiving the rows
+     * @return the number of rows passed to the listener
+     */
+    public static int scan(Cursor cursor, int chunkSize, OnChunkScannedListener listener) {
+        return scan(cursor, new MediaChunk(chunkSize), (chunk, last) -> {
+            listener.onChunkScanned(chunk);
+            chunk.clear();
+            return chunk;
+        });
+    }
+
+    /**
+     * Reads every row of {@code cursor} into {@code chunk}, handing each filled chunk and
+     * the trailing partial one to {@code sink}.
+     */
+    private static int scan(Cursor cursor, MediaChunk chunk, ChunkSink sink) {
+        LogUtil.V(ClassName, "scan() [I N] count:" + cursor.getCount());
+        final int idColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media._ID);
+        final int dataColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
+        final int dateColumn = cursor.getColumnIndexOrThrow(
+                MediaStore.Images.Media.DATE_MODIFIED);
+        final int mimeColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.MIME_TYPE);
+        final int widthColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.WIDTH);
+        final int heightColumn = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.HEIGHT);
+
+        int count = 0;
+        int skipped = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            String path = cursor.getString(dataColumn);
+            if (path == null) {
+                // Nothing to show or decode; MediaStore may still be writing the row.
+                skipped++;
+                continue;
+            }
+            chunk.add(cursor.getLong(idColumn),
+                    path,
+                    cursor.getLong(dateColumn),
+                    cursor.getString(mimeColumn),
+                    cursor.getInt(widthColumn),
+                    cursor.getInt(heightColumn));
+            count++;
+            if (chunk.isFull()) {
+                chunk = sink.onChunkFilled(chunk, false);
+                if (chunk == null) {
+                    LogUtil.V(ClassName, "scan() [OUT] stopped count:" + count);
+                    return count;
+                }
+            }
+        }
+        if (chunk.size() > 0) {
+            sink.onChunkFilled(chunk, true);
+        }
+        LogUtil.V(ClassName, "scan() [OUT] count:" + count + " skipped:" + skipped);
+        return count;
+    }
+
+    /**
+     * Scans several volumes in parallel and streams their rows to {@code listener} as one
+     * list in {@link #SORT_ORDER}. Each volume is queried and read on its own worker of
+     * {@code executor}, a few chunks ahead of a k-way merge on the calling thread; the first
+     * merged chunk goes out as soon as every volume has produced its first rows, and the
+     * scan takes about as long as the slowest volume rather than the sum of all volumes.
+     *
+     * @param volumes   one query per volume, each returning a cursor with {@link #PROJECTION}
+     *                  in {@link #SORT_ORDER}, or {@code null}; the cursors are closed here
+     * @param executor  the executor running the volume queries, one worker per volume
+     * @param chunkSize the number of rows per callback
+     * @param listener  the listener receiving the merged rows
+     * @return the number of rows scanned
+     * @throws InterruptedException if interrupted while waiting for the volumes
+     * @throws ExecutionException   if a volume query failed
+     */
+    public static int scanVolumes(List<Callable<Cursor>> volumes, ExecutorService executor,
+            int chunkSize, OnChunkScannedListener listener)
+            throws InterruptedException, ExecutionException {
+        LogUtil.V(ClassName, "scanVolumes() [I N] volumes:" + volumes.size());
+        VolumeStream[] streams = new VolumeStream[volumes.size()];
+        for (int i = 0; i < streams.length; i++) {
+            final Callable<Cursor> volume = volumes.get(i);
+            final VolumeStream stream = new VolumeStream(chunkSize);
+            stream.future = executor.submit(() -> scanVolume(volume, stream));
+            streams[i] = stream;
+        }
+        int count;
+        try {
+            count = merge(streams, chunkSize, listener);
+        } finally {
+            for (VolumeStream stream : streams) {
+                stream.future.cancel(true);
+            }
+        }
+        LogUtil.V(ClassName, "scanVolumes() [OUT] count:" + count);
+        return count;
+    }
+
+    private static int scanVolume(Callable<Cursor> volume, VolumeStream stream)
+            throws Exception {
+        try {
+            Cursor cursor = volume.call();
+            if (!Preconditions.checkNotNull(cursor)) {
+                LogUtil.E(ClassName, "scanVolume() [ERR] cursor is null pointer");
+                return 0;
+            }
+            try {
+                return scan(cursor, stream.free.take(), stream);
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            // Never blocks: the queue has room for every chunk and the end.
+            stream.filled.offer(END_OF_VOLUME);
+        }
+    }
+
+    /**
+     * Merges the volumes into one sorted stream as their chunks arrive. A binary min-heap
+     * holds every volume which still has rows, ordered by its next row.
+     */
+    private static int merge(VolumeStream[] streams, int chunkSize,
+            OnChunkScannedListener listener) throws InterruptedException, ExecutionException {
+        final VolumeStream[] heap = new VolumeStream[streams.length];
+        int heapSize = 0;
+        for (VolumeStream stream : streams) {
+            if (stream.next()) {
+                heap[heapSize++] = stream;
+            }
+        }
+        for (int i = (heapSize / 2) - 1; i >= 0; i--) {
+            siftDown(heap, heapSize, i);
+        }
+
+        MediaChunk chunk = new MediaChunk(chunkSize);
+        int count = 0;
+        while (heapSize > 0) {
+            VolumeStream stream = heap[0];
+            MediaChunk rows = stream.chunk;
+            int position = stream.position++;
+            chunk.add(rows.ids[position], rows.paths[position], rows.dateModified[position],
+                    rows.mimeTypes[position], rows.widths[position], rows.heights[position]);
+            count++;
+            if (chunk.isFull()) {
+                listener.onChunkScanned(chunk);
+                chunk.clear();
+            }
+            if (stream.position == rows.size() && !stream.next()) {
+                heap[0] = heap[--heapSize];
+            }
+            siftDown(heap, heapSize, 0);
+        }
+        if (chunk.size() > 0) {
+            listener.onChunkScanned(chunk);
+            chunk.clear();
+        }
+        return count;
+    }
+
+    private static void siftDown(VolumeStream[] heap, int heapSize, int index) {
+        while (true) {
+            int first = index;
+            int left = (index * 2) + 1;
+            int right = left + 1;
+            if (left < heapSize && comesBefore(heap[left], heap[first])) {
+                first = left;
+            }
+            if (right < heapSize && comesBefore(heap[right], heap[first])) {
+                first = right;
+            }
+            if (first == index) {
+                return;
+            }
+            VolumeStream swap = heap[index];
+            heap[index] = heap[first];
+            heap[first] = swap;
+            index = first;
+        }
+    }
+
+    /** Returns whether the next row of volume a sorts before the next row of volume b. */
+    private static boolean comesBefore(VolumeStream a, VolumeStream b) {
+        long dateA = a.getDateModified();
+        long dateB = b.getDateModified();
+        if (dateA != dateB) {
+            return dateA > dateB;
+        }
+        return a.getId() > b.getId();
+    }
+}
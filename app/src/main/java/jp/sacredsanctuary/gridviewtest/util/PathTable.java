@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact, immutable table of file paths.
+ * <p>
+ * Each distinct directory is stored once as a String; each entry only keeps the id of its
+ * directory and the UTF-8 bytes of its file name in a shared blob. A full path String is
+ * only created when {@link #get(int)} is called. A {@code null} path is kept as an entry
+ * without directory or name.
+ */
+public final class PathTable implements MediaItemStore.PathStore {
+    /** The directory id of a {@code null} path. */
+    private static final int NO_DIRECTORY = -1;
+
+    private final int mSize;
+    private final String[] mDirectories;
+    /** The directory of entry i in {@link #mDirectories}, or {@link #NO_DIRECTORY}. */
+    private final int[] mDirectoryIds;
+    /** Start of the name of entry i in {@link #mNames}; the name ends at entry i + 1. */
+    private final int[] mNameOffsets;
+    private final byte[] mNames;
+
+    private PathTable(int size, String[] directories, int[] directoryIds, int[] nameOffsets,
+            byte[] names) {
+        mSize = size;
+        mDirectories = directories;
+        mDirectoryIds = directoryIds;
+        mNameOffsets = nameOffsets;
+        mNames = names;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the full path of the entry at {@code position}.
+     *
+     * @param position the position of the entry
+     * @return the absolute file path, or {@code null} if a {@code null} path was added
+     */
+    @Override
+    public String get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position:" + position + " size:" + mSize);
+        }
+        if (mDirectoryIds[position] == NO_DIRECTORY) {
+            return null;
+        }
+        int start = mNameOffsets[position];
+        return mDirectories[mDirectoryIds[position]].concat(new String(mNames, start,
+                mNameOffsets[position + 1] - start, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the bytes held by the arrays of the table, at their capacity: 4 per directory
+     * id and name offset, 1 per byte of the names, and 2 per character of the directories.
+     * Object headers and references are not counted.
+     *
+     * @return the payload bytes retained by the table
+     */
+    public long getRetainedBytes() {
+        long bytes = (4L * (mDirectoryIds.length + mNameOffsets.length)) + mNames.length;
+        for (String directory : mDirectories) {
+            if (directory != null) {
+                bytes += 2L * directory.length();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the directory of the entry at {@code position}, including the trailing
+     * separator. The returned String is shared by all entries of that directory.
+     *
+     * @param position the position of the entry
+     * @return the directory of the entry, or {@code null} if a {@code null} path was added
+     */
+    public String getDirectory(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position:" + position + " size:" + mSize);
+        }
+        int directoryId = mDirectoryIds[position];
+        return (directoryId != NO_DIRECTORY) ? mDirectories[directoryId] : null;
+    }
+
+    /**
+     * Appends paths and builds tables from them. Entries can only be appended, so tables
+     * built earlier remain valid and keep seeing only their own entries.
+     */
+    public static final class Builder {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final Map<String, Integer> mDirectoryLookup = new HashMap<>();
+        private String[] mDirectories = new String[16];
+        private int mDirectoryCount;
+        private int[] mDirectoryIds = new int[INITIAL_CAPACITY];
+        private int[] mNameOffsets = new int[INITIAL_CAPACITY + 1];
+        private byte[] mNames = new byte[INITIAL_CAPACITY * 16];
+        private int mSize;
+
+        public int size() {
+            return mSize;
+        }
+
+        /**
+         * Appends {@code path}.
+         *
+         * @param path the absolute file path, or {@code null}
+         * @return this builder
+         */
+        public Builder add(String path) {
+            if (path == null) {
+                return add(null, null, 0, 0);
+            }
+            int slash = path.lastIndexOf('/') + 1;
+            String directory = path.substring(0, slash);
+            byte[] name = path.substring(slash).getBytes(StandardCharsets.UTF_8);
+            return add(directory, name, 0, name.length);
+        }
+
+        /**
+         * Appends the entry at {@code position} of {@code table} without decoding it.
+         *
+         * @param table    the table to copy from
+         * @param position the position of the entry
+         * @return this builder
+         */
+        public Builder add(PathTable table, int position) {
+            int start = table.mNameOffsets[position];
+            return add(table.getDirectory(position), table.mNames, start,
+                    table.mNameOffsets[position + 1] - start);
+        }
+
+        private Builder add(String directory, byte[] name, int offset, int length) {
+            Integer directoryId = (directory != null) ? mDirectoryLookup.get(directory)
+                    : Integer.valueOf(NO_DIRECTORY);
+            if (directoryId == null) {
+                if (mDirectoryCount == mDirectories.length) {
+                    mDirectories = Arrays.copyOf(mDirectories, (mDirectoryCount * 2) + 1);
+                }
+                directoryId = mDirectoryCount;
+                mDirectories[mDirectoryCount++] = directory;
+                mDirectoryLookup.put(directory, directoryId);
+            }
+            if (mSize == mDirectoryIds.length) {
+                // Grow into new arrays; tables built earlier keep the old ones.
+                int capacity = (mSize * 2) + 1;
+                mDirectoryIds = Arrays.copyOf(mDirectoryIds, capacity);
+                mNameOffsets = Arrays.copyOf(mNameOffsets, capacity + 1);
+            }
+            int end = mNameOffsets[mSize];
+            if (end + length > mNames.length) {
+                mNames = Arrays.copyOf(mNames, Math.max(mNames.length * 2, end + length));
+            }
+            if (length > 0) {
+                System.arraycopy(name, offset, mNames, end, length);
+            }
+            mDirectoryIds[mSize] = directoryId;
+            mNameOffsets[mSize + 1] = end + length;
+            mSize++;
+            return this;
+        }
+
+        /**
+         * Releases the spare capacity of the builder. Tables built afterwards retain only
+         * what their entries need; tables built earlier are not affected.
+         *
+         * @return this builder
+         */
+        public Builder trimToSize() {
+            mDirectories = Arrays.copyOf(mDirectories, mDirectoryCount);
+            mDirectoryIds = Arrays.copyOf(mDirectoryIds, mSize);
+            mNameOffsets = Arrays.copyOf(mNameOffsets, mSize + 1);
+            mNames = Arrays.copyOf(mNames, mNameOffsets[mSize]);
+            return this;
+        }
+
+        /**
+         * Returns a table of the entries appended so far.
+         *
+         * @return an immutable table
+         */
+        public PathTable build() {
+            return new PathTable(mSize, mDirectories, mDirectoryIds, mNameOffsets, mNames);
+        }
+    }
+}
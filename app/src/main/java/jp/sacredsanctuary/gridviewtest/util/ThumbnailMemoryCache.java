@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * Process-wide memory cache of decoded thumbnails, bounded by the bytes of their pixels.
+ * <p>
+ * Thumbnails are keyed by MediaStore id and size tier, and remember the
+ * {@code date_modified} they were created for, so an edited image is not served its old
+ * thumbnail. The cache holds a {@link BitmapPool} reference on each thumbnail it keeps and
+ * releases it on eviction, so the bitmap is reused once no cell draws it anymore.
+ * <p>
+ * Eviction follows {@link WTinyLfuCache}: a fling through the library, which binds thousands
+ * of thumbnails once each, does not push out the ones the user keeps coming back to.
+ */
+public final class ThumbnailMemoryCache {
+    private static final String ClassName = ThumbnailMemoryCache.class.getSimpleName();
+    /** Share of the per-app heap limit used by default. */
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+    /**
+     * Share of the budget for the admission window. Recorded scroll traces show this keeps
+     * the hit rate of LRU when scrolling back a little, which a smaller window loses.
+     */
+    private static final int WINDOW_PERCENT = 20;
+    /** Bits of the key holding the size tier. */
+    private static final int TIER_BITS = 2;
+
+    private static final class Entry {
+        final Bitmap bitmap;
+        final long dateModified;
+
+        Entry(Bitmap bitmap, long dateModified) {
+            this.bitmap = bitmap;
+            this.dateModified = dateModified;
+        }
+    }
+
+    private final WTinyLfuCache<Entry> mCache;
+    private final BitmapPool mBitmapPool;
+
+    /**
+     * Creates a cache holding at most {@code maxBytes} of pixels.
+     *
+     * @param maxBytes   the budget of the cache in bytes
+     * @param cellSize   the side of a grid cell in pixels; the number of thumbnails the cache
+     *                   holds is estimated from the size of a cell thumbnail
+     * @param bitmapPool receives the thumbnails evicted from the cache
+     */
+    public ThumbnailMemoryCache(int maxBytes, int cellSize, BitmapPool bitmapPool) {
+        LogUtil.V(ClassName, "ThumbnailMemoryCache() [INF] maxBytes:" + maxBytes
+                + " cellSize:" + cellSize);
+        mBitmapPool = bitmapPool;
+        mCache = new WTinyLfuCache<>(maxBytes, WINDOW_PERCENT,
+                Math.max(1, maxBytes / getTypicalThumbnailBytes(cellSize)),
+                entry -> entry.bitmap.getAllocationByteCount(),
+                (id, entry) -> mBitmapPool.release(entry.bitmap));
+    }
+
+    /**
+     * Returns the bytes of a typical cached thumbnail: a 4:3 photo fit into a cell, in
+     * ARGB_8888.
+     */
+    static int getTypicalThumbnailBytes(int cellSize) {
+        return Math.max(1, cellSize * ((cellSize * 3) / 4) * 4);
+    }
+
+    /**
+     * Returns the default budget: an eighth of the heap limit of the app, as reported by
+     * {@link ActivityManager#getMemoryClass()}.
+     *
+     * @param context the context to use
+     * @return the budget in bytes
+     */
+    public static int getDefaultMaxBytes(Context context) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return (am.getMemoryClass() * 1024 * 1024) / MEMORY_CLASS_DIVISOR;
+    }
+
+    /**
+     * Returns the cached thumbnail of {@code id} with a reference acquired for the caller,
+     * which has to {@link BitmapPool#release(Bitmap) release} it when done.
+     *
+     * @param id           the MediaStore id of the image
+     * @param tier         the size tier, below 4
+     * @param dateModified the {@code date_modified} of the image; older thumbnails are misses
+     * @return the thumbnail, or {@code null} on a miss
+     */
+    public Bitmap get(long id, int tier, long dateModified) {
+        long key = key(id, tier);
+        // Under the lock of the cache, so the thumbnail cannot be evicted to the pool before
+        // the caller holds its reference.
+        synchronized (mCache) {
+            Entry entry = mCache.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.dateModified < dateModified) {
+                mCache.remove(key);
+                return null;
+            }
+            mBitmapPool.acquire(entry.bitmap);
+            return entry.bitmap;
+        }
+    }
+
+    /**
+     * Caches a thumbnail, acquiring a reference on it for as long as it is cached. The
+     * caller keeps its own reference, if it holds one.
+     */
+    public void put(long id, int tier, long dateModified, Bitmap bitmap) {
+        if (bitmap != null) {
+            mBitmapPool.acquire(bitmap);
+            mCache.put(key(id, tier), new Entry(bitmap, dateModified));
+        }
+    }
+
+    /**
+     * Evicts thumbnails until at most {@code maxBytes} remain, the ones in the admission
+     * window first.
+     *
+     * @param maxBytes the bytes to keep, -1 to evict everything
+     */
+    public void trimToSize(int maxBytes) {
+        mCache.trimToWeight(maxBytes);
+        LogUtil.V(ClassName, "trimToSize() [INF] " + this);
+    }
+
+    public void clear() {
+        trimToSize(-1);
+    }
+
+    public int getSizeBytes() {
+        return mCache.weight();
+    }
+
+    public int getMaxBytes() {
+        return mCache.maxWeight();
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /**
+     * Returns the number of thumbnails refused admission to the main region of the cache.
+     */
+    public int getRejectionCount() {
+        return mCache.rejectionCount();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ThumbnailMemoryCache{size:" + getSizeBytes() + "/" + getMaxBytes()
+                + " hits:" + getHitCount() + " misses:" + getMissCount()
+                + " evictions:" + getEvictionCount() + " rejections:" + getRejectionCount() + "}";
+    }
+
+    private static long key(long id, int tier) {
+        return (id << TIER_BITS) | tier;
+    }
+}
@@ -0,0 +1,792 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * Encoded thumbnails packed into a few large segment files, kept across process deaths and
+ * bounded by a size budget.
+ * <p>
+ * Entries are keyed by MediaStore id and size tier, and stored for a {@code date_modified};
+ * a lookup for a newer date is a miss. Each entry is appended to the active segment as a
+ * record: a header repeating its key, date, length and CRC-32, then the encoded bytes.
+ * Segments are memory mapped, and an index file, mapped too, is an open addressing hash
+ * table from key to (segment, offset, length). A lookup is thus one probe of the index and
+ * a slice of a mapping, without a system call.
+ * <p>
+ * Once the segments exceed the budget, the oldest sealed segment is dropped on the executor,
+ * after the entries read since they were written are copied to the active segment; a
+ * segment whose records are mostly dead is compacted the same way. Slices handed out stay
+ * readable after their segment is deleted, since the mapping outlives the file.
+ * <p>
+ * The process is usually killed without notice, so the index is reused as found whenever
+ * its header is valid: every lookup checks the record header against the slot, and the CRC
+ * of the bytes, so a slot torn or gone stale by a crash yields a miss only. Only a missing,
+ * truncated or corrupt index is rebuilt, on the executor, by scanning the segments up to the
+ * first record of each whose header or CRC does not match; lookups miss meanwhile.
+ * <p>
+ * All methods are thread safe; lookups run concurrently with each other.
+ */
+public final class ThumbnailPack {
+    private static final String ClassName = ThumbnailPack.class.getSimpleName();
+    static final String INDEX_FILE = "index";
+    private static final String INDEX_TEMP_FILE = "index.tmp";
+    static final String SEGMENT_PREFIX = "segment_";
+    /** Large enough for thousands of records, small enough to drop one at a time. */
+    static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    /** Record: magic, id, tier, dateModified, length, crc; the bytes follow. */
+    private static final int RECORD_MAGIC = 0x54504b52;
+    static final int RECORD_HEADER_BYTES = 32;
+    private static final int RECORD_ID = 4;
+    private static final int RECORD_TIER = 12;
+    private static final int RECORD_DATE = 16;
+    private static final int RECORD_LENGTH = 24;
+    private static final int RECORD_CRC = 28;
+
+    /** Index header: magic, version, capacity, and 4 bytes unused. */
+    private static final int INDEX_MAGIC = 0x54504b49;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_HEADER_BYTES = 16;
+    private static final int INDEX_CAPACITY = 8;
+    /** Slot: id, dateModified, tier, state, segment, offset, length, accessed. */
+    private static final int SLOT_BYTES = 40;
+    private static final int SLOT_DATE = 8;
+    private static final int SLOT_TIER = 16;
+    private static final int SLOT_STATE = 20;
+    private static final int SLOT_SEGMENT = 24;
+    private static final int SLOT_OFFSET = 28;
+    private static final int SLOT_LENGTH = 32;
+    private static final int SLOT_ACCESSED = 36;
+    private static final int STATE_EMPTY = 0;
+    private static final int STATE_LIVE = 1;
+    private static final int STATE_REMOVED = 2;
+    private static final int MIN_CAPACITY = 4096;
+    /** Dead share of a sealed segment, in percent, beyond which it is compacted. */
+    private static final int MAX_DEAD_PERCENT = 50;
+
+    private static final class Segment {
+        final int number;
+        final MappedByteBuffer buffer;
+        int end;
+        int liveBytes;
+
+        Segment(int number, MappedByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final int mSegmentBytes;
+    private final Executor mExecutor;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    /** Guarded by the write lock, or the read lock for reading. */
+    private final Map<Integer, Segment> mSegments = new HashMap<>();
+    private Segment mActive;
+    private MappedByteBuffer mIndex;
+    private int mCapacity;
+    private int mLiveCount;
+    private int mUsedSlots;
+    private long mTotalBytes;
+    private boolean mCompactionScheduled;
+    /** Set while the index is rebuilt on the executor; compaction waits for it. */
+    private boolean mRebuilding;
+    private boolean mClosed;
+
+    private ThumbnailPack(File directory, long maxBytes, int segmentBytes, Executor executor) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mSegmentBytes = segmentBytes;
+        mExecutor = executor;
+    }
+
+    /**
+     * Opens the pack in {@code directory}, recovering from an earlier crash if needed. Reads
+     * and writes files, so it must not be called on the main thread.
+     *
+     * @param directory the directory of the pack, created if missing
+     * @param maxBytes  the budget of the segments in bytes
+     * @param executor  runs the rebuild of the index and the compaction of the segments
+     * @return the pack
+     * @throws IOException if the directory, the segments or the index cannot be written
+     */
+    public static ThumbnailPack open(File directory, long maxBytes, Executor executor)
+            throws IOException {
+        return open(directory, maxBytes, DEFAULT_SEGMENT_BYTES, executor);
+    }
+
+    static ThumbnailPack open(File directory, long maxBytes, int segmentBytes,
+            Executor executor) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        final ThumbnailPack pack =
+                new ThumbnailPack(directory, maxBytes, segmentBytes, executor);
+        pack.mLock.writeLock().lock();
+        try {
+            pack.openSegments();
+            if (!pack.loadIndex()) {
+                pack.createIndex(MIN_CAPACITY);
+                for (Segment segment : pack.mSegments.values()) {
+                    pack.scanSegment(segment);
+                }
+                pack.mRebuilding = true;
+            }
+            pack.countLiveBytes();
+        } finally {
+            pack.mLock.writeLock().unlock();
+        }
+        LogUtil.V(ClassName, "open() [INF] " + pack);
+        if (pack.mRebuilding) {
+            executor.execute(pack::rebuildIndex);
+        } else {
+            pack.scheduleCompaction();
+        }
+        return pack;
+    }
+
+    /**
+     * Returns the encoded thumbnail of an entry and marks it as used.
+     *
+     * @param id           the MediaStore id of the image
+     * @param tier         the size tier of the thumbnail
+     * @param dateModified the {@code date_modified} of the image; older entries are misses
+     * @return a read-only slice of the mapped segment, or {@code null} on a miss
+     */
+    public ByteBuffer get(long id, int tier, long dateModified) {
+        ByteBuffer bytes;
+        int crc;
+        mLock.readLock().lock();
+        try {
+            if (mClosed) {
+                return null;
+            }
+            int slot = findSlot(id, tier);
+            if (slot < 0 || mIndex.getLong(slot + SLOT_DATE) < dateModified) {
+                return null;
+            }
+            Segment segment = mSegments.get(mIndex.getInt(slot + SLOT_SEGMENT));
+            int offset = mIndex.getInt(slot + SLOT_OFFSET);
+            int length = mIndex.getInt(slot + SLOT_LENGTH);
+            if (segment == null || !isRecord(segment.buffer, offset, id, tier,
+                    mIndex.getLong(slot + SLOT_DATE), length)) {
+                LogUtil.E(ClassName, "get() [ERR] bad record id:" + id + " tier:" + tier);
+                return null;
+            }
+            // A racy store of a flag; concurrent readers may only set it too.
+            mIndex.putInt(slot + SLOT_ACCESSED, 1);
+            crc = segment.buffer.getInt(offset + RECORD_CRC);
+            ByteBuffer view = segment.buffer.duplicate();
+            view.limit(offset + RECORD_HEADER_BYTES + length);
+            view.position(offset + RECORD_HEADER_BYTES);
+            bytes = view.slice();
+        } finally {
+            mLock.readLock().unlock();
+        }
+        if (crc(bytes) != crc) {
+            LogUtil.E(ClassName, "get() [ERR] bad crc id:" + id + " tier:" + tier);
+            return null;
+        }
+        return bytes.asReadOnlyBuffer();
+    }
+
+    /**
+     * Appends an entry, replacing any previous one of the same id and tier.
+     *
+     * @param id           the MediaStore id of the image
+     * @param tier         the size tier of the thumbnail
+     * @param dateModified the {@code date_modified} the thumbnail was created for
+     * @param data         the encoded thumbnail
+     * @return whether the entry was stored
+     */
+    public boolean put(long id, int tier, long dateModified, byte[] data) {
+        if (RECORD_HEADER_BYTES + data.length > mSegmentBytes) {
+            LogUtil.E(ClassName, "put() [ERR] too large:" + data.length);
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        mLock.writeLock().lock();
+        try {
+            if (mClosed) {
+                return false;
+            }
+            int offset = append(id, tier, dateModified, ByteBuffer.wrap(data),
+                    (int) crc.getValue());
+            int previous = findSlot(id, tier);
+            if (previous >= 0) {
+                Segment segment = mSegments.get(mIndex.getInt(previous + SLOT_SEGMENT));
+                if (segment != null) {
+                    segment.liveBytes -=
+                            RECORD_HEADER_BYTES + mIndex.getInt(previous + SLOT_LENGTH);
+                }
+            }
+            putSlot(id, tier, dateModified, mActive.number, offset, data.length);
+            mActive.liveBytes += RECORD_HEADER_BYTES + data.length;
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "put() [ERR] " + e.getMessage());
+            return false;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        scheduleCompaction();
+        return true;
+    }
+
+    /**
+     * Drops or compacts sealed segments until the budget is met and no sealed segment is
+     * mostly dead. Normally run on the executor.
+     */
+    public void compact() {
+        mLock.writeLock().lock();
+        try {
+            mCompactionScheduled = false;
+            if (mClosed || mRebuilding) {
+                return;
+            }
+            List<Integer> sealed = getSealedSegments();
+            for (int number : sealed) {
+                Segment segment = mSegments.get(number);
+                if (mTotalBytes > mMaxBytes) {
+                    evictSegment(segment, true);
+                } else if (isMostlyDead(segment)) {
+                    evictSegment(segment, false);
+                }
+            }
+            LogUtil.V(ClassName, "compact() [INF] " + this);
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "compact() [ERR] " + e.getMessage());
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the segments and the index; the pack misses and stores nothing afterwards. Not
+     * needed for the index to be reused: a pack whose process was killed opens as well.
+     */
+    public void close() {
+        mLock.writeLock().lock();
+        try {
+            if (mClosed) {
+                return;
+            }
+            for (Segment segment : mSegments.values()) {
+                segment.buffer.force();
+            }
+            mIndex.force();
+            mClosed = true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    public long getSizeBytes() {
+        mLock.readLock().lock();
+        try {
+            return mTotalBytes;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public int getEntryCount() {
+        mLock.readLock().lock();
+        try {
+            return mLiveCount;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        mLock.readLock().lock();
+        try {
+            return mSegments.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        mLock.readLock().lock();
+        try {
+            return "ThumbnailPack{entries:" + mLiveCount + " segments:" + mSegments.size()
+                    + " size:" + mTotalBytes + "/" + mMaxBytes + "}";
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    // Segments.
+
+    private void openSegments() throws IOException {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX)) {
+                    try {
+                        int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+                        mSegments.put(number, new Segment(number, map(file, mSegmentBytes)));
+                    } catch (NumberFormatException e) {
+                        deleteFile(file);
+                    }
+                } else if (!INDEX_FILE.equals(name)) {
+                    deleteFile(file);
+                }
+            }
+        }
+        if (mSegments.isEmpty()) {
+            createSegment(0);
+        }
+        int last = Collections.max(mSegments.keySet());
+        mActive = mSegments.get(last);
+    }
+
+    private void createSegment(int number) throws IOException {
+        File file = new File(mDirectory, SEGMENT_PREFIX + number);
+        Segment segment = new Segment(number, map(file, mSegmentBytes));
+        mSegments.put(number, segment);
+        mActive = segment;
+    }
+
+    /**
+     * Finds the end of the records of a segment: after the last one with a complete header,
+     * as the magic is written last.
+     */
+    private void scanSegment(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + RECORD_HEADER_BYTES <= mSegmentBytes
+                && buffer.getInt(offset) == RECORD_MAGIC) {
+            int length = buffer.getInt(offset + RECORD_LENGTH);
+            if (length < 0 || length > mSegmentBytes - offset - RECORD_HEADER_BYTES) {
+                break;
+            }
+            offset += RECORD_HEADER_BYTES + length;
+        }
+        segment.end = offset;
+        mTotalBytes += offset;
+    }
+
+    /** Appends a record to the active segment, rolling it first if full. */
+    private int append(long id, int tier, long dateModified, ByteBuffer data, int crc)
+            throws IOException {
+        int length = data.remaining();
+        if (mActive.end + RECORD_HEADER_BYTES + length > mSegmentBytes) {
+            mActive.buffer.force();
+            createSegment(mActive.number + 1);
+        }
+        ByteBuffer buffer = mActive.buffer;
+        int offset = mActive.end;
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + RECORD_HEADER_BYTES);
+        view.put(data);
+        buffer.putLong(offset + RECORD_ID, id);
+        buffer.putInt(offset + RECORD_TIER, tier);
+        buffer.putLong(offset + RECORD_DATE, dateModified);
+        buffer.putInt(offset + RECORD_LENGTH, length);
+        buffer.putInt(offset + RECORD_CRC, crc);
+        // Last, so a record is never seen before it is complete.
+        buffer.putInt(offset, RECORD_MAGIC);
+        mActive.end += RECORD_HEADER_BYTES + length;
+        mTotalBytes += RECORD_HEADER_BYTES + length;
+        return offset;
+    }
+
+    private List<Integer> getSealedSegments() {
+        List<Integer> sealed = new ArrayList<>(mSegments.keySet());
+        sealed.remove(Integer.valueOf(mActive.number));
+        Collections.sort(sealed);
+        return sealed;
+    }
+
+    private boolean isMostlyDead(Segment segment) {
+        return (long) (segment.end - segment.liveBytes) * 100
+                > (long) segment.end * MAX_DEAD_PERCENT;
+    }
+
+    /**
+     * Deletes a sealed segment after copying its live entries to the active segment; only
+     * the entries read since they were written if {@code accessedOnly}.
+     */
+    private void evictSegment(Segment segment, boolean accessedOnly) throws IOException {
+        int copied = 0;
+        int dropped = 0;
+        for (int slot = INDEX_HEADER_BYTES; slot < indexBytes(mCapacity); slot += SLOT_BYTES) {
+            if (mIndex.getInt(slot + SLOT_STATE) != STATE_LIVE
+                    || mIndex.getInt(slot + SLOT_SEGMENT) != segment.number) {
+                continue;
+            }
+            if (accessedOnly && mIndex.getInt(slot + SLOT_ACCESSED) == 0) {
+                mIndex.putInt(slot + SLOT_STATE, STATE_REMOVED);
+                mLiveCount--;
+                dropped++;
+                continue;
+            }
+            int offset = mIndex.getInt(slot + SLOT_OFFSET);
+            int length = mIndex.getInt(slot + SLOT_LENGTH);
+            ByteBuffer data = segment.buffer.duplicate();
+            data.limit(offset + RECORD_HEADER_BYTES + length);
+            data.position(offset + RECORD_HEADER_BYTES);
+            int newOffset = append(mIndex.getLong(slot), mIndex.getInt(slot + SLOT_TIER),
+                    mIndex.getLong(slot + SLOT_DATE), data,
+                    segment.buffer.getInt(offset + RECORD_CRC));
+            mIndex.putInt(slot + SLOT_SEGMENT, mActive.number);
+            mIndex.putInt(slot + SLOT_OFFSET, newOffset);
+            mIndex.putInt(slot + SLOT_ACCESSED, 0);
+            mActive.liveBytes += RECORD_HEADER_BYTES + length;
+            copied++;
+        }
+        mActive.buffer.force();
+        mSegments.remove(segment.number);
+        mTotalBytes -= segment.end;
+        deleteFile(new File(mDirectory, SEGMENT_PREFIX + segment.number));
+        LogUtil.V(ClassName, "evictSegment() [INF] segment:" + segment.number
+                + " copied:" + copied + " dropped:" + dropped);
+    }
+
+    private void scheduleCompaction() {
+        mLock.writeLock().lock();
+        try {
+            if (mCompactionScheduled || mClosed || mRebuilding || !needsCompaction()) {
+                return;
+            }
+            mCompactionScheduled = true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        mExecutor.execute(this::compact);
+    }
+
+    private boolean needsCompaction() {
+        for (int number : getSealedSegments()) {
+            if (mTotalBytes > mMaxBytes || isMostlyDead(mSegments.get(number))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Index.
+
+    /**
+     * Maps the index if its header is valid; its slots are checked against the records at
+     * each lookup.
+     */
+    private boolean loadIndex() throws IOException {
+        File file = new File(mDirectory, INDEX_FILE);
+        long length = file.length();
+        if (length < INDEX_HEADER_BYTES) {
+            return false;
+        }
+        MappedByteBuffer index = map(file, (int) Math.min(length, Integer.MAX_VALUE));
+        int capacity = index.getInt(INDEX_CAPACITY);
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != INDEX_VERSION
+                || capacity < MIN_CAPACITY || Integer.bitCount(capacity) != 1
+                || length != indexBytes(capacity)) {
+            LogUtil.E(ClassName, "loadIndex() [ERR] index invalid, rebuilding");
+            return false;
+        }
+        mIndex = index;
+        mCapacity = capacity;
+        for (int slot = INDEX_HEADER_BYTES; slot < length; slot += SLOT_BYTES) {
+            int state = mIndex.getInt(slot + SLOT_STATE);
+            if (state == STATE_LIVE) {
+                mLiveCount++;
+            }
+            if (state != STATE_EMPTY) {
+                mUsedSlots++;
+            }
+        }
+        for (Segment segment : mSegments.values()) {
+            scanSegment(segment);
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the records of the segments, oldest segment first, into the empty index
+     * created by {@link #open}. Takes the write lock one segment at a time, so lookups and
+     * stores go on in between; a record never replaces a newer one stored meanwhile.
+     */
+    private void rebuildIndex() {
+        List<Integer> numbers;
+        mLock.readLock().lock();
+        try {
+            numbers = new ArrayList<>(mSegments.keySet());
+        } finally {
+            mLock.readLock().unlock();
+        }
+        Collections.sort(numbers);
+        for (int number : numbers) {
+            mLock.writeLock().lock();
+            try {
+                Segment segment = mSegments.get(number);
+                if (mClosed) {
+                    return;
+                }
+                if (segment != null) {
+                    indexSegment(segment);
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+        mLock.writeLock().lock();
+        try {
+            mRebuilding = false;
+            LogUtil.V(ClassName, "rebuildIndex() [INF] " + this);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        scheduleCompaction();
+    }
+
+    /** Indexes the records of a segment up to the first invalid one. */
+    private void indexSegment(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + RECORD_HEADER_BYTES <= segment.end
+                && buffer.getInt(offset) == RECORD_MAGIC) {
+            int length = buffer.getInt(offset + RECORD_LENGTH);
+            if (length < 0 || length > segment.end - offset - RECORD_HEADER_BYTES) {
+                break;
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.limit(offset + RECORD_HEADER_BYTES + length);
+            view.position(offset + RECORD_HEADER_BYTES);
+            if (crc(view) != buffer.getInt(offset + RECORD_CRC)) {
+                LogUtil.E(ClassName, "indexSegment() [ERR] bad crc segment:"
+                        + segment.number + " offset:" + offset);
+                break;
+            }
+            long id = buffer.getLong(offset + RECORD_ID);
+            int tier = buffer.getInt(offset + RECORD_TIER);
+            int previous = findSlot(id, tier);
+            if (previous < 0 || !isAfter(previous, segment.number, offset)) {
+                if (previous >= 0) {
+                    Segment old = mSegments.get(mIndex.getInt(previous + SLOT_SEGMENT));
+                    if (old != null) {
+                        old.liveBytes -=
+                                RECORD_HEADER_BYTES + mIndex.getInt(previous + SLOT_LENGTH);
+                    }
+                }
+                putSlot(id, tier, buffer.getLong(offset + RECORD_DATE), segment.number,
+                        offset, length);
+                segment.liveBytes += RECORD_HEADER_BYTES + length;
+            }
+            offset += RECORD_HEADER_BYTES + length;
+        }
+    }
+
+    /** Whether the record of a slot was appended after the given position. */
+    private boolean isAfter(int slot, int segmentNumber, int offset) {
+        int slotSegment = mIndex.getInt(slot + SLOT_SEGMENT);
+        return (slotSegment != segmentNumber) ? (slotSegment > segmentNumber)
+                : (mIndex.getInt(slot + SLOT_OFFSET) > offset);
+    }
+
+    private void createIndex(int capacity) throws IOException {
+        File temp = new File(mDirectory, INDEX_TEMP_FILE);
+        deleteFile(temp);
+        MappedByteBuffer index = map(temp, indexBytes(capacity));
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, INDEX_VERSION);
+        index.putInt(INDEX_CAPACITY, capacity);
+        MappedByteBuffer old = mIndex;
+        int oldCapacity = mCapacity;
+        mIndex = index;
+        mCapacity = capacity;
+        mLiveCount = 0;
+        mUsedSlots = 0;
+        if (old != null) {
+            for (int slot = INDEX_HEADER_BYTES; slot < indexBytes(oldCapacity);
+                    slot += SLOT_BYTES) {
+                if (old.getInt(slot + SLOT_STATE) == STATE_LIVE) {
+                    int newSlot = putSlot(old.getLong(slot), old.getInt(slot + SLOT_TIER),
+                            old.getLong(slot + SLOT_DATE), old.getInt(slot + SLOT_SEGMENT),
+                            old.getInt(slot + SLOT_OFFSET), old.getInt(slot + SLOT_LENGTH));
+                    mIndex.putInt(newSlot + SLOT_ACCESSED, old.getInt(slot + SLOT_ACCESSED));
+                }
+            }
+        }
+        mIndex.force();
+        if (!temp.renameTo(new File(mDirectory, INDEX_FILE))) {
+            throw new IOException("cannot replace the index");
+        }
+    }
+
+    private void countLiveBytes() {
+        for (Segment segment : mSegments.values()) {
+            segment.liveBytes = 0;
+        }
+        for (int slot = INDEX_HEADER_BYTES; slot < indexBytes(mCapacity); slot += SLOT_BYTES) {
+            if (mIndex.getInt(slot + SLOT_STATE) == STATE_LIVE) {
+                Segment segment = mSegments.get(mIndex.getInt(slot + SLOT_SEGMENT));
+                if (segment != null) {
+                    segment.liveBytes += RECORD_HEADER_BYTES + mIndex.getInt(slot + SLOT_LENGTH);
+                }
+            }
+        }
+    }
+
+    /** Returns the slot of a live entry, or -1. */
+    private int findSlot(long id, int tier) {
+        int mask = mCapacity - 1;
+        for (int i = hash(id, tier) & mask, probes = 0; probes < mCapacity;
+                i = (i + 1) & mask, probes++) {
+            int slot = INDEX_HEADER_BYTES + (i * SLOT_BYTES);
+            int state = mIndex.getInt(slot + SLOT_STATE);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            if (state == STATE_LIVE && mIndex.getLong(slot) == id
+                    && mIndex.getInt(slot + SLOT_TIER) == tier) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Points the slot of an entry at a record, replacing any previous one. The live bytes of
+     * the segments are left to the caller.
+     */
+    private int putSlot(long id, int tier, long dateModified, int segmentNumber, int offset,
+            int length) {
+        int slot = findSlot(id, tier);
+        if (slot < 0) {
+            if ((mUsedSlots + 1) * 2 > mCapacity) {
+                growIndex();
+            }
+            slot = findFreeSlot(id, tier);
+            if (mIndex.getInt(slot + SLOT_STATE) == STATE_EMPTY) {
+                mUsedSlots++;
+            }
+            mLiveCount++;
+        }
+        mIndex.putLong(slot, id);
+        mIndex.putLong(slot + SLOT_DATE, dateModified);
+        mIndex.putInt(slot + SLOT_TIER, tier);
+        mIndex.putInt(slot + SLOT_SEGMENT, segmentNumber);
+        mIndex.putInt(slot + SLOT_OFFSET, offset);
+        mIndex.putInt(slot + SLOT_LENGTH, length);
+        mIndex.putInt(slot + SLOT_ACCESSED, 0);
+        mIndex.putInt(slot + SLOT_STATE, STATE_LIVE);
+        return slot;
+    }
+
+    private int findFreeSlot(long id, int tier) {
+        int mask = mCapacity - 1;
+        int i = hash(id, tier) & mask;
+        while (true) {
+            int slot = INDEX_HEADER_BYTES + (i * SLOT_BYTES);
+            if (mIndex.getInt(slot + SLOT_STATE) != STATE_LIVE) {
+                return slot;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /** Rewrites the index at twice the capacity, or the same one if removed slots dominate. */
+    private void growIndex() {
+        int capacity = (mLiveCount * 4 > mCapacity) ? mCapacity * 2 : mCapacity;
+        try {
+            createIndex(capacity);
+        } catch (IOException e) {
+            // Keep probing the full table; lookups only get slower.
+            LogUtil.E(ClassName, "growIndex() [ERR] " + e.getMessage());
+        }
+    }
+
+    // Helpers.
+
+    private static int indexBytes(int capacity) {
+        return INDEX_HEADER_BYTES + (capacity * SLOT_BYTES);
+    }
+
+    private static int hash(long id, int tier) {
+        long hash = (id * 31 + tier) * 0x9e3779b97f4a7c15L;
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    private static boolean isRecord(ByteBuffer buffer, int offset, long id, int tier,
+            long dateModified, int length) {
+        return offset >= 0 && offset + RECORD_HEADER_BYTES + length <= buffer.capacity()
+                && buffer.getInt(offset) == RECORD_MAGIC
+                && buffer.getLong(offset + RECORD_ID) == id
+                && buffer.getInt(offset + RECORD_TIER) == tier
+                && buffer.getLong(offset + RECORD_DATE) == dateModified
+                && buffer.getInt(offset + RECORD_LENGTH) == length;
+    }
+
+    /** CRC-32 of the remaining bytes; CRC32.update(ByteBuffer) needs API level 26. */
+    private static int crc(ByteBuffer bytes) {
+        ByteBuffer view = bytes.duplicate();
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[Math.min(8192, Math.max(1, view.remaining()))];
+        while (view.hasRemaining()) {
+            int n = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            LogUtil.E(ClassName, "deleteFile() [ERR] cannot delete:" + file);
+        }
+    }
+}
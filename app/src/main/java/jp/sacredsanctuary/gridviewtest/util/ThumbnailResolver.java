@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.util.LruCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.common.util.Preconditions;
+
+/**
+ * Finds the thumbnail files MediaStore already created, for a whole screen of images at once.
+ * <p>
+ * The adapter announces every id it binds with {@link #request(long)}. The first lookup
+ * which misses the cache then resolves all ids announced so far with a single
+ * {@code image_id IN (...)} query, so a screen costs one provider round trip instead of one
+ * per cell. Ids without a thumbnail on disk are remembered as such, and only those have to
+ * be generated.
+ */
+public final class ThumbnailResolver {
+    private static final String ClassName = ThumbnailResolver.class.getSimpleName();
+    /** Ids per query; stays below the SQLite limit of 999 host parameters. */
+    static final int MAX_BATCH_SIZE = 500;
+    /** Resolved ids kept; several screens of the grid. */
+    private static final int CACHE_SIZE = 4096;
+    /** Cached for ids without a thumbnail on disk. */
+    private static final String NO_THUMBNAIL = "";
+
+    private static final String[] PROJECTION = {
+            MediaStore.Images.Thumbnails.IMAGE_ID,
+            MediaStore.Images.Thumbnails.DATA,
+    };
+
+    private final ContentResolver mResolver;
+    private final LruCache<Long, String> mPaths = new LruCache<>(CACHE_SIZE);
+    /** Ids announced but not resolved yet, oldest first; guarded by itself. */
+    private final Set<Long> mPending = new LinkedHashSet<>();
+
+    public ThumbnailResolver(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Announces that the thumbnail of {@code id} will be needed soon. Cheap enough to be
+     * called on the main thread for every bound cell.
+     *
+     * @param id the MediaStore id of the image
+     */
+    public void request(long id) {
+        if (mPaths.get(id) != null) {
+            return;
+        }
+        synchronized (mPending) {
+            mPending.add(id);
+            if (mPending.size() > MAX_BATCH_SIZE) {
+                // Cells bound long ago have scrolled away; keep the most recent ones.
+                Iterator<Long> oldest = mPending.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the thumbnail file of {@code id}, resolving the pending ids along
+     * with it if needed. Must not be called on the main thread.
+     *
+     * @param id the MediaStore id of the image
+     * @return the path of the thumbnail file, or {@code null} if none exists yet
+     */
+    public String resolve(long id) {
+        String path = mPaths.get(id);
+        if (path == null) {
+            long[] batch;
+            synchronized (mPending) {
+                mPending.remove(id);
+                batch = new long[mPending.size() + 1];
+                int n = 0;
+                batch[n++] = id;
+                for (Long pending : mPending) {
+                    batch[n++] = pending;
+                }
+                mPending.clear();
+            }
+            resolveBatch(batch);
+            path = mPaths.get(id);
+        }
+        return (path == null || NO_THUMBNAIL.equals(path)) ? null : path;
+    }
+
+    /**
+     * Forgets that {@code id} has no thumbnail on disk, once one has been generated.
+     *
+     * @param id the MediaStore id of the image
+     */
+    public void invalidate(long id) {
+        mPaths.remove(id);
+    }
+
+    public void clear() {
+        mPaths.evictAll();
+        synchronized (mPending) {
+            mPending.clear();
+        }
+    }
+
+    private void resolveBatch(long[] ids) {
+        for (int start = 0; start < ids.length; start += MAX_BATCH_SIZE) {
+            int end = Math.min(ids.length, start + MAX_BATCH_SIZE);
+            queryBatch(ids, start, end);
+        }
+    }
+
+    private void queryBatch(long[] ids, int start, int end) {
+        StringBuilder selection = new StringBuilder(MediaStore.Images.Thumbnails.KIND)
+                .append(" = ? AND ").append(MediaStore.Images.Thumbnails.IMAGE_ID)
+                .append(" IN (");
+        String[] selectionArgs = new String[1 + end - start];
+        selectionArgs[0] = String.valueOf(MediaStore.Images.Thumbnails.MINI_KIND);
+        for (int i = start; i < end; i++) {
+            selection.append((i == start) ? "?" : ",?");
+            selectionArgs[1 + i - start] = String.valueOf(ids[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = mResolver.query(MediaStore.Images.Thumbnails.EXTERNAL_CONTENT_URI,
+                PROJECTION, selection.toString(), selectionArgs, null);
+        if (!Preconditions.checkNotNull(cursor)) {
+            LogUtil.E(ClassName, "queryBatch() [ERR] cursor is null pointer");
+            return;
+        }
+        int found = 0;
+        try {
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(1);
+                if (!Preconditions.isEmpty(path)) {
+                    mPaths.put(cursor.getLong(0), path);
+                    found++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        for (int i = start; i < end; i++) {
+            if (mPaths.get(ids[i]) == null) {
+                mPaths.put(ids[i], NO_THUMBNAIL);
+            }
+        }
+        LogUtil.V(ClassName, "queryBatch() [INF] ids:" + (end - start) + " found:" + found);
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jp.sacredsanctuary.common.util.LogUtil;
+
+/**
+ * Thumbnails of one size tier stored as raw pixels in a memory mapped file, so loading one
+ * is a copy instead of a decode.
+ * <p>
+ * The file is an array of fixed-size slots, each holding the pixels of one thumbnail of at
+ * most the tier's dimensions, in landscape or portrait orientation, behind a small header
+ * with its id, {@code date_modified} and dimensions. A thumbnail can only live in the slot
+ * its id hashes to, so there is no index to maintain and a newer thumbnail simply overwrites
+ * an older one in the same slot. A slot is marked invalid while it is written, so one torn
+ * by a crash reads as empty.
+ * <p>
+ * All methods are thread safe. Slots are guarded by striped read-write locks; readers of
+ * different slots, and of the same slot, do not block each other.
+ */
+public final class ThumbnailSlab {
+    private static final String ClassName = ThumbnailSlab.class.getSimpleName();
+    /** File header: magic, version, slot bytes, slot count. */
+    private static final int FILE_MAGIC = 0x54534c42;
+    private static final int FILE_VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 16;
+    /** Slot header: state, id, dateModified, width, height, length; the pixels follow. */
+    private static final int SLOT_HEADER_BYTES = 32;
+    private static final int SLOT_ID = 4;
+    private static final int SLOT_DATE = 12;
+    private static final int SLOT_WIDTH = 20;
+    private static final int SLOT_HEIGHT = 24;
+    private static final int SLOT_LENGTH = 28;
+    private static final int STATE_VALID = 0x56414c44;
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Copies the pixels of a thumbnail out of its slot; the buffer is only valid during the
+     * call.
+     */
+    public interface PixelReader {
+        void readPixels(int width, int height, ByteBuffer pixels);
+    }
+
+    /**
+     * Copies the pixels of a thumbnail into its slot.
+     */
+    public interface PixelWriter {
+        void writePixels(ByteBuffer pixels);
+    }
+
+    private final MappedByteBuffer mSlab;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mBytesPerPixel;
+    private final int mSlotBytes;
+    private final int mSlotCount;
+    private final ReentrantReadWriteLock[] mLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    private ThumbnailSlab(MappedByteBuffer slab, int width, int height, int bytesPerPixel,
+            int slotBytes, int slotCount) {
+        mSlab = slab;
+        mWidth = width;
+        mHeight = height;
+        mBytesPerPixel = bytesPerPixel;
+        mSlotBytes = slotBytes;
+        mSlotCount = slotCount;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Opens the slab in {@code file}, discarding its contents if it was created with another
+     * geometry. Must not be called on the main thread.
+     *
+     * @param file          the slab file
+     * @param width         the largest width of a landscape thumbnail of the tier
+     * @param height        the largest height of a landscape thumbnail of the tier
+     * @param bytesPerPixel 4 for ARGB_8888 pixels, 2 for RGB_565
+     * @param slotCount     the number of thumbnails the slab holds at most
+     * @return the slab
+     * @throws IOException if the file cannot be mapped
+     */
+    public static ThumbnailSlab open(File file, int width, int height, int bytesPerPixel,
+            int slotCount) throws IOException {
+        int slotBytes = SLOT_HEADER_BYTES + (width * height * bytesPerPixel);
+        long size = FILE_HEADER_BYTES + ((long) slotBytes * slotCount);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("slab too large:" + size);
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer slab;
+        try {
+            if (raf.length() != size) {
+                raf.setLength(0);
+            }
+            slab = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+        if (slab.getInt(0) != FILE_MAGIC || slab.getInt(4) != FILE_VERSION
+                || slab.getInt(8) != slotBytes || slab.getInt(12) != slotCount) {
+            LogUtil.V(ClassName, "open() [INF] new slab:" + file);
+            for (int slot = 0; slot < slotCount; slot++) {
+                slab.putInt(FILE_HEADER_BYTES + (slot * slotBytes), 0);
+            }
+            slab.putInt(4, FILE_VERSION);
+            slab.putInt(8, slotBytes);
+            slab.putInt(12, slotCount);
+            slab.putInt(0, FILE_MAGIC);
+        }
+        return new ThumbnailSlab(slab, width, height, bytesPerPixel, slotBytes, slotCount);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Whether a thumbnail of these dimensions fits into a slot. The slots hold the pixels of
+     * the tier's dimensions, so a portrait thumbnail of the transposed dimensions fits too.
+     */
+    public boolean fits(int width, int height) {
+        return width > 0 && height > 0
+                && Math.max(width, height) <= Math.max(mWidth, mHeight)
+                && Math.min(width, height) <= Math.min(mWidth, mHeight);
+    }
+
+    /**
+     * Passes the pixels of a thumbnail to {@code reader}.
+     *
+     * @param id           the MediaStore id of the image
+     * @param dateModified the {@code date_modified} of the image; older thumbnails are misses
+     * @param reader       copies the pixels
+     * @return whether the thumbnail was found and passed to {@code reader}
+     */
+    public boolean get(long id, long dateModified, PixelReader reader) {
+        int index = slotIndex(id);
+        int slot = FILE_HEADER_BYTES + (index * mSlotBytes);
+        ReentrantReadWriteLock lock = mLocks[index % LOCK_STRIPES];
+        lock.readLock().lock();
+        try {
+            if (mSlab.getInt(slot) != STATE_VALID || mSlab.getLong(slot + SLOT_ID) != id
+                    || mSlab.getLong(slot + SLOT_DATE) < dateModified) {
+                return false;
+            }
+            ByteBuffer pixels = mSlab.duplicate();
+            pixels.limit(slot + SLOT_HEADER_BYTES + mSlab.getInt(slot + SLOT_LENGTH));
+            pixels.position(slot + SLOT_HEADER_BYTES);
+            reader.readPixels(mSlab.getInt(slot + SLOT_WIDTH), mSlab.getInt(slot + SLOT_HEIGHT),
+                    pixels.slice());
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the pixels of a thumbnail, replacing whatever occupied its slot.
+     *
+     * @param id           the MediaStore id of the image
+     * @param dateModified the {@code date_modified} the thumbnail was created for
+     * @param width        the width of the thumbnail
+     * @param height       the height of the thumbnail
+     * @param writer       copies the pixels, {@code width * height * bytesPerPixel} bytes
+     * @return whether the thumbnail was stored
+     */
+    public boolean put(long id, long dateModified, int width, int height, PixelWriter writer) {
+        if (!fits(width, height)) {
+            return false;
+        }
+        int length = width * height * mBytesPerPixel;
+        int index = slotIndex(id);
+        int slot = FILE_HEADER_BYTES + (index * mSlotBytes);
+        ReentrantReadWriteLock lock = mLocks[index % LOCK_STRIPES];
+        lock.writeLock().lock();
+        try {
+            mSlab.putInt(slot, 0);
+            ByteBuffer pixels = mSlab.duplicate();
+            pixels.limit(slot + SLOT_HEADER_BYTES + length);
+            pixels.position(slot + SLOT_HEADER_BYTES);
+            ByteBuffer target = pixels.slice();
+            writer.writePixels(target);
+            if (target.position() != length) {
+                LogUtil.E(ClassName, "put() [ERR] wrote " + target.position() + " of "
+                        + length + " bytes, id:" + id);
+                return false;
+            }
+            mSlab.putLong(slot + SLOT_ID, id);
+            mSlab.putLong(slot + SLOT_DATE, dateModified);
+            mSlab.putInt(slot + SLOT_WIDTH, width);
+            mSlab.putInt(slot + SLOT_HEIGHT, height);
+            mSlab.putInt(slot + SLOT_LENGTH, length);
+            mSlab.putInt(slot, STATE_VALID);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Invalidates every slot.
+     */
+    public void clear() {
+        for (int index = 0; index < mSlotCount; index++) {
+            ReentrantReadWriteLock lock = mLocks[index % LOCK_STRIPES];
+            lock.writeLock().lock();
+            try {
+                mSlab.putInt(FILE_HEADER_BYTES + (index * mSlotBytes), 0);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private int slotIndex(long id) {
+        long hash = id * 0x9e3779b97f4a7c15L;
+        return (int) ((hash >>> 32) % mSlotCount);
+    }
+}
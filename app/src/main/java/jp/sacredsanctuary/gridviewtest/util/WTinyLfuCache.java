@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A weight-bounded cache keyed by {@code long} with a W-TinyLFU eviction policy.
+ * <p>
+ * New entries enter a small LRU admission window. An entry falling out of the window is
+ * only admitted to the main region if a {@link FrequencySketch} estimates it was accessed at
+ * least as often as the entry it would evict; otherwise the newcomer is dropped. The main
+ * region is a segmented LRU: entries hit while on probation move to the protected segment,
+ * whose overflow moves back to probation. A fling through thousands of images, each seen
+ * once, thus only churns the window, while the images the user keeps returning to stay.
+ * <p>
+ * All methods are thread safe.
+ *
+ * @param <V> the type of the values
+ */
+public final class WTinyLfuCache<V> {
+    /** Share of the main region reserved for the protected segment, in percent. */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * Returns the weight of a value, for example its size in bytes.
+     */
+    public interface Weigher<V> {
+        int weigh(V value);
+    }
+
+    /**
+     * Notified, under the lock of the cache, of every value leaving it: evicted, refused
+     * admission, removed or replaced.
+     */
+    public interface RemovalListener<V> {
+        void onRemoved(long key, V value);
+    }
+
+    private static final class Node<V> {
+        final long key;
+        final V value;
+        final int weight;
+
+        Node(long key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final Weigher<V> mWeigher;
+    private final RemovalListener<V> mRemovalListener;
+    private final FrequencySketch mSketch;
+    private final int mMaxWeight;
+    private final int mWindowMaxWeight;
+    private final int mProtectedMaxWeight;
+    /** Segments in LRU order, least recently used first. */
+    private final LinkedHashMap<Long, Node<V>> mWindow = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, Node<V>> mProbation = new LinkedHashMap<>();
+    private final LinkedHashMap<Long, Node<V>> mProtected = new LinkedHashMap<>();
+    private int mWindowWeight;
+    private int mProbationWeight;
+    private int mProtectedWeight;
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+    private int mRejectionCount;
+
+    /**
+     * @param maxWeight       the total weight the cache holds at most
+     * @param windowPercent   the share of {@code maxWeight} for the admission window
+     * @param expectedEntries the number of entries the cache holds about; sizes the sketch
+     * @param weigher         weighs the values
+     */
+    public WTinyLfuCache(int maxWeight, int windowPercent, int expectedEntries,
+            Weigher<V> weigher) {
+        this(maxWeight, windowPercent, expectedEntries, weigher, null);
+    }
+
+    /**
+     * @param maxWeight       the total weight the cache holds at most
+     * @param windowPercent   the share of {@code maxWeight} for the admission window
+     * @param expectedEntries the number of entries the cache holds about; sizes the sketch
+     * @param weigher         weighs the values
+     * @param removalListener notified of values leaving the cache, or {@code null}
+     */
+    public WTinyLfuCache(int maxWeight, int windowPercent, int expectedEntries,
+            Weigher<V> weigher, RemovalListener<V> removalListener) {
+        if (maxWeight <= 0 || windowPercent < 0 || windowPercent > 100) {
+            throw new IllegalArgumentException("maxWeight:" + maxWeight
+                    + " windowPercent:" + windowPercent);
+        }
+        mWeigher = weigher;
+        mRemovalListener = removalListener;
+        mSketch = new FrequencySketch(expectedEntries);
+        mMaxWeight = maxWeight;
+        mWindowMaxWeight = (int) (((long) maxWeight * windowPercent) / 100);
+        mProtectedMaxWeight =
+                (int) (((long) (maxWeight - mWindowMaxWeight) * PROTECTED_PERCENT) / 100);
+    }
+
+    /**
+     * Returns the value of {@code key} and records the access.
+     *
+     * @param key the key
+     * @return the value, or {@code null} on a miss
+     */
+    public synchronized V get(long key) {
+        mSketch.increment(key);
+        Node<V> node = mWindow.remove(key);
+        if (node != null) {
+            mWindow.put(key, node);
+        } else if ((node = mProtected.remove(key)) != null) {
+            mProtected.put(key, node);
+        } else if ((node = mProbation.remove(key)) != null) {
+            mProbationWeight -= node.weight;
+            mProtected.put(key, node);
+            mProtectedWeight += node.weight;
+            demoteProtected();
+        } else {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return node.value;
+    }
+
+    /**
+     * Stores {@code value} for {@code key}, replacing any previous value. The access is not
+     * recorded, since the caller is expected to have missed with {@link #get(long)} before.
+     * A value heavier than the whole cache is not stored; it is passed to the removal
+     * listener right away.
+     *
+     * @param key   the key
+     * @param value the value
+     */
+    public synchronized void put(long key, V value) {
+        remove(key);
+        int weight = mWeigher.weigh(value);
+        if (weight > mMaxWeight) {
+            notifyRemoved(key, value);
+            return;
+        }
+        mWindow.put(key, new Node<>(key, value, weight));
+        mWindowWeight += weight;
+        evictFromWindow();
+    }
+
+    /**
+     * Removes the value of {@code key}.
+     *
+     * @param key the key
+     * @return the removed value, or {@code null} if there was none
+     */
+    public synchronized V remove(long key) {
+        Node<V> node = mWindow.remove(key);
+        if (node != null) {
+            mWindowWeight -= node.weight;
+        } else if ((node = mProbation.remove(key)) != null) {
+            mProbationWeight -= node.weight;
+        } else if ((node = mProtected.remove(key)) != null) {
+            mProtectedWeight -= node.weight;
+        }
+        if (node == null) {
+            return null;
+        }
+        notifyRemoved(key, node.value);
+        return node.value;
+    }
+
+    /**
+     * Evicts entries until at most {@code maxWeight} remains: the window first, then
+     * probation, then the protected segment, each least recently used first.
+     *
+     * @param maxWeight the weight to keep, -1 to evict everything
+     */
+    public synchronized void trimToWeight(int maxWeight) {
+        while (weight() > maxWeight && weight() > 0) {
+            if (!mWindow.isEmpty()) {
+                mWindowWeight -= evictEldest(mWindow).weight;
+            } else if (!mProbation.isEmpty()) {
+                mProbationWeight -= evictEldest(mProbation).weight;
+            } else {
+                mProtectedWeight -= evictEldest(mProtected).weight;
+            }
+        }
+    }
+
+    public synchronized int weight() {
+        return mWindowWeight + mProbationWeight + mProtectedWeight;
+    }
+
+    public int maxWeight() {
+        return mMaxWeight;
+    }
+
+    public synchronized int size() {
+        return mWindow.size() + mProbation.size() + mProtected.size();
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Returns the number of entries evicted, including the ones refused admission.
+     */
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * Returns the number of entries which left the window and were refused admission to the
+     * main region.
+     */
+    public synchronized int rejectionCount() {
+        return mRejectionCount;
+    }
+
+    /** Moves the overflow of the window to probation, each through the admission filter. */
+    private void evictFromWindow() {
+        while (mWindowWeight > mWindowMaxWeight) {
+            Node<V> candidate = removeEldest(mWindow);
+            mWindowWeight -= candidate.weight;
+            mProbation.put(candidate.key, candidate);
+            mProbationWeight += candidate.weight;
+            evictFromMain(candidate);
+        }
+    }
+
+    /**
+     * Makes room in the main region, where {@code candidate} was just added: while it is too
+     * heavy, the least recently used other entry is evicted unless {@code candidate} is less
+     * frequent, in which case {@code candidate} itself is. Admitting on a tie keeps the main
+     * region close to LRU for entries seen once, as when scrolling back a little.
+     */
+    private void evictFromMain(Node<V> candidate) {
+        int mainMaxWeight = mMaxWeight - mWindowMaxWeight;
+        while (mProbationWeight + mProtectedWeight > mainMaxWeight) {
+            Node<V> victim = eldestOtherThan(mProbation, candidate);
+            LinkedHashMap<Long, Node<V>> victimSegment = mProbation;
+            if (victim == null) {
+                victim = eldestOtherThan(mProtected, candidate);
+                victimSegment = mProtected;
+            }
+            if (victim == null || mSketch.frequency(candidate.key)
+                    < mSketch.frequency(victim.key)) {
+                mProbation.remove(candidate.key);
+                mProbationWeight -= candidate.weight;
+                mEvictionCount++;
+                mRejectionCount++;
+                notifyRemoved(candidate.key, candidate.value);
+                return;
+            }
+            victimSegment.remove(victim.key);
+            if (victimSegment == mProbation) {
+                mProbationWeight -= victim.weight;
+            } else {
+                mProtectedWeight -= victim.weight;
+            }
+            mEvictionCount++;
+            notifyRemoved(victim.key, victim.value);
+        }
+    }
+
+    /** Moves the overflow of the protected segment back to probation. */
+    private void demoteProtected() {
+        while (mProtectedWeight > mProtectedMaxWeight && mProtected.size() > 1) {
+            Node<V> node = removeEldest(mProtected);
+            mProtectedWeight -= node.weight;
+            mProbation.put(node.key, node);
+            mProbationWeight += node.weight;
+        }
+    }
+
+    private Node<V> evictEldest(LinkedHashMap<Long, Node<V>> segment) {
+        mEvictionCount++;
+        Node<V> node = removeEldest(segment);
+        notifyRemoved(node.key, node.value);
+        return node;
+    }
+
+    private void notifyRemoved(long key, V value) {
+        if (mRemovalListener != null) {
+            mRemovalListener.onRemoved(key, value);
+        }
+    }
+
+    private static <V> Node<V> removeEldest(LinkedHashMap<Long, Node<V>> segment) {
+        Iterator<Node<V>> iterator = segment.values().iterator();
+        Node<V> node = iterator.next();
+        iterator.remove();
+        return node;
+    }
+
+    private static <V> Node<V> eldestOtherThan(LinkedHashMap<Long, Node<V>> segment,
+            Node<V> node) {
+        for (Node<V> eldest : segment.values()) {
+            if (eldest != node) {
+                return eldest;
+            }
+        }
+        return null;
+    }
+}
@@ -15,50 +15,163 @@
  */
 package jp.sacredsanctuary.gridviewtest.util.thread;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.MediaStore;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import jp.sacredsanctuary.common.util.LogUtil;
 import jp.sacredsanctuary.common.util.Preconditions;
+import jp.sacredsanctuary.gridviewtest.util.MediaDelta;
+import jp.sacredsanctuary.gridviewtest.util.MediaItemStore;
+import jp.sacredsanctuary.gridviewtest.util.MediaStoreScanner;
 
-public class LoadImageItemListThread implements Callable<List<String>> {
+/**
+ * Scans the MediaStore images and streams the rows to a listener in fixed-size chunks.
+ * The result of {@link #call()} is the number of rows scanned.
+ * <p>
+ * From Android Q on, every external volume, such as an SD card or USB storage, is scanned
+ * on its own worker and the results are merged into one date-sorted stream.
+ * <p>
+ * {@link #loadDelta(MediaItemStore)} is the incremental mode: it only reads the rows changed
+ * since a previous snapshot and the ids needed to detect deletions.
+ */
+public class LoadImageItemListThread implements Callable<Integer> {
     private static final String ClassName = LoadImageItemListThread.class.getSimpleName();
     private final Context mContext;
+    private final int mChunkSize;
+    private final MediaStoreScanner.OnChunkScannedListener mListener;
 
+    /**
+     * Creates an instance for {@link #loadDelta(MediaItemStore)} only.
+     */
     public LoadImageItemListThread(Context context) {
-        LogUtil.V(ClassName, "LoadImageItemListThread() [INF] context:" + context);
+        this(context, MediaStoreScanner.DEFAULT_CHUNK_SIZE, null);
+    }
+
+    public LoadImageItemListThread(Context context,
+            MediaStoreScanner.OnChunkScannedListener listener) {
+        this(context, MediaStoreScanner.DEFAULT_CHUNK_SIZE, listener);
+    }
+
+    public LoadImageItemListThread(Context context, int chunkSize,
+            MediaStoreScanner.OnChunkScannedListener listener) {
+        LogUtil.V(ClassName, "LoadImageItemListThread() [INF] context:" + context
+                + " chunkSize:" + chunkSize);
         this.mContext = context;
+        this.mChunkSize = chunkSize;
+        this.mListener = listener;
     }
 
-    public List<String> call() throws Exception {
-        LogUtil.E(ClassName, "call() [INF] ");
+    public Integer call() throws Exception {
+        LogUtil.V(ClassName, "call() [INF] ");
         return loadImageItemList();
     }
 
-    private List<String> loadImageItemList() {
-        LogUtil.V(ClassName, "loadImageItemList() [I N] ");
-        List<String> list = new ArrayList<>();
+    /**
+     * Returns the MediaStore version. A different version means the provider database was
+     * rebuilt and ids or dates of a previous snapshot can no longer be trusted.
+     *
+     * @param context the context to use
+     * @return the version, or an empty string before Android Q where no version exists
+     */
+    public static String getMediaStoreVersion(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return MediaStore.getVersion(context);
+        }
+        return "";
+    }
+
+    /**
+     * Returns the image collections of all external volumes.
+     *
+     * @param context the context to use
+     * @return one collection per volume; only {@code EXTERNAL_CONTENT_URI} before Android Q,
+     * where it already covers every volume
+     */
+    public static List<Uri> getVolumeUris(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Set<String> volumeNames = MediaStore.getExternalVolumeNames(context);
+            List<Uri> uris = new ArrayList<>(volumeNames.size());
+            for (String volumeName : volumeNames) {
+                uris.add(MediaStore.Images.Media.getContentUri(volumeName));
+            }
+            if (!uris.isEmpty()) {
+                return uris;
+            }
+        }
+        return Collections.singletonList(MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+    }
 
+    /**
+     * Loads the changes since {@code previous}. The caller is responsible for checking
+     * {@link #getMediaStoreVersion(Context)} first.
+     *
+     * @param previous the snapshot to compare with
+     * @return the delta, or {@code null} if MediaStore could not be queried
+     */
+    public MediaDelta loadDelta(MediaItemStore previous) {
+        LogUtil.V(ClassName, "loadDelta() [I N] lastSync:" + previous.getLastSync());
+        ContentResolver resolver = mContext.getContentResolver();
         Uri uri = MediaStore.Images.Media.EXTERNAL_CONTENT_URI;
-        Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
-        if (!Preconditions.checkNotNull(cursor)) {
-            LogUtil.E(ClassName, "loadImageItemList() [OUT] cursor is null pointer");
-            return list;
+        String lastSync = String.valueOf(previous.getLastSync());
+        Cursor changed = resolver.query(uri, MediaStoreScanner.PROJECTION,
+                MediaDelta.SELECTION_CHANGED_SINCE, new String[]{lastSync, lastSync},
+                MediaStoreScanner.SORT_ORDER);
+        if (!Preconditions.checkNotNull(changed)) {
+            LogUtil.E(ClassName, "loadDelta() [OUT] cursor is null pointer");
+            return null;
         }
-        cursor.moveToLast();
+        try {
+            Cursor ids = resolver.query(uri, MediaDelta.PROJECTION_ID, null, null, null);
+            if (!Preconditions.checkNotNull(ids)) {
+                LogUtil.E(ClassName, "loadDelta() [OUT] cursor is null pointer");
+                return null;
+            }
+            try {
+                MediaDelta delta = MediaDelta.compute(previous, changed, ids);
+                LogUtil.V(ClassName, "loadDelta() [OUT] delta:" + delta);
+                return delta;
+            } finally {
+                ids.close();
+            }
+        } finally {
+            changed.close();
+        }
+    }
 
-        for (int i = 0; i < cursor.getCount(); i++) {
-            String filePath = cursor.getString(cursor.getColumnIndex(MediaStore.Images.Media.DATA));
-            list.add(filePath);
-            cursor.moveToPrevious();
+    private int loadImageItemList() throws Exception {
+        LogUtil.V(ClassName, "loadImageItemList() [I N] ");
+        ContentResolver resolver = mContext.getContentResolver();
+        List<Uri> volumeUris = getVolumeUris(mContext);
+        int count;
+        if (volumeUris.size() == 1) {
+            count = MediaStoreScanner.scan(resolver, volumeUris.get(0), mChunkSize, mListener);
+        } else {
+            List<Callable<Cursor>> volumes = new ArrayList<>(volumeUris.size());
+            for (Uri uri : volumeUris) {
+                volumes.add(() -> resolver.query(uri, MediaStoreScanner.PROJECTION, null, null,
+                        MediaStoreScanner.SORT_ORDER));
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(volumes.size());
+            try {
+                count = MediaStoreScanner.scanVolumes(volumes, executor, mChunkSize, mListener);
+            } finally {
+                executor.shutdownNow();
+            }
         }
-        LogUtil.V(ClassName, "loadImageItemList() [OUT] list.size:" + list.size());
-        return list;
+        LogUtil.V(ClassName, "loadImageItemList() [OUT] volumes:" + volumeUris.size()
+                + " count:" + count);
+        return count;
     }
 }
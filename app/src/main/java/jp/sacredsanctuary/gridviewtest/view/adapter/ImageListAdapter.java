@@ -15,51 +15,133 @@
  */
 package jp.sacredsanctuary.gridviewtest.view.adapter;
 
-import android.app.LoaderManager;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AdapterListUpdateCallback;
 import androidx.recyclerview.widget.RecyclerView;
+import jp.sacredsanctuary.common.thread.AsyncHandler;
 import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.gridviewtest.Application;
 import jp.sacredsanctuary.gridviewtest.R;
+import jp.sacredsanctuary.gridviewtest.loader.ThumbnailScheduler;
+import jp.sacredsanctuary.gridviewtest.util.CreateThumbnails;
+import jp.sacredsanctuary.gridviewtest.util.MediaCursorWindow;
+import jp.sacredsanctuary.gridviewtest.util.MediaItemStore;
+import jp.sacredsanctuary.gridviewtest.util.MediaPagedList;
 import jp.sacredsanctuary.gridviewtest.view.ui.ViewHolder;
+import jp.sacredsanctuary.gridviewtest.viewModel.ImageItemList;
 
 /**
  * Adapter for a GridView containing image items from the Image data of the device.
+ * <p>
+ * The items come from an {@link ImageItemList} snapshot, from a {@link MediaPagedList} of
+ * which only the pages around the viewport are loaded, or, for very large libraries,
+ * straight from a {@link MediaCursorWindow}. In the last two modes only the rows around the
+ * visible ones are held in memory and the other positions are placeholders.
+ * <p>
+ * Thumbnails are loaded by the {@link ThumbnailScheduler}: a cell on screen is served before
+ * the cells which left the screen, and the load of a recycled cell is cancelled. A
+ * {@link ThumbnailPrefetcher} loads the cells ahead of the scroll in between.
  */
 public class ImageListAdapter extends RecyclerView.Adapter<ViewHolder> {
     private static final String ClassName = ImageListAdapter.class.getSimpleName();
-    private final LoaderManager mLoaderManager;
+    private final ThumbnailScheduler mThumbnailScheduler;
+    /** Set while attached to a RecyclerView. */
+    private ThumbnailPrefetcher mPrefetcher;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final CreateThumbnails mCreateThumbnails;
     private View.OnClickListener mItemClickCallback;
-    private List<String> mImageFilePath;
+    private ImageItemList mImageItemList;
+    /** The rows shown in paged mode, {@code null} in the other modes. */
+    private MediaPagedList mPagedList;
+    /** The rows shown in cursor mode, {@code null} in the other modes. */
+    private MediaCursorWindow mCursorWindow;
+    /** Range of positions bound while their rows were not filled, or -1 if none. */
+    private int mMissedFirst = RecyclerView.NO_POSITION;
+    private int mMissedLast = RecyclerView.NO_POSITION;
+    private boolean mFillInFlight;
 
-    public ImageListAdapter(View.OnClickListener callback, LoaderManager loaderManager) {
+    public ImageListAdapter(View.OnClickListener callback) {
         this.mItemClickCallback = callback;
-        this.mLoaderManager = loaderManager;
-        this.mImageFilePath = new ArrayList<>();
+        this.mImageItemList = ImageItemList.EMPTY;
+        this.mCreateThumbnails = Application.getApplication().getCreateThumbnails();
+        this.mThumbnailScheduler = Application.getApplication().getThumbnailScheduler();
+    }
+
+    /**
+     * Sets the items shown by the grid. When the new snapshot carries the changes from the
+     * current one, they are dispatched as batched range notifications; otherwise the whole
+     * data set is rebound.
+     */
+    public void setItems(ImageItemList imageItemList) {
+        LogUtil.V(ClassName, "ImageListAdapter setItems() imageItemList.size:"
+                + imageItemList.size() + " generation:" + imageItemList.getGeneration());
+        ImageItemList oldItems = mImageItemList;
+        mImageItemList = imageItemList;
+        if (mPagedList == null && mCursorWindow == null
+                && imageItemList.canDispatchFrom(oldItems)) {
+            imageItemList.dispatchUpdatesTo(new AdapterListUpdateCallback(this));
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Switches the adapter to paged mode and shows {@code pagedList}, or goes back to list
+     * mode when it is {@code null}. Pages loaded later are rebound as they arrive.
+     */
+    public void swapPagedList(MediaPagedList pagedList) {
+        LogUtil.V(ClassName, "ImageListAdapter swapPagedList() size:"
+                + ((pagedList != null) ? pagedList.size() : -1));
+        if (pagedList == mPagedList) {
+            return;
+        }
+        if (mPagedList != null) {
+            mPagedList.setOnRangeLoadedListener(null);
+        }
+        mPagedList = pagedList;
+        if (pagedList != null) {
+            pagedList.setOnRangeLoadedListener(this::notifyItemRangeChanged);
+        }
+        notifyDataSetChanged();
     }
 
-    public void setItems(List<String> imageFilePath) {
-        LogUtil.V(ClassName, "ImageListAdapter setItems() imageFilePath.size:"
-                + imageFilePath.size());
-        mImageFilePath.clear();
-        mImageFilePath.addAll(imageFilePath);
-        notifyItemRangeInserted(0, getItemCount());
+    /**
+     * Switches the adapter to cursor mode and shows the rows of {@code cursorWindow}, or goes
+     * back to list mode when it is {@code null}. The previous window is not closed; it stays
+     * owned by whoever queried it.
+     */
+    public void swapCursorWindow(MediaCursorWindow cursorWindow) {
+        LogUtil.V(ClassName, "ImageListAdapter swapCursorWindow() count:"
+                + ((cursorWindow != null) ? cursorWindow.getCount() : -1));
+        if (cursorWindow == mCursorWindow) {
+            return;
+        }
+        mCursorWindow = cursorWindow;
+        mMissedFirst = RecyclerView.NO_POSITION;
+        mMissedLast = RecyclerView.NO_POSITION;
+        // The rows of two cursors cannot be compared without reading them all.
+        notifyDataSetChanged();
     }
 
     public void clearItems() {
         LogUtil.V(ClassName, "ImageListAdapter clearItems() ");
-        mImageFilePath.clear();
+        int oldSize = mImageItemList.size();
+        mImageItemList = ImageItemList.EMPTY;
+        if (oldSize > 0) {
+            notifyItemRangeRemoved(0, oldSize);
+        }
     }
 
-    public List<String> getAllItem() {
+    public MediaItemStore getAllItem() {
         LogUtil.V(ClassName, "ImageListAdapter getAllItem() ");
-        return mImageFilePath;
+        return mImageItemList.getStore();
     }
 
     @NonNull
@@ -76,19 +158,214 @@ public class ImageListAdapter extends RecyclerView.Adapter<ViewHolder> {
 
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-        holder.imageView.setImageUrl(mImageFilePath.get(position));
+        String path;
+        long id;
+        long dateModified;
+        if (mPagedList != null) {
+            path = mPagedList.getPath(position);
+            if (path == null) {
+                bindPlaceholder(holder);
+                return;
+            }
+            id = mPagedList.getId(position);
+            dateModified = mPagedList.getDateModified(position);
+        } else if (mCursorWindow != null) {
+            path = mCursorWindow.getPath(position);
+            id = mCursorWindow.getId(position);
+            dateModified = mCursorWindow.getDateModified(position);
+            if (path == MediaCursorWindow.NO_PATH || id == MediaCursorWindow.NO_ID) {
+                // Crossed the window boundary: show a placeholder and rebind once filled.
+                bindPlaceholder(holder);
+                if (!mCursorWindow.isClosed()) {
+                    requestFill(position);
+                }
+                return;
+            }
+            if (path == null) {
+                bindPlaceholder(holder);
+                return;
+            }
+        } else {
+            MediaItemStore store = mImageItemList.getStore();
+            path = store.getPath(position);
+            id = store.getId(position);
+            dateModified = store.getDateModified(position);
+        }
+        holder.imageView.setImageUrl(path);
+        holder.imageView.setImageId(id, dateModified);
         holder.imageView.setOnClickListener(mItemClickCallback);
-        holder.imageView.setTag(mImageFilePath.get(position));
-        LOOP:
-        try {
-            mLoaderManager.initLoader(position, null, holder.imageView);
-        } catch (Exception e) {
-            break LOOP;
+        holder.imageView.setTag(path);
+        Bitmap cached = mCreateThumbnails.getCachedThumbnails(id,
+                CreateThumbnails.SIZE_TIER_CELL, dateModified);
+        if (mPrefetcher != null) {
+            mPrefetcher.onBind(position, id, cached != null);
         }
+        if (cached != null) {
+            // Scrolled back to a cell seen before: no load, no decode.
+            holder.imageView.cancelLoad();
+            holder.imageView.setThumbnail(cached, CreateThumbnails.SIZE_TIER_CELL);
+            return;
+        }
+        // Draw the micro thumbnail, if still cached, until the loader has the cell one.
+        Bitmap micro = mCreateThumbnails.getCachedThumbnails(id,
+                CreateThumbnails.SIZE_TIER_MICRO, dateModified);
+        if (micro != null) {
+            holder.imageView.setThumbnail(micro, CreateThumbnails.SIZE_TIER_MICRO);
+        } else {
+            holder.imageView.setPlaceholder();
+        }
+        // Lets the thumbnails of all cells bound in this layout pass be resolved at once.
+        mCreateThumbnails.requestThumbnails(id);
+        holder.imageView.loadThumbnail(mThumbnailScheduler);
+    }
+
+    /**
+     * Drops the thumbnail of a cell going to the recycled view pool, so it can be reused
+     * before the cell is bound again, and cancels its load.
+     */
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        super.onViewRecycled(holder);
+        holder.imageView.cancelLoad();
+        holder.imageView.setPlaceholder();
+    }
+
+    /**
+     * Serves the load of a cell coming on screen before those of the cells off screen.
+     */
+    @Override
+    public void onViewAttachedToWindow(@NonNull ViewHolder holder) {
+        super.onViewAttachedToWindow(holder);
+        holder.imageView.setLoadPriority(ThumbnailScheduler.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Moves the load of a cell leaving the screen behind those of the cells on screen; the
+     * cell may still come back before it is recycled.
+     */
+    @Override
+    public void onViewDetachedFromWindow(@NonNull ViewHolder holder) {
+        super.onViewDetachedFromWindow(holder);
+        holder.imageView.setLoadPriority(ThumbnailScheduler.PRIORITY_OFFSCREEN);
+    }
+
+    /**
+     * Prefetches the thumbnails of the cells scrolling into view.
+     */
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onAttachedToRecyclerView(recyclerView);
+        mPrefetcher = new ThumbnailPrefetcher(this);
+        recyclerView.addOnScrollListener(mPrefetcher);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        if (mPrefetcher != null) {
+            recyclerView.removeOnScrollListener(mPrefetcher);
+            mPrefetcher.cancel();
+            mPrefetcher = null;
+        }
+    }
+
+    /**
+     * Queues the load of the cell thumbnail of a position not bound yet, if its row is at
+     * hand; rows of the paged list or cursor window not loaded yet are not loaded for it.
+     *
+     * @return the request, or {@code null} if the row is not at hand
+     */
+    ThumbnailScheduler.Request prefetchThumbnail(int position,
+            ThumbnailScheduler.Callback callback) {
+        if (position < 0 || position >= getItemCount()) {
+            return null;
+        }
+        String path;
+        long id;
+        long dateModified;
+        if (mPagedList != null) {
+            // Peeks: a lookahead must neither move the paging window nor load pages.
+            path = mPagedList.peekPath(position);
+            id = mPagedList.peekId(position);
+            dateModified = mPagedList.peekDateModified(position);
+        } else if (mCursorWindow != null) {
+            path = mCursorWindow.getPath(position);
+            id = mCursorWindow.getId(position);
+            dateModified = mCursorWindow.getDateModified(position);
+        } else {
+            MediaItemStore store = mImageItemList.getStore();
+            path = store.getPath(position);
+            id = store.getId(position);
+            dateModified = store.getDateModified(position);
+        }
+        if (path == null || path == MediaCursorWindow.NO_PATH || id == MediaCursorWindow.NO_ID) {
+            return null;
+        }
+        return mThumbnailScheduler.prefetch(id, path, dateModified, callback);
+    }
+
+    /**
+     * Returns the number of thumbnail loads waiting for a thread.
+     */
+    public int getThumbnailQueueDepth() {
+        return mThumbnailScheduler.getQueueDepth();
     }
 
     @Override
     public int getItemCount() {
-        return (mImageFilePath != null) ? mImageFilePath.size() : 0;
+        if (mPagedList != null) {
+            return mPagedList.size();
+        }
+        return (mCursorWindow != null) ? mCursorWindow.getCount() : mImageItemList.size();
+    }
+
+    private static void bindPlaceholder(ViewHolder holder) {
+        holder.imageView.setImageUrl(null);
+        holder.imageView.setImageId(-1, 0);
+        holder.imageView.setTag(null);
+        holder.imageView.cancelLoad();
+        holder.imageView.setPlaceholder();
+    }
+
+    /**
+     * Remembers that {@code position} was bound without its row and fills the cursor window
+     * around it on the background thread. Only one fill runs at a time; positions missed
+     * meanwhile are rebound afterwards and request the next fill if still outside.
+     */
+    private void requestFill(int position) {
+        if (mMissedFirst == RecyclerView.NO_POSITION) {
+            mMissedFirst = position;
+            mMissedLast = position;
+        } else {
+            mMissedFirst = Math.min(mMissedFirst, position);
+            mMissedLast = Math.max(mMissedLast, position);
+        }
+        if (mFillInFlight) {
+            return;
+        }
+        mFillInFlight = true;
+        final MediaCursorWindow cursorWindow = mCursorWindow;
+        AsyncHandler.post(() -> {
+            cursorWindow.fill(position);
+            mHandler.post(() -> onWindowFilled(cursorWindow));
+        });
+    }
+
+    private void onWindowFilled(MediaCursorWindow cursorWindow) {
+        mFillInFlight = false;
+        if (cursorWindow != mCursorWindow || mMissedFirst == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int first = mMissedFirst;
+        int count = mMissedLast - mMissedFirst + 1;
+        mMissedFirst = RecyclerView.NO_POSITION;
+        mMissedLast = RecyclerView.NO_POSITION;
+        LogUtil.V(ClassName, "ImageListAdapter onWindowFilled() first:" + first
+                + " count:" + count);
+        // Rows still outside the new window miss again and request the next fill.
+        notifyItemRangeChanged(first, Math.min(count, getItemCount() - first));
     }
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.view.adapter;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.GridLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.gridviewtest.Application;
+import jp.sacredsanctuary.gridviewtest.loader.Thumbnail;
+import jp.sacredsanctuary.gridviewtest.loader.ThumbnailScheduler;
+
+/**
+ * Loads the cell thumbnails of the rows about to scroll into view into the memory cache, so
+ * they are hits when bound.
+ * <p>
+ * The lookahead covers the distance the grid scrolls in {@link #LOOKAHEAD_MILLIS} at the
+ * current velocity, in whole rows of {@link GridLayoutManager#getSpanCount()} cells, so a
+ * landscape grid of 5 columns prefetches more cells than a portrait one of 3. Prefetches go
+ * behind the loads of the cells on screen, and are all cancelled when the scroll reverses.
+ * <p>
+ * A prefetched cell bound with its cell thumbnail cached is a hit, one bound before the
+ * thumbnail was loaded is late, and one never bound is wasted. The counts are logged when
+ * the scroll stops: many late cells call for a longer lookahead, many wasted ones for a
+ * shorter one.
+ * <p>
+ * Used on the main thread only.
+ */
+public class ThumbnailPrefetcher extends RecyclerView.OnScrollListener
+        implements ThumbnailScheduler.Callback {
+    private static final String ClassName = ThumbnailPrefetcher.class.getSimpleName();
+    /** How far ahead of the viewport thumbnails are loaded, in scroll time. */
+    private static final int LOOKAHEAD_MILLIS = 500;
+    private static final int MIN_LOOKAHEAD_ROWS = 1;
+    private static final int MAX_LOOKAHEAD_ROWS = 6;
+    /** Weight of the newest frame in the smoothed velocity. */
+    private static final float VELOCITY_SMOOTHING = 0.3f;
+    /** A pause between two scroll frames longer than this starts a new gesture. */
+    private static final int VELOCITY_RESET_MILLIS = 100;
+
+    private final ImageListAdapter mAdapter;
+    /** The prefetches not bound yet, by adapter position. */
+    private final SparseArray<ThumbnailScheduler.Request> mPending = new SparseArray<>();
+    /** 1 scrolling down, -1 scrolling up, 0 before the first scroll. */
+    private int mDirection;
+    /** Smoothed scroll velocity in pixels per second. */
+    private float mVelocity;
+    private long mLastScrollTime;
+    private int mIssuedCount;
+    private int mHitCount;
+    private int mLateCount;
+    private int mWastedCount;
+
+    public ThumbnailPrefetcher(ImageListAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0 || !(recyclerView.getLayoutManager() instanceof GridLayoutManager)) {
+            return;
+        }
+        int direction = (dy > 0) ? 1 : -1;
+        if (direction != mDirection) {
+            // The cells ahead are now behind.
+            cancel();
+            mDirection = direction;
+            mVelocity = 0;
+        }
+        long now = SystemClock.uptimeMillis();
+        long elapsed = now - mLastScrollTime;
+        mLastScrollTime = now;
+        if (elapsed <= 0 || elapsed > VELOCITY_RESET_MILLIS) {
+            mVelocity = 0;
+        } else {
+            float velocity = Math.abs(dy) * 1000f / elapsed;
+            mVelocity = (mVelocity == 0) ? velocity
+                    : mVelocity + ((velocity - mVelocity) * VELOCITY_SMOOTHING);
+        }
+
+        GridLayoutManager layoutManager = (GridLayoutManager) recyclerView.getLayoutManager();
+        View child = layoutManager.getChildAt(0);
+        int firstVisible = layoutManager.findFirstVisibleItemPosition();
+        int lastVisible = layoutManager.findLastVisibleItemPosition();
+        if (child == null || firstVisible == RecyclerView.NO_POSITION) {
+            return;
+        }
+        dropPassed(firstVisible, lastVisible);
+        int rowHeight = layoutManager.getDecoratedMeasuredHeight(child);
+        int count = computeLookaheadRows(mVelocity, rowHeight) * layoutManager.getSpanCount();
+        if (direction > 0) {
+            int end = Math.min(lastVisible + count, mAdapter.getItemCount() - 1);
+            for (int position = lastVisible + 1; position <= end; position++) {
+                prefetch(position);
+            }
+        } else {
+            int end = Math.max(firstVisible - count, 0);
+            for (int position = firstVisible - 1; position >= end; position--) {
+                prefetch(position);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+        if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+            LogUtil.V(ClassName, "onScrollStateChanged() [INF] " + this);
+        }
+    }
+
+    /**
+     * Counts a bound cell as a hit or late if it was prefetched.
+     *
+     * @param position   the adapter position of the cell
+     * @param id         the MediaStore id of the image bound
+     * @param cellCached whether its cell thumbnail was in the memory cache
+     */
+    public void onBind(int position, long id, boolean cellCached) {
+        ThumbnailScheduler.Request request = mPending.get(position);
+        if (request == null) {
+            return;
+        }
+        mPending.remove(position);
+        if (request.getId() != id) {
+            // The items changed since.
+            request.cancel();
+            mWastedCount++;
+        } else if (cellCached) {
+            mHitCount++;
+        } else {
+            // Left running: the load of the cell waits for it instead of starting anew.
+            mLateCount++;
+        }
+    }
+
+    /**
+     * Cancels all prefetches not bound yet.
+     */
+    public void cancel() {
+        for (int i = 0; i < mPending.size(); i++) {
+            mPending.valueAt(i).cancel();
+        }
+        mWastedCount += mPending.size();
+        mPending.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onThumbnailLoaded(ThumbnailScheduler.Request request, Thumbnail thumbnail) {
+        // The memory cache keeps it for the bind.
+        Application.getApplication().getCreateThumbnails()
+                .releaseThumbnails(thumbnail.getBitmap());
+    }
+
+    /**
+     * Returns the share of the prefetched cells bound with their thumbnail ready, among
+     * those bound or given up, or 0 before any.
+     */
+    public float getHitRate() {
+        int total = mHitCount + mLateCount + mWastedCount;
+        return (total > 0) ? (float) mHitCount / total : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "ThumbnailPrefetcher issued:" + mIssuedCount + " hit:" + mHitCount
+                + " late:" + mLateCount + " wasted:" + mWastedCount
+                + " hitRate:" + getHitRate() + " pending:" + mPending.size();
+    }
+
+    /**
+     * Returns the number of rows scrolled through in {@link #LOOKAHEAD_MILLIS} at
+     * {@code velocity}, within {@link #MIN_LOOKAHEAD_ROWS} and {@link #MAX_LOOKAHEAD_ROWS}.
+     */
+    private static int computeLookaheadRows(float velocity, int rowHeight) {
+        if (rowHeight <= 0) {
+            return MIN_LOOKAHEAD_ROWS;
+        }
+        int rows = (int) Math.ceil((velocity * LOOKAHEAD_MILLIS) / (1000f * rowHeight));
+        return Math.max(MIN_LOOKAHEAD_ROWS, Math.min(rows, MAX_LOOKAHEAD_ROWS));
+    }
+
+    private void prefetch(int position) {
+        if (mPending.get(position) != null) {
+            return;
+        }
+        ThumbnailScheduler.Request request = mAdapter.prefetchThumbnail(position, this);
+        if (request != null) {
+            mPending.put(position, request);
+            mIssuedCount++;
+        }
+    }
+
+    /**
+     * Gives up the prefetches of the cells the viewport reached without binding them.
+     */
+    private void dropPassed(int firstVisible, int lastVisible) {
+        for (int i = mPending.size() - 1; i >= 0; i--) {
+            int position = mPending.keyAt(i);
+            if ((mDirection > 0) ? (position <= lastVisible) : (position >= firstVisible)) {
+                mPending.valueAt(i).cancel();
+                mPending.removeAt(i);
+                mWastedCount++;
+            }
+        }
+    }
+}
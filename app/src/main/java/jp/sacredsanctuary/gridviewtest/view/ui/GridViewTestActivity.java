@@ -29,6 +29,7 @@ import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import jp.sacredsanctuary.common.base.activity.BaseAppCompatActivity;
 import jp.sacredsanctuary.common.util.LogUtil;
+import jp.sacredsanctuary.gridviewtest.Application;
 import jp.sacredsanctuary.gridviewtest.R;
 import jp.sacredsanctuary.gridviewtest.view.adapter.ImageListAdapter;
 import jp.sacredsanctuary.gridviewtest.view.ui.preference.PreferenceActivity;
@@ -39,6 +40,10 @@ import jp.sacredsanctuary.gridviewtest.viewModel.ImageItemViewModel;
  */
 public class GridViewTestActivity extends BaseAppCompatActivity implements View.OnClickListener {
     private static final String ClassName = GridViewTestActivity.class.getSimpleName();
+    /** Preference key of the item source of the grid, see {@code R.xml.preferences}. */
+    private static final String KEY_GRID_SOURCE = "pref_key_grid_source";
+    private static final String GRID_SOURCE_PAGED = "paged";
+    private static final String GRID_SOURCE_CURSOR = "cursor";
 
     private RecyclerView mRecyclerView;
     private ImageListAdapter mImageListAdapter;
@@ -82,15 +87,31 @@ public class GridViewTestActivity extends BaseAppCompatActivity implements View.
         mRecyclerView.addItemDecoration(
                 new GridSpacingItemDecoration(spanCount, spacing, includeEdge));
 
-        mImageListAdapter = new ImageListAdapter(this, this.getLoaderManager());
+        mImageListAdapter = new ImageListAdapter(this);
         mRecyclerView.setAdapter(mImageListAdapter);
         mImageListAdapter.clearItems();
 
         ImageItemViewModel model = ViewModelProviders.of(this).get(ImageItemViewModel.class);
-        model.getImageItemList().observe(this, mImageItemList -> {
-            LogUtil.V(ClassName, "observe() [INF] mImageItemList:" + mImageItemList);
-            mImageListAdapter.setItems(mImageItemList);
-        });
+        String gridSource = Application.getDefaultSharedPreferences(this)
+                .getString(KEY_GRID_SOURCE, null);
+        if (GRID_SOURCE_PAGED.equals(gridSource)) {
+            model.getImagePagedList().observe(this, mPagedList -> {
+                LogUtil.V(ClassName, "observe() [INF] mPagedList.size:" + mPagedList.size());
+                mImageListAdapter.swapPagedList(mPagedList);
+            });
+        } else if (GRID_SOURCE_CURSOR.equals(gridSource)) {
+            model.getImageCursorWindow().observe(this, mCursorWindow -> {
+                LogUtil.V(ClassName, "observe() [INF] mCursorWindow.count:"
+                        + mCursorWindow.getCount());
+                mImageListAdapter.swapCursorWindow(mCursorWindow);
+            });
+        } else {
+            model.getImageItemList().observe(this, mImageItemList -> {
+                LogUtil.V(ClassName, "observe() [INF] mImageItemList.size:"
+                        + mImageItemList.size());
+                mImageListAdapter.setItems(mImageItemList);
+            });
+        }
     }
 
     /**
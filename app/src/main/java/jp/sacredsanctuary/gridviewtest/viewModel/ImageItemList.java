@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.viewModel;
+
+import java.util.Arrays;
+
+import androidx.recyclerview.widget.ListUpdateCallback;
+import jp.sacredsanctuary.gridviewtest.util.MediaItemStore;
+
+/**
+ * An immutable snapshot of the image {@link MediaItemStore} together with the range changes
+ * that turn the previous snapshot into this one.
+ * <p>
+ * Snapshots are numbered; the changes only apply to an observer currently showing the
+ * snapshot numbered {@link #getBaseGeneration()}. Observers that missed a snapshot, for
+ * example because {@code LiveData} coalesced two posts, have to rebind everything.
+ */
+public final class ImageItemList {
+    /** The empty list every observer starts from. */
+    public static final ImageItemList EMPTY =
+            new ImageItemList(MediaItemStore.EMPTY, 0, -1, null);
+
+    private static final int OP_INSERT = 0;
+    private static final int OP_REMOVE = 1;
+
+    private final MediaItemStore mStore;
+    private final int mGeneration;
+    private final int mBaseGeneration;
+    /** (op, position, count) triples, or {@code null} if the changes are unknown. */
+    private final int[] mChanges;
+
+    ImageItemList(MediaItemStore store, int generation, int baseGeneration, int[] changes) {
+        mStore = store;
+        mGeneration = generation;
+        mBaseGeneration = baseGeneration;
+        mChanges = changes;
+    }
+
+    public MediaItemStore getStore() {
+        return mStore;
+    }
+
+    public int size() {
+        return mStore.size();
+    }
+
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public int getBaseGeneration() {
+        return mBaseGeneration;
+    }
+
+    /**
+     * Returns whether the changes from {@code previous} to this snapshot are known.
+     *
+     * @param previous the snapshot currently shown by the observer
+     * @return {@code true} if {@link #dispatchUpdatesTo(ListUpdateCallback)} may be used
+     */
+    public boolean canDispatchFrom(ImageItemList previous) {
+        return (mChanges != null) && (previous.mGeneration == mBaseGeneration);
+    }
+
+    /**
+     * Dispatches the range changes from the base snapshot to this one, in order.
+     *
+     * @param callback the callback receiving the changes, usually an adapter callback
+     */
+    public void dispatchUpdatesTo(ListUpdateCallback callback) {
+        for (int i = 0; i < mChanges.length; i += 3) {
+            if (mChanges[i] == OP_INSERT) {
+                callback.onInserted(mChanges[i + 1], mChanges[i + 2]);
+            } else {
+                callback.onRemoved(mChanges[i + 1], mChanges[i + 2]);
+            }
+        }
+    }
+
+    /**
+     * Returns the changes for appending {@code count} items to a list of {@code size}.
+     */
+    static int[] appended(int size, int count) {
+        return (count > 0) ? new int[]{OP_INSERT, size, count} : new int[0];
+    }
+
+    /**
+     * Computes the range changes between two snapshots which are both sorted by
+     * {@code MediaStoreScanner.SORT_ORDER}, with a single merge pass. Rows are matched by id
+     * and modification date; a row whose date changed is reported as a removal and an
+     * insertion at its new position. Consecutive changes are merged into ranges.
+     *
+     * @param oldRows the rows currently shown
+     * @param newRows the rows to show
+     * @return (op, position, count) triples in dispatch order
+     */
+    static int[] diff(MediaItemStore oldRows, MediaItemStore newRows) {
+        ChangeRecorder recorder = new ChangeRecorder();
+        final int oldCount = oldRows.size();
+        final int newCount = newRows.size();
+        int i = 0;
+        int j = 0;
+        int position = 0;
+        while (i < oldCount || j < newCount) {
+            if (i >= oldCount) {
+                recorder.add(OP_INSERT, position++);
+                j++;
+                continue;
+            }
+            if (j >= newCount) {
+                recorder.add(OP_REMOVE, position);
+                i++;
+                continue;
+            }
+            long oldDate = oldRows.getDateModified(i);
+            long oldId = oldRows.getId(i);
+            long newDate = newRows.getDateModified(j);
+            long newId = newRows.getId(j);
+            if (oldDate == newDate && oldId == newId) {
+                position++;
+                i++;
+                j++;
+            } else if ((newDate != oldDate) ? (newDate > oldDate) : (newId > oldId)) {
+                recorder.add(OP_INSERT, position++);
+                j++;
+            } else {
+                recorder.add(OP_REMOVE, position);
+                i++;
+            }
+        }
+        return recorder.toArray();
+    }
+
+    /**
+     * Records single-row changes and merges each one into the previous range when they are
+     * adjacent, in the manner of {@code BatchingListUpdateCallback}.
+     */
+    private static final class ChangeRecorder {
+        private int[] mOps = new int[3 * 16];
+        private int mLength;
+
+        void add(int op, int position) {
+            if (mLength > 0 && mOps[mLength - 3] == op) {
+                int lastPosition = mOps[mLength - 2];
+                int lastCount = mOps[mLength - 1];
+                boolean adjacent = (op == OP_INSERT)
+                        ? (position == lastPosition + lastCount)
+                        : (position == lastPosition);
+                if (adjacent) {
+                    mOps[mLength - 1]++;
+                    return;
+                }
+            }
+            if (mLength == mOps.length) {
+                mOps = Arrays.copyOf(mOps, mLength * 2);
+            }
+            mOps[mLength++] = op;
+            mOps[mLength++] = position;
+            mOps[mLength++] = 1;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(mOps, mLength);
+        }
+    }
+}
@@ -15,44 +15,351 @@
  */
 package jp.sacredsanctuary.gridviewtest.viewModel;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.ExecutionException;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
+import jp.sacredsanctuary.common.thread.AsyncHandler;
 import jp.sacredsanctuary.common.util.LogUtil;
 import jp.sacredsanctuary.gridviewtest.Application;
+import jp.sacredsanctuary.gridviewtest.util.MediaChunk;
+import jp.sacredsanctuary.gridviewtest.util.MediaCursorWindow;
+import jp.sacredsanctuary.gridviewtest.util.MediaDelta;
+import jp.sacredsanctuary.gridviewtest.util.MediaIndex;
+import jp.sacredsanctuary.gridviewtest.util.MediaItemStore;
+import jp.sacredsanctuary.gridviewtest.util.MediaPageLoader;
+import jp.sacredsanctuary.gridviewtest.util.MediaPagedList;
+import jp.sacredsanctuary.gridviewtest.util.MediaStoreScanner;
 import jp.sacredsanctuary.gridviewtest.util.thread.LoadImageItemListThread;
 
+/**
+ * Holds the image list of the grid and keeps it in sync with MediaStore in the background.
+ * <p>
+ * If a {@link MediaIndex} from a previous run exists, it is published right away and
+ * reconciled against MediaStore afterwards, incrementally when the MediaStore version has not
+ * changed. Otherwise the list is published progressively: the first screenful as soon as it
+ * has been read, then in growing batches.
+ * <p>
+ * While the list is observed, MediaStore change notifications are debounced and merged into
+ * a single incremental sync. Every published {@link ImageItemList} carries the range changes
+ * from the previous one.
+ * <p>
+ * The grid can observe {@link #getImagePagedList()} or, for very large libraries,
+ * {@link #getImageCursorWindow()} instead; neither materializes the list, and every change
+ * is answered with a fresh query.
+ */
 public class ImageItemViewModel extends ViewModel {
     private static final String ClassName = ImageItemViewModel.class.getSimpleName();
-    private MutableLiveData<List<String>> mImageItemList;
+    /** Number of items published first; roughly one screen of the grid. */
+    private static final int FIRST_BATCH_SIZE = 60;
+    /** Rows read from the cursor between two publication checks. */
+    private static final int SCAN_CHUNK_SIZE = 30;
+    /** Preference key of the MediaStore version the index was built against. */
+    private static final String KEY_MEDIA_STORE_VERSION = "media_index_media_store_version";
+    /** Quiet period after the last change notification before syncing. */
+    private static final long SYNC_DELAY_MS = 500;
+    /** Upper bound for postponing a sync while notifications keep arriving. */
+    private static final long SYNC_MAX_DELAY_MS = 3000;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mSyncRunnable = this::requestSync;
+    private MutableLiveData<ImageItemList> mImageItemList;
+    /** Set on the main thread only, so the observers swap before the old window is closed. */
+    private MutableLiveData<MediaCursorWindow> mCursorWindow;
+    /** Set on the main thread only, like {@link #mCursorWindow}. */
+    private MutableLiveData<MediaPagedList> mPagedList;
+    private ContentObserver mMediaObserver;
+    /** Uptime of the first change notification not yet synced, 0 if none; main thread. */
+    private long mFirstPendingChange;
+
+    /** The last published snapshot; only accessed on the executor. */
+    private ImageItemList mPublished = ImageItemList.EMPTY;
 
-    public LiveData<List<String>> getImageItemList() {
+    public LiveData<ImageItemList> getImageItemList() {
         if (mImageItemList == null) {
             mImageItemList = new MutableLiveData<>();
-            mImageItemList.postValue(loadImageItemList());
+            mExecutor.submit(() -> loadImageItemList(true));
+            if (mMediaObserver == null) {
+                registerMediaObserver();
+            }
         }
         return mImageItemList;
     }
 
-    private List<String> loadImageItemList() {
-        List<String> list = new ArrayList<>();
-        ExecutorService exec = Executors.newSingleThreadExecutor();
-        Future<List<String>> future = exec.submit(
-                new LoadImageItemListThread(Application.getApplication().getContext()));
+    /**
+     * Returns the rows of the grid as a paged list of which only the pages around the
+     * viewport are loaded. Pages are loaded on the executor of this view model.
+     */
+    public LiveData<MediaPagedList> getImagePagedList() {
+        if (mPagedList == null) {
+            mPagedList = new MutableLiveData<>();
+            mExecutor.submit(() -> loadPagedList(0));
+            if (mMediaObserver == null) {
+                registerMediaObserver();
+            }
+        }
+        return mPagedList;
+    }
+
+    /**
+     * Returns the rows of the grid as a live cursor window, for the cursor mode of the adapter.
+     * The windows are owned by this view model and closed once replaced or cleared.
+     */
+    public LiveData<MediaCursorWindow> getImageCursorWindow() {
+        if (mCursorWindow == null) {
+            mCursorWindow = new MutableLiveData<>();
+            mExecutor.submit(this::queryCursorWindow);
+            if (mMediaObserver == null) {
+                registerMediaObserver();
+            }
+        }
+        return mCursorWindow;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onCleared() {
+        LogUtil.V(ClassName, "onCleared() ");
+        if (mMediaObserver != null) {
+            Application.getApplication().getContext().getContentResolver()
+                    .unregisterContentObserver(mMediaObserver);
+            mMediaObserver = null;
+        }
+        mHandler.removeCallbacks(mSyncRunnable);
+        mExecutor.shutdownNow();
+        if (mPagedList != null && mPagedList.getValue() != null) {
+            mPagedList.getValue().close();
+        }
+        if (mCursorWindow != null && mCursorWindow.getValue() != null) {
+            // Closing waits for a running fill, so keep it off the main thread.
+            AsyncHandler.post(mCursorWindow.getValue()::close);
+        }
+        super.onCleared();
+    }
+
+    private void registerMediaObserver() {
+        mMediaObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onMediaChanged();
+            }
+        };
+        Application.getApplication().getContext().getContentResolver().registerContentObserver(
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI, true, mMediaObserver);
+    }
+
+    /**
+     * Debounces change notifications: the sync runs once no notification arrived for
+     * {@link #SYNC_DELAY_MS}, but no later than {@link #SYNC_MAX_DELAY_MS} after the first one.
+     */
+    private void onMediaChanged() {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstPendingChange == 0) {
+            mFirstPendingChange = now;
+        }
+        long delay = Math.min(SYNC_DELAY_MS, (mFirstPendingChange + SYNC_MAX_DELAY_MS) - now);
+        LogUtil.V(ClassName, "onMediaChanged() [INF] delay:" + delay);
+        mHandler.removeCallbacks(mSyncRunnable);
+        mHandler.postDelayed(mSyncRunnable, Math.max(0, delay));
+    }
+
+    private void requestSync() {
+        mFirstPendingChange = 0;
+        if (mImageItemList != null) {
+            mExecutor.submit(() -> loadImageItemList(false));
+        }
+        if (mCursorWindow != null) {
+            mExecutor.submit(this::queryCursorWindow);
+        }
+        if (mPagedList != null) {
+            MediaPagedList current = mPagedList.getValue();
+            int page = (current != null) ? current.getAccessedPage() : 0;
+            mExecutor.submit(() -> loadPagedList(page));
+        }
+    }
+
+    /**
+     * Counts the rows, loads the pages around {@code page} and hands a new paged list to the
+     * observers; runs on the executor.
+     *
+     * @param page the page the grid currently shows
+     */
+    private void loadPagedList(int page) {
+        LogUtil.V(ClassName, "loadPagedList() [I N] page:" + page);
+        MediaPageLoader loader = new MediaPageLoader(
+                Application.getApplication().getContext().getContentResolver(),
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        MediaPagedList pagedList = new MediaPagedList(loader, mExecutor, loader.count());
+        pagedList.loadInitialPages(Math.min(page, Math.max(0, pagedList.getPageCount() - 1)));
+        mHandler.post(() -> {
+            if (mExecutor.isShutdown()) {
+                return;
+            }
+            MediaPagedList oldList = mPagedList.getValue();
+            mPagedList.setValue(pagedList);
+            if (oldList != null) {
+                oldList.close();
+            }
+        });
+        LogUtil.V(ClassName, "loadPagedList() [OUT] size:" + pagedList.size());
+    }
+
+    /**
+     * Queries a new cursor window and hands it to the observers; runs on the executor.
+     */
+    private void queryCursorWindow() {
+        MediaCursorWindow cursorWindow = MediaCursorWindow.query(
+                Application.getApplication().getContext().getContentResolver(),
+                MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
+        if (cursorWindow == null) {
+            return;
+        }
+        mHandler.post(() -> {
+            if (mExecutor.isShutdown()) {
+                AsyncHandler.post(cursorWindow::close);
+                return;
+            }
+            MediaCursorWindow oldWindow = mCursorWindow.getValue();
+            // setValue() swaps the window of every active observer before returning.
+            mCursorWindow.setValue(cursorWindow);
+            if (oldWindow != null) {
+                AsyncHandler.post(oldWindow::close);
+            }
+        });
+    }
+
+    /**
+     * Loads or refreshes the list; runs on the executor.
+     *
+     * @param initial {@code true} for the first load, which publishes the index right away
+     */
+    private void loadImageItemList(boolean initial) {
+        LogUtil.V(ClassName, "loadImageItemList() [I N] initial:" + initial);
+        Context context = Application.getApplication().getContext();
+        File indexFile = new File(context.getFilesDir(), MediaIndex.FILE_NAME);
+        if (initial) {
+            MediaIndex index = MediaIndex.open(indexFile);
+            if (index != null) {
+                LogUtil.V(ClassName, "loadImageItemList() [INF] index.size:" + index.size());
+                MediaItemStore store = index.toStore();
+                publish(store, ImageItemList.appended(0, store.size()));
+            }
+        }
+
+        SharedPreferences prefs = Application.getDefaultSharedPreferences(context);
+        String version = LoadImageItemListThread.getMediaStoreVersion(context);
+        MediaItemStore current = mPublished.getStore();
+        if (current.size() > 0
+                && version.equals(prefs.getString(KEY_MEDIA_STORE_VERSION, null))) {
+            MediaDelta delta = new LoadImageItemListThread(context).loadDelta(current);
+            if (delta != null) {
+                if (delta.isEmpty()) {
+                    LogUtil.V(ClassName, "loadImageItemList() [OUT] list is up to date");
+                    return;
+                }
+                MediaItemStore store = delta.applyTo(current);
+                publish(store, ImageItemList.diff(current, store));
+                writeIndex(store, indexFile, prefs, version);
+                LogUtil.V(ClassName, "loadImageItemList() [OUT] size:" + store.size());
+                return;
+            }
+        }
+
+        MediaItemStore.Builder builder = new MediaItemStore.Builder();
+        // Partial results would shrink a grid which already shows items; publish at the end.
+        ProgressivePublisher publisher = (current.size() == 0)
+                ? new ProgressivePublisher(builder) : null;
         try {
-            list.addAll(future.get());
-        } catch (ExecutionException e) {
-            LogUtil.E(ClassName, "loadImageItemList() [ERR] " + e.getMessage());
-        } catch (InterruptedException e) {
+            new LoadImageItemListThread(context, SCAN_CHUNK_SIZE, chunk -> {
+                builder.onChunkScanned(chunk);
+                if (publisher != null) {
+                    publisher.onChunkScanned(chunk);
+                }
+            }).call();
+        } catch (Exception e) {
             LogUtil.E(ClassName, "loadImageItemList() [ERR] " + e.getMessage());
+            return;
+        }
+
+        MediaItemStore store = builder.trimToSize().build();
+        if (store.contentEquals(current) && current.size() > 0) {
+            prefs.edit().putString(KEY_MEDIA_STORE_VERSION, version).apply();
+            LogUtil.V(ClassName, "loadImageItemList() [OUT] list is up to date");
+            return;
+        }
+        if (publisher != null) {
+            publisher.finish();
+        } else {
+            publish(store, ImageItemList.diff(current, store));
+        }
+        writeIndex(store, indexFile, prefs, version);
+        LogUtil.V(ClassName, "loadImageItemList() [OUT] size:" + store.size());
+    }
+
+    private void publish(MediaItemStore store, int[] changes) {
+        int generation = mPublished.getGeneration();
+        mPublished = new ImageItemList(store, generation + 1, generation, changes);
+        mImageItemList.postValue(mPublished);
+    }
+
+    private static void writeIndex(MediaItemStore store, File indexFile,
+            SharedPreferences prefs, String version) {
+        try {
+            MediaIndex.write(store, indexFile);
+            prefs.edit().putString(KEY_MEDIA_STORE_VERSION, version).apply();
+        } catch (IOException e) {
+            LogUtil.E(ClassName, "writeIndex() [ERR] " + e.getMessage());
+        }
+    }
+
+    /**
+     * Publishes the rows of a running scan in growing batches. Each batch is a store built
+     * from the shared builder, so publishing copies nothing.
+     */
+    private final class ProgressivePublisher
+            implements MediaStoreScanner.OnChunkScannedListener {
+        private final MediaItemStore.Builder mBuilder;
+        private int mNextPublishSize = FIRST_BATCH_SIZE;
+        private int mPublishedSize = 0;
+
+        ProgressivePublisher(MediaItemStore.Builder builder) {
+            mBuilder = builder;
+        }
+
+        @Override
+        public void onChunkScanned(MediaChunk chunk) {
+            if (mBuilder.size() >= mNextPublishSize) {
+                publishItems();
+                mNextPublishSize = mBuilder.size() * 2;
+            }
+        }
+
+        void finish() {
+            if (mPublishedSize != mBuilder.size() || mPublished.getGeneration() == 0) {
+                publishItems();
+            }
+        }
+
+        private void publishItems() {
+            LogUtil.V(ClassName, "publishItems() [INF] size:" + mBuilder.size());
+            int oldSize = mPublishedSize;
+            mPublishedSize = mBuilder.size();
+            publish(mBuilder.build(), ImageItemList.appended(oldSize, mPublishedSize - oldSize));
         }
-        return list;
     }
 }
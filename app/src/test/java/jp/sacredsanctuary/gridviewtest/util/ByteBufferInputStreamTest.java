@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link ByteBufferInputStream}.
+ */
+public class ByteBufferInputStreamTest {
+
+    @Test
+    public void read_returnsTheRemainingBytesOfASlice() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{1, 2, (byte) 0xff, 4, 5, 6});
+        buffer.position(1).limit(5);
+        ByteBufferInputStream in = new ByteBufferInputStream(buffer);
+
+        assertEquals(4, in.available());
+        assertEquals(2, in.read());
+        assertEquals(0xff, in.read());
+        byte[] bytes = new byte[4];
+        assertEquals(2, in.read(bytes, 1, 3));
+        assertArrayEquals(new byte[]{0, 4, 5, 0}, bytes);
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read(bytes, 0, 4));
+        assertEquals(0, in.read(bytes, 0, 0));
+        // The buffer passed in is not moved.
+        assertEquals(1, buffer.position());
+    }
+
+    @Test
+    public void reset_returnsToTheMark() {
+        ByteBufferInputStream in = new ByteBufferInputStream(
+                ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}));
+
+        assertTrue(in.markSupported());
+        assertEquals(2, in.skip(2));
+        in.mark(0);
+        assertEquals(3, in.read());
+        assertEquals(2, in.skip(10));
+        in.reset();
+        assertEquals(3, in.read());
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the sizes computed by {@link DownsamplingDecoder}.
+ */
+public class DownsamplingDecoderTest {
+    /** A 100dp cell at xxhdpi. */
+    private static final int CELL = 300;
+
+    @Test
+    public void computeTargetSize_fitsIntoTheCellKeepingAspectRatio() {
+        assertArrayEquals(new int[] {300, 225}, target(4032, 3024));
+        assertArrayEquals(new int[] {225, 300}, target(3024, 4032));
+        assertArrayEquals(new int[] {300, 300}, target(512, 512));
+        assertArrayEquals(new int[] {300, 1}, target(9000, 10));
+    }
+
+    @Test
+    public void computeTargetSize_doesNotScaleUp() {
+        assertArrayEquals(new int[] {200, 150}, target(200, 150));
+        assertArrayEquals(new int[] {300, 10}, target(300, 10));
+    }
+
+    @Test
+    public void computeSampleSize_isLargestPowerOfTwoStillCoveringTheTarget() {
+        // 4032 / 8 = 504 and 3024 / 8 = 378 still cover 300 x 225; 16 would not.
+        assertEquals(8, DownsamplingDecoder.computeSampleSize(4032, 3024, 300, 225));
+        // A mini thumbnail is only subsampled when it is twice the cell.
+        assertEquals(1, DownsamplingDecoder.computeSampleSize(512, 384, 300, 225));
+        assertEquals(2, DownsamplingDecoder.computeSampleSize(512, 384, 256, 192));
+        assertEquals(1, DownsamplingDecoder.computeSampleSize(200, 150, 200, 150));
+        // Limited by the height.
+        assertEquals(2, DownsamplingDecoder.computeSampleSize(4000, 500, 300, 200));
+    }
+
+    private static int[] target(int width, int height) {
+        return DownsamplingDecoder.computeTargetSize(width, height, CELL);
+    }
+}
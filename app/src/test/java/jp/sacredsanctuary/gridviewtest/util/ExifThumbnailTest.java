@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link ExifThumbnail}, on synthetic JPEG files laid out like the ones
+ * cameras write.
+ */
+public class ExifThumbnailTest {
+    private static final int THUMBNAIL_WIDTH = 160;
+    private static final int THUMBNAIL_HEIGHT = 120;
+    private static final int THUMBNAIL_BYTES = 6000;
+
+    @Test
+    public void read_returnsThumbnailAndOrientation() throws IOException {
+        for (boolean littleEndian : new boolean[] {true, false}) {
+            Random random = new Random(21);
+            byte[] thumbnail = createThumbnail(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT,
+                    THUMBNAIL_BYTES, random);
+            byte[] jpeg = createJpeg(littleEndian, 6, thumbnail, 100_000, random);
+
+            ExifThumbnail exif = ExifThumbnail.read(new ByteArrayInputStream(jpeg));
+            assertNotNull(exif);
+            assertEquals(6, exif.getOrientation());
+            assertTrue(exif.hasThumbnail());
+            assertEquals(THUMBNAIL_WIDTH, exif.getWidth());
+            assertEquals(THUMBNAIL_HEIGHT, exif.getHeight());
+            assertArrayEquals(thumbnail, Arrays.copyOfRange(exif.getData(), exif.getOffset(),
+                    exif.getOffset() + exif.getLength()));
+        }
+    }
+
+    @Test
+    public void read_readsOnlyTheHeader() throws IOException {
+        Random random = new Random(21);
+        byte[] jpeg = createJpeg(true, 1,
+                createThumbnail(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, THUMBNAIL_BYTES, random),
+                4 * 1024 * 1024, random);
+        CountingInputStream in = new CountingInputStream(new ByteArrayInputStream(jpeg));
+
+        assertNotNull(ExifThumbnail.read(in));
+        assertTrue("read " + in.count + " bytes", in.count < THUMBNAIL_BYTES + 1024);
+    }
+
+    @Test
+    public void read_withoutThumbnailKeepsOrientation() throws IOException {
+        byte[] jpeg = createJpeg(false, 8, null, 1000, new Random(21));
+
+        ExifThumbnail exif = ExifThumbnail.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(exif);
+        assertEquals(8, exif.getOrientation());
+        assertFalse(exif.hasThumbnail());
+    }
+
+    @Test
+    public void read_otherFilesHaveNoExif() throws IOException {
+        assertNull(ExifThumbnail.read(new ByteArrayInputStream(new byte[] {(byte) 0x89, 'P',
+                'N', 'G', '\r', '\n', 0x1a, '\n'})));
+        // A JPEG without APP1 goes from the frame straight to the scan. Its APP1 marker
+        // follows SOI and the 18 bytes of APP0.
+        byte[] jpeg = createJpeg(true, 1, null, 1000, new Random(21));
+        byte[] withoutApp1 = jpeg.clone();
+        assertEquals((byte) 0xe1, withoutApp1[21]);
+        withoutApp1[21] = (byte) 0xe2;
+        assertNull(ExifThumbnail.read(new ByteArrayInputStream(withoutApp1)));
+    }
+
+    @Test
+    public void read_corruptHeadersNeverReadOutOfBounds() {
+        Random random = new Random(21);
+        byte[] jpeg = createJpeg(random.nextBoolean(), 3,
+                createThumbnail(THUMBNAIL_WIDTH, THUMBNAIL_HEIGHT, 600, random), 1000, random);
+        for (int i = 0; i < 20_000; i++) {
+            byte[] corrupt = jpeg.clone();
+            for (int flips = 1 + random.nextInt(4); flips > 0; flips--) {
+                corrupt[random.nextInt(200)] = (byte) random.nextInt();
+            }
+            try {
+                ExifThumbnail exif = ExifThumbnail.read(new ByteArrayInputStream(corrupt));
+                if (exif != null) {
+                    assertTrue(exif.getOrientation() >= ExifThumbnail.ORIENTATION_NORMAL
+                            && exif.getOrientation() <= ExifThumbnail.ORIENTATION_MAX);
+                    assertTrue(exif.getOffset() + exif.getLength() <= exif.getData().length);
+                }
+            } catch (IOException e) {
+                // A length pointing past the end of the file.
+            }
+        }
+    }
+
+    /**
+     * A JPEG with a JFIF segment, then an EXIF segment holding the orientation and, unless
+     * {@code thumbnail} is {@code null}, the thumbnail, then {@code imageBytes} of scan data.
+     */
+    static byte[] createJpeg(boolean littleEndian, int orientation, byte[] thumbnail,
+            int imageBytes, Random random) {
+        ByteArrayOutputStream tiff = new ByteArrayOutputStream();
+        Writer w = new Writer(tiff, littleEndian);
+        tiff.write(littleEndian ? 'I' : 'M');
+        tiff.write(littleEndian ? 'I' : 'M');
+        w.u16(42);
+        w.u32(8);
+        // IFD0: make, orientation; then IFD1 right after it.
+        int ifd1 = 8 + 2 + (2 * 12) + 4;
+        w.u16(2);
+        w.entry(0x010f, 2, 4, ('C' << 24) | ('a' << 16) | ('m' << 8));
+        w.entry(0x0112, 3, 1, littleEndian ? orientation : (orientation << 16));
+        w.u32((thumbnail != null) ? ifd1 : 0);
+        if (thumbnail != null) {
+            w.u16(2);
+            w.entry(0x0201, 4, 1, ifd1 + 2 + (2 * 12) + 4);
+            w.entry(0x0202, 4, 1, thumbnail.length);
+            w.u32(0);
+            tiff.write(thumbnail, 0, thumbnail.length);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        byte[] jfif = {'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0};
+        segment(out, 0xe0, jfif);
+        byte[] tiffBytes = tiff.toByteArray();
+        byte[] app1 = new byte[6 + tiffBytes.length];
+        System.arraycopy(new byte[] {'E', 'x', 'i', 'f', 0, 0}, 0, app1, 0, 6);
+        System.arraycopy(tiffBytes, 0, app1, 6, tiffBytes.length);
+        segment(out, 0xe1, app1);
+        writeFrameAndScan(out, 4032, 3024, imageBytes, random);
+        return out.toByteArray();
+    }
+
+    /** A JPEG of {@code bytes} with a frame header of the given size and noise as scan. */
+    static byte[] createThumbnail(int width, int height, int bytes, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xff);
+        out.write(0xd8);
+        segment(out, 0xdb, new byte[65]);
+        writeFrameAndScan(out, width, height, bytes - out.size() - 19 - 14 - 2, random);
+        return out.toByteArray();
+    }
+
+    private static void writeFrameAndScan(ByteArrayOutputStream out, int width, int height,
+            int scanBytes, Random random) {
+        segment(out, 0xc0, new byte[] {8, (byte) (height >> 8), (byte) height,
+                (byte) (width >> 8), (byte) width, 3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+        segment(out, 0xda, new byte[] {3, 1, 0, 2, 0x11, 3, 0x11, 0, 0x3f, 0});
+        byte[] scan = new byte[Math.max(0, scanBytes)];
+        random.nextBytes(scan);
+        for (int i = 0; i < scan.length; i++) {
+            if (scan[i] == (byte) 0xff) {
+                // Would be stuffed in real scan data.
+                scan[i] = 0;
+            }
+        }
+        out.write(scan, 0, scan.length);
+        out.write(0xff);
+        out.write(0xd9);
+    }
+
+    private static void segment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xff);
+        out.write(marker);
+        out.write((payload.length + 2) >> 8);
+        out.write(payload.length + 2);
+        out.write(payload, 0, payload.length);
+    }
+
+    private static final class Writer {
+        private final ByteArrayOutputStream mOut;
+        private final boolean mLittleEndian;
+
+        Writer(ByteArrayOutputStream out, boolean littleEndian) {
+            mOut = out;
+            mLittleEndian = littleEndian;
+        }
+
+        void u16(int value) {
+            if (mLittleEndian) {
+                mOut.write(value);
+                mOut.write(value >> 8);
+            } else {
+                mOut.write(value >> 8);
+                mOut.write(value);
+            }
+        }
+
+        void u32(int value) {
+            if (mLittleEndian) {
+                u16(value & 0xffff);
+                u16(value >>> 16);
+            } else {
+                u16(value >>> 16);
+                u16(value & 0xffff);
+            }
+        }
+
+        void entry(int tag, int type, int count, int value) {
+            u16(tag);
+            u16(type);
+            u32(count);
+            u32(value);
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value >= 0) {
+                count++;
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
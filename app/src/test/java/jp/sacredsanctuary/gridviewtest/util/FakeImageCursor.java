@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.content.ContentResolver;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DataSetObserver;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * In-memory stand-in for a MediaStore images cursor holding the
+ * {@link MediaStoreScanner#PROJECTION} columns.
+ * <p>
+ * All row values are created up front so a test only measures what the code under test
+ * allocates while reading.
+ */
+public class FakeImageCursor implements Cursor {
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_DATA = 1;
+    private static final int COLUMN_DATE_MODIFIED = 2;
+    private static final int COLUMN_MIME_TYPE = 3;
+    private static final int COLUMN_WIDTH = 4;
+    private static final int COLUMN_HEIGHT = 5;
+
+    private final long[] mIds;
+    private final String[] mPaths;
+    private final long[] mDates;
+    private final String[] mMimeTypes;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private int mPosition = -1;
+    private boolean mClosed;
+
+    public FakeImageCursor(long[] ids, String[] paths, long[] dates, String[] mimeTypes,
+            int[] widths, int[] heights) {
+        mIds = ids;
+        mPaths = paths;
+        mDates = dates;
+        mMimeTypes = mimeTypes;
+        mWidths = widths;
+        mHeights = heights;
+    }
+
+    /**
+     * Creates a cursor of {@code count} rows sorted by {@link MediaStoreScanner#SORT_ORDER},
+     * spread over a few camera-like directories.
+     */
+    public static FakeImageCursor create(int count) {
+        return create(count, "/storage/emulated/0", 1_500_000_000L);
+    }
+
+    /**
+     * Creates a cursor of {@code count} rows rooted at {@code volumeRoot}, newest row
+     * modified at {@code newestDate} seconds.
+     */
+    public static FakeImageCursor create(int count, String volumeRoot, long newestDate) {
+        return create(count, volumeRoot, newestDate, 0, 1);
+    }
+
+    /**
+     * Creates a cursor of {@code count} rows rooted at {@code volumeRoot}, as one volume of a
+     * provider spanning several: ids start after {@code idBase} and the rows were modified
+     * every {@code dateStep} seconds, newest at {@code newestDate}.
+     */
+    public static FakeImageCursor create(int count, String volumeRoot, long newestDate,
+            long idBase, int dateStep) {
+        final String[] dirs = {
+                volumeRoot + "/DCIM/Camera/",
+                volumeRoot + "/Pictures/Screenshots/",
+                volumeRoot + "/Download/",
+        };
+        final String jpeg = "image/jpeg";
+        final String png = "image/png";
+        long[] ids = new long[count];
+        String[] paths = new String[count];
+        long[] dates = new long[count];
+        String[] mimeTypes = new String[count];
+        int[] widths = new int[count];
+        int[] heights = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = idBase + count - i;
+            boolean screenshot = (i % 7) == 0;
+            paths[i] = dirs[screenshot ? 1 : ((i % 11) == 0 ? 2 : 0)]
+                    + (screenshot ? "Screenshot_" : "IMG_") + (count - i)
+                    + (screenshot ? ".png" : ".jpg");
+            dates[i] = newestDate - ((long) i * dateStep);
+            mimeTypes[i] = screenshot ? png : jpeg;
+            widths[i] = screenshot ? 1080 : 4032;
+            heights[i] = screenshot ? 2340 : 3024;
+        }
+        return new FakeImageCursor(ids, paths, dates, mimeTypes, widths, heights);
+    }
+
+    @Override
+    public int getCount() {
+        return mIds.length;
+    }
+
+    @Override
+    public int getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        int count = getCount();
+        if (position >= count) {
+            mPosition = count;
+            return false;
+        }
+        if (position < 0) {
+            mPosition = -1;
+            return false;
+        }
+        mPosition = position;
+        return true;
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(getCount() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    @Override
+    public boolean isFirst() {
+        return mPosition == 0 && getCount() != 0;
+    }
+
+    @Override
+    public boolean isLast() {
+        return mPosition == getCount() - 1 && getCount() != 0;
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return getCount() == 0 || mPosition == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return getCount() == 0 || mPosition == getCount();
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        String[] names = MediaStoreScanner.PROJECTION;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return MediaStoreScanner.PROJECTION[columnIndex];
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return MediaStoreScanner.PROJECTION.clone();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return MediaStoreScanner.PROJECTION.length;
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        switch (columnIndex) {
+            case COLUMN_DATA:
+                return mPaths[mPosition];
+            case COLUMN_MIME_TYPE:
+                return mMimeTypes[mPosition];
+            default:
+                return String.valueOf(getLong(columnIndex));
+        }
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        switch (columnIndex) {
+            case COLUMN_ID:
+                return mIds[mPosition];
+            case COLUMN_DATE_MODIFIED:
+                return mDates[mPosition];
+            case COLUMN_WIDTH:
+                return mWidths[mPosition];
+            case COLUMN_HEIGHT:
+                return mHeights[mPosition];
+            default:
+                throw new IllegalArgumentException("not a numeric column: " + columnIndex);
+        }
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return getLong(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        return getLong(columnIndex);
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        return (columnIndex == COLUMN_DATA || columnIndex == COLUMN_MIME_TYPE)
+                ? FIELD_TYPE_STRING : FIELD_TYPE_INTEGER;
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return false;
+    }
+
+    @Override
+    @Deprecated
+    public void deactivate() {
+    }
+
+    @Override
+    @Deprecated
+    public boolean requery() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    @Override
+    public void registerContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void unregisterContentObserver(ContentObserver observer) {
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+    }
+
+    @Override
+    public void setNotificationUri(ContentResolver cr, Uri uri) {
+    }
+
+    @Override
+    public Uri getNotificationUri() {
+        return null;
+    }
+
+    @Override
+    public boolean getWantsAllOnMoveCalls() {
+        return false;
+    }
+
+    @Override
+    public void setExtras(Bundle extras) {
+    }
+
+    @Override
+    public Bundle getExtras() {
+        return null;
+    }
+
+    @Override
+    public Bundle respond(Bundle extras) {
+        return null;
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link InFlightRegistry}.
+ */
+public class InFlightRegistryTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    /** Counts the references on each value, as the bitmap pool does. */
+    private static final class Counting implements InFlightRegistry.Sharing<Object> {
+        final IdentityHashMap<Object, Integer> references = new IdentityHashMap<>();
+
+        synchronized void add(Object value) {
+            references.put(value, 1);
+        }
+
+        @Override
+        public synchronized void acquire(Object value) {
+            references.put(value, references.get(value) + 1);
+        }
+
+        @Override
+        public synchronized void release(Object value) {
+            int count = references.get(value) - 1;
+            assertTrue("released too often", count >= 0);
+            references.put(value, count);
+        }
+
+        synchronized int count(Object value) {
+            return references.get(value);
+        }
+    }
+
+    /** A work blocking until released, counting how often it ran. */
+    private static final class BlockingWork implements InFlightRegistry.Work<Object> {
+        final Counting sharing;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+        volatile boolean sawCancel;
+
+        BlockingWork(Counting sharing) {
+            this.sharing = sharing;
+        }
+
+        @Override
+        public Object run(InFlightRegistry.Signal signal) {
+            runs.incrementAndGet();
+            started.countDown();
+            try {
+                finish.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new AssertionError(e);
+            }
+            sawCancel = signal.isCancelled();
+            Object value = new Object();
+            sharing.add(value);
+            return value;
+        }
+    }
+
+    private static Thread call(final InFlightRegistry<Object> registry,
+            final InFlightRegistry<Object>.Waiter waiter, final InFlightRegistry.Work<Object> work,
+            final AtomicReference<Object> result) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result.set(registry.get(1, 1, waiter, work));
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(InFlightRegistry<Object> registry, int coalesced)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (registry.getCoalescedCount() < coalesced && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(coalesced, registry.getCoalescedCount());
+    }
+
+    @Test
+    public void get_duplicatesShareOneRun() throws InterruptedException {
+        Counting sharing = new Counting();
+        InFlightRegistry<Object> registry = new InFlightRegistry<>(sharing);
+        BlockingWork work = new BlockingWork(sharing);
+        AtomicReference<Object> first = new AtomicReference<>();
+        AtomicReference<Object> second = new AtomicReference<>();
+        AtomicReference<Object> third = new AtomicReference<>();
+
+        Thread a = call(registry, registry.newWaiter(), work, first);
+        assertTrue(work.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        Thread b = call(registry, registry.newWaiter(), work, second);
+        Thread c = call(registry, registry.newWaiter(), work, third);
+        awaitWaiting(registry, 2);
+        work.finish.countDown();
+        a.join();
+        b.join();
+        c.join();
+
+        assertEquals(1, work.runs.get());
+        assertNotNull(first.get());
+        assertSame(first.get(), second.get());
+        assertSame(first.get(), third.get());
+        // One reference for each caller; the one of the work was handed over.
+        assertEquals(3, sharing.count(first.get()));
+        assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void cancel_keepsWorkWhileOthersWait() throws InterruptedException {
+        Counting sharing = new Counting();
+        InFlightRegistry<Object> registry = new InFlightRegistry<>(sharing);
+        BlockingWork work = new BlockingWork(sharing);
+        AtomicReference<Object> first = new AtomicReference<>();
+        AtomicReference<Object> second = new AtomicReference<>();
+
+        InFlightRegistry<Object>.Waiter owner = registry.newWaiter();
+        Thread a = call(registry, owner, work, first);
+        assertTrue(work.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        InFlightRegistry<Object>.Waiter other = registry.newWaiter();
+        Thread b = call(registry, other, work, second);
+        awaitWaiting(registry, 1);
+        owner.cancel();
+        work.finish.countDown();
+        a.join();
+        b.join();
+
+        assertFalse(work.sawCancel);
+        assertNull(first.get());
+        assertNotNull(second.get());
+        assertEquals(1, sharing.count(second.get()));
+    }
+
+    @Test
+    public void cancel_lastWaiterStopsWork() throws InterruptedException {
+        Counting sharing = new Counting();
+        InFlightRegistry<Object> registry = new InFlightRegistry<>(sharing);
+        BlockingWork work = new BlockingWork(sharing);
+        AtomicReference<Object> first = new AtomicReference<>();
+        AtomicReference<Object> second = new AtomicReference<>();
+
+        InFlightRegistry<Object>.Waiter owner = registry.newWaiter();
+        Thread a = call(registry, owner, work, first);
+        assertTrue(work.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        InFlightRegistry<Object>.Waiter other = registry.newWaiter();
+        Thread b = call(registry, other, work, second);
+        awaitWaiting(registry, 1);
+        other.cancel();
+        b.join();
+        assertNull(second.get());
+        owner.cancel();
+        // A later call does not join the cancelled load.
+        assertEquals(0, registry.size());
+        work.finish.countDown();
+        a.join();
+
+        assertTrue(work.sawCancel);
+        assertNull(first.get());
+        // The result of the cancelled work went back.
+        assertEquals(1, sharing.references.size());
+        assertEquals(0, sharing.count(sharing.references.keySet().iterator().next()));
+    }
+
+    @Test
+    public void get_cancelledWaiterReturnsAtOnce() {
+        Counting sharing = new Counting();
+        InFlightRegistry<Object> registry = new InFlightRegistry<>(sharing);
+        BlockingWork work = new BlockingWork(sharing);
+        InFlightRegistry<Object>.Waiter waiter = registry.newWaiter();
+        waiter.cancel();
+
+        assertNull(registry.get(1, 1, waiter, work));
+        assertEquals(0, work.runs.get());
+        assertEquals(0, registry.size());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link MediaDelta} on a 100k row snapshot with a handful of changes.
+ */
+public class MediaDeltaTest {
+    private static final int ROW_COUNT = 100_000;
+    private static final int NEW_SHOTS = 20;
+    private static final long NEWEST_DATE = 1_500_000_000L;
+
+    private MediaItemStore mStore;
+
+    @Before
+    public void setUp() {
+        MediaItemStore.Builder builder = new MediaItemStore.Builder();
+        MediaStoreScanner.scan(FakeImageCursor.create(ROW_COUNT), 256, builder);
+        mStore = builder.build();
+    }
+
+    @Test
+    public void compute_newShotsAndOneDeletion() {
+        // 20 new shots newer than the snapshot, and the row with id 500 deleted.
+        FakeImageCursor changed = newShots(NEW_SHOTS);
+        long[] currentIds = new long[ROW_COUNT - 1 + NEW_SHOTS];
+        int n = 0;
+        for (long id = 1; id <= ROW_COUNT + NEW_SHOTS; id++) {
+            if (id != 500) {
+                currentIds[n++] = id;
+            }
+        }
+
+        MediaDelta delta = MediaDelta.compute(mStore, changed, idCursor(currentIds));
+
+        long[] insertedIds = new long[NEW_SHOTS];
+        for (int i = 0; i < NEW_SHOTS; i++) {
+            insertedIds[i] = ROW_COUNT + NEW_SHOTS - i;
+        }
+        assertArrayEquals(insertedIds, delta.getInsertedIds());
+        assertEquals(0, delta.getUpdatedIds().length);
+        assertArrayEquals(new long[]{500}, delta.getDeletedIds());
+
+        MediaItemStore result = delta.applyTo(mStore);
+        assertEquals(ROW_COUNT - 1 + NEW_SHOTS, result.size());
+        assertEquals(ROW_COUNT + NEW_SHOTS, result.getId(0));
+        assertEquals(ROW_COUNT, result.getId(NEW_SHOTS));
+        for (int i = 1; i < result.size(); i++) {
+            assertNotEquals(500, result.getId(i));
+            assertTrue(result.getDateModified(i - 1) >= result.getDateModified(i));
+        }
+    }
+
+    @Test
+    public void compute_updatedRowMovesToTop() {
+        // Row 42 was edited: it is reported by the changed query with a new date.
+        FakeImageCursor changed = new FakeImageCursor(new long[]{42},
+                new String[]{"/storage/emulated/0/DCIM/Camera/IMG_42_edited.jpg"},
+                new long[]{NEWEST_DATE + 5}, new String[]{"image/jpeg"},
+                new int[]{4032}, new int[]{3024});
+        long[] currentIds = new long[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            currentIds[i] = i + 1;
+        }
+
+        MediaDelta delta = MediaDelta.compute(mStore, changed, idCursor(currentIds));
+
+        assertEquals(0, delta.getInsertedIds().length);
+        assertArrayEquals(new long[]{42}, delta.getUpdatedIds());
+        assertEquals(0, delta.getDeletedIds().length);
+        MediaItemStore result = delta.applyTo(mStore);
+        assertEquals(ROW_COUNT, result.size());
+        assertEquals(42, result.getId(0));
+        assertEquals("/storage/emulated/0/DCIM/Camera/IMG_42_edited.jpg", result.getPath(0));
+    }
+
+    @Test
+    public void compute_noChanges() {
+        FakeImageCursor changed = newShots(0);
+        long[] currentIds = new long[ROW_COUNT];
+        for (int i = 0; i < ROW_COUNT; i++) {
+            currentIds[i] = i + 1;
+        }
+
+        assertTrue(MediaDelta.compute(mStore, changed, idCursor(currentIds)).isEmpty());
+    }
+
+    @Test
+    public void compute_rowOfTheSnapshotSecondIsInserted() {
+        // A shot taken in the same second as the newest row of the snapshot: the changed
+        // query selects both, and only the new one is a change.
+        FakeImageCursor changed = new FakeImageCursor(new long[]{ROW_COUNT + 1, ROW_COUNT},
+                new String[]{"/storage/emulated/0/DCIM/Camera/IMG_SAME_SECOND.jpg",
+                        mStore.getPath(0)},
+                new long[]{NEWEST_DATE, NEWEST_DATE}, new String[]{"image/jpeg", "image/jpeg"},
+                new int[]{4032, 4032}, new int[]{3024, 3024});
+        long[] currentIds = new long[ROW_COUNT + 1];
+        for (int i = 0; i < currentIds.length; i++) {
+            currentIds[i] = i + 1;
+        }
+
+        MediaDelta delta = MediaDelta.compute(mStore, changed, idCursor(currentIds));
+
+        assertEquals(NEWEST_DATE, mStore.getLastSync());
+        assertArrayEquals(new long[]{ROW_COUNT + 1}, delta.getInsertedIds());
+        assertEquals(0, delta.getUpdatedIds().length);
+        assertEquals(0, delta.getDeletedIds().length);
+        MediaItemStore result = delta.applyTo(mStore);
+        assertEquals(ROW_COUNT + 1, result.size());
+        assertEquals(ROW_COUNT + 1, result.getId(0));
+        assertEquals(ROW_COUNT, result.getId(1));
+    }
+
+    @Test
+    public void compute_deletionHiddenByUnreportedInsertion() {
+        // One shot reported, another one not, and the row with id 500 deleted: as many ids as
+        // the snapshot plus the reported shot.
+        FakeImageCursor changed = newShots(1);
+        long[] currentIds = new long[ROW_COUNT + 1];
+        int n = 0;
+        for (long id = 1; id <= ROW_COUNT + 2; id++) {
+            if (id != 500) {
+                currentIds[n++] = id;
+            }
+        }
+
+        MediaDelta delta = MediaDelta.compute(mStore, changed, idCursor(currentIds));
+
+        assertArrayEquals(new long[]{ROW_COUNT + 1}, delta.getInsertedIds());
+        assertArrayEquals(new long[]{500}, delta.getDeletedIds());
+    }
+
+    @Test
+    public void getLastSync_ignoresDatesInTheFuture() {
+        long now = System.currentTimeMillis() / 1000;
+        MediaItemStore store = new MediaItemStore.Builder()
+                .add(2, "/storage/emulated/0/DCIM/Camera/IMG_FUTURE.jpg", now + 86_400,
+                        "image/jpeg", 4032, 3024)
+                .add(1, "/storage/emulated/0/DCIM/Camera/IMG_NOW.jpg", now - 60, "image/jpeg",
+                        4032, 3024)
+                .build();
+
+        assertEquals(now - 60, store.getLastSync());
+    }
+
+    static FakeImageCursor newShots(int count) {
+        long[] ids = new long[count];
+        String[] paths = new String[count];
+        long[] dates = new long[count];
+        String[] mimeTypes = new String[count];
+        int[] widths = new int[count];
+        int[] heights = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = ROW_COUNT + count - i;
+            paths[i] = "/storage/emulated/0/DCIM/Camera/IMG_BURST_" + ids[i] + ".jpg";
+            dates[i] = NEWEST_DATE + count - i;
+            mimeTypes[i] = "image/jpeg";
+            widths[i] = 4032;
+            heights[i] = 3024;
+        }
+        return new FakeImageCursor(ids, paths, dates, mimeTypes, widths, heights);
+    }
+
+    static FakeImageCursor idCursor(long[] ids) {
+        int count = ids.length;
+        return new FakeImageCursor(ids, new String[count], new long[count], new String[count],
+                new int[count], new int[count]);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link MediaIndex}: reading a written index back, and rejecting
+ * truncated files and corrupt offset tables when opening.
+ */
+public class MediaIndexTest {
+    private static final int ROW_COUNT = 1000;
+    /** Header and records before the offset table, as laid out by {@link MediaIndex}. */
+    private static final int OFFSET_TABLE = 32 + (ROW_COUNT * 32);
+
+    private File mDirectory;
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("index").toFile();
+        mFile = new File(mDirectory, MediaIndex.FILE_NAME);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void toStore_readsTheWrittenRows() throws IOException {
+        MediaItemStore written = writeIndex();
+
+        MediaIndex index = MediaIndex.open(mFile);
+
+        assertNotNull(index);
+        MediaItemStore store = index.toStore();
+        assertEquals(ROW_COUNT, store.size());
+        assertEquals(written.getLastSync(), store.getLastSync());
+        assertTrue(store.contentEquals(written));
+        for (int i = 0; i < ROW_COUNT; i++) {
+            assertEquals(written.getWidth(i), store.getWidth(i));
+            assertEquals(written.getHeight(i), store.getHeight(i));
+            assertEquals(written.getMimeType(i), store.getMimeType(i));
+        }
+    }
+
+    @Test
+    public void open_rejectsTruncatedFile() throws IOException {
+        writeIndex();
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+
+        assertNull(MediaIndex.open(mFile));
+    }
+
+    @Test
+    public void open_rejectsOffsetsOutsideTheBlob() throws IOException {
+        writeIndex();
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(OFFSET_TABLE + (ROW_COUNT / 2) * 4);
+            raf.writeInt(Integer.MAX_VALUE);
+        }
+
+        assertNull(MediaIndex.open(mFile));
+    }
+
+    @Test
+    public void open_rejectsDecreasingOffsets() throws IOException {
+        writeIndex();
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.seek(OFFSET_TABLE + (ROW_COUNT / 2) * 4);
+            raf.writeInt(0);
+        }
+
+        assertNull(MediaIndex.open(mFile));
+    }
+
+    private MediaItemStore writeIndex() throws IOException {
+        MediaItemStore.Builder builder = new MediaItemStore.Builder();
+        for (int i = 0; i < ROW_COUNT; i++) {
+            builder.add(ROW_COUNT - i, "/storage/emulated/0/DCIM/Camera/IMG_" + i + ".jpg",
+                    1_500_000_000L - i, (i % 2 == 0) ? "image/jpeg" : "image/png",
+                    4000 + i, 3000 + i);
+        }
+        MediaItemStore store = builder.build();
+        MediaIndex.write(store, mFile);
+        return store;
+    }
+}
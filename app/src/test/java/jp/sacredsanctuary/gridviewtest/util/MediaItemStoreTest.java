@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link MediaItemStore}.
+ */
+public class MediaItemStoreTest {
+
+    @Test
+    public void contentEquals_comparesNullPaths() {
+        MediaItemStore withPath = store("/storage/emulated/0/DCIM/2.jpg");
+        MediaItemStore withoutPath = store(null);
+
+        assertTrue(withoutPath.contentEquals(store(null)));
+        assertFalse(withoutPath.contentEquals(withPath));
+        assertFalse(withPath.contentEquals(withoutPath));
+    }
+
+    private static MediaItemStore store(String secondPath) {
+        return new MediaItemStore.Builder()
+                .add(3, "/storage/emulated/0/DCIM/3.jpg", 30, "image/jpeg", 640, 480)
+                .add(2, secondPath, 20, "image/jpeg", 640, 480)
+                .build();
+    }
+}
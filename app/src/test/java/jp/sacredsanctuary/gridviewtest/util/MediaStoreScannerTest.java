@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import android.database.Cursor;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link MediaStoreScanner} against a 100k row fake provider, and against
+ * fake volumes of skewed sizes for the multi-volume scan.
+ */
+public class MediaStoreScannerTest {
+    private static final int ROW_COUNT = 100_000;
+    private static final int CHUNK_SIZE = MediaStoreScanner.DEFAULT_CHUNK_SIZE;
+
+    /** Rows of the fake volumes: internal storage, SD card, USB stick and an empty volume. */
+    static final int[] VOLUME_ROWS = {60_000, 9_000, 700, 0};
+
+    @Test
+    public void scan_deliversEveryRowInOrderAndInFixedChunks() {
+        FakeImageCursor cursor = FakeImageCursor.create(ROW_COUNT);
+        final long[] expectedNextId = {ROW_COUNT};
+        final int[] chunks = {0};
+
+        int count = MediaStoreScanner.scan(cursor, CHUNK_SIZE, chunk -> {
+            chunks[0]++;
+            assertEquals(CHUNK_SIZE, chunk.capacity());
+            for (int i = 0; i < chunk.size(); i++) {
+                assertEquals(expectedNextId[0]--, chunk.ids[i]);
+                assertNotNull(chunk.paths[i]);
+            }
+        });
+
+        assertEquals(ROW_COUNT, count);
+        assertEquals(0, expectedNextId[0]);
+        assertEquals((ROW_COUNT + CHUNK_SIZE - 1) / CHUNK_SIZE, chunks[0]);
+        assertFalse("scan(Cursor) must leave closing to the caller", cursor.isClosed());
+    }
+
+    @Test
+    public void scan_skipsRowsWithoutPath() {
+        FakeImageCursor cursor = new FakeImageCursor(new long[]{3, 2, 1},
+                new String[]{"/storage/emulated/0/DCIM/3.jpg", null,
+                        "/storage/emulated/0/DCIM/1.jpg"},
+                new long[]{30, 20, 10}, new String[]{"image/jpeg", "image/jpeg", "image/jpeg"},
+                new int[]{640, 640, 640}, new int[]{480, 480, 480});
+        MediaItemStore.Builder builder = new MediaItemStore.Builder();
+
+        int count = MediaStoreScanner.scan(cursor, CHUNK_SIZE, builder);
+
+        MediaItemStore store = builder.build();
+        assertEquals(2, count);
+        assertEquals(2, store.size());
+        assertEquals(3, store.getId(0));
+        assertEquals(1, store.getId(1));
+        assertEquals("/storage/emulated/0/DCIM/1.jpg", store.getPath(1));
+    }
+
+    @Test
+    public void scan_reusesOneChunk() {
+        final MediaChunk[] first = {null};
+        final int[] chunks = {0};
+
+        int count = MediaStoreScanner.scan(FakeImageCursor.create(ROW_COUNT), CHUNK_SIZE,
+                chunk -> {
+                    if (first[0] == null) {
+                        first[0] = chunk;
+                    }
+                    assertSame(first[0], chunk);
+                    chunks[0]++;
+                });
+
+        assertEquals(ROW_COUNT, count);
+        assertEquals((ROW_COUNT + CHUNK_SIZE - 1) / CHUNK_SIZE, chunks[0]);
+        // Cleared after the last callback, so the chunk does not pin the rows.
+        assertEquals(0, first[0].size());
+        assertNull(first[0].paths[0]);
+    }
+
+    @Test
+    public void scanVolumes_mergesSkewedVolumesIntoOneSortedStream() throws Exception {
+        final List<Long> ids = new ArrayList<>();
+        final long[] last = {Long.MAX_VALUE, Long.MAX_VALUE};
+        final Set<Integer> chunkSizes = new HashSet<>();
+        ExecutorService executor = Executors.newFixedThreadPool(VOLUME_ROWS.length);
+        try {
+            int count = MediaStoreScanner.scanVolumes(createVolumes(null), executor,
+                    CHUNK_SIZE, chunk -> {
+                        chunkSizes.add(chunk.size());
+                        for (int i = 0; i < chunk.size(); i++) {
+                            long date = chunk.dateModified[i];
+                            long id = chunk.ids[i];
+                            assertTrue("out of order at " + ids.size(), date < last[0]
+                                    || (date == last[0] && id < last[1]));
+                            last[0] = date;
+                            last[1] = id;
+                            ids.add(id);
+                        }
+                    });
+
+            int total = 0;
+            for (int rows : VOLUME_ROWS) {
+                total += rows;
+            }
+            assertEquals(total, count);
+            assertEquals(total, ids.size());
+            assertEquals(total, new HashSet<>(ids).size());
+            // Full chunks and a trailing partial one.
+            assertEquals(2, chunkSizes.size());
+            assertTrue(chunkSizes.contains(CHUNK_SIZE));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void scanVolumes_streamsBeforeTheVolumesAreRead() throws Exception {
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final boolean[] streamed = {false};
+        List<Callable<Cursor>> volumes = new ArrayList<>();
+        // A volume which stops in the middle until the first merged chunk is out.
+        volumes.add(() -> new FakeImageCursor(new long[0], new String[0], new long[0],
+                new String[0], new int[0], new int[0]) {
+            private final FakeImageCursor mRows = FakeImageCursor.create(4 * CHUNK_SIZE,
+                    "/storage/emulated/0", 1_500_000_000L, 0, 2);
+            private int mPosition = -1;
+
+            @Override
+            public int getCount() {
+                return mRows.getCount();
+            }
+
+            @Override
+            public boolean moveToNext() {
+                if (++mPosition == 2 * CHUNK_SIZE) {
+                    try {
+                        streamed[0] = delivered.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                return mRows.moveToNext();
+            }
+
+            @Override
+            public boolean moveToPosition(int position) {
+                mPosition = position;
+                return mRows.moveToPosition(position);
+            }
+
+            @Override
+            public long getLong(int column) {
+                return mRows.getLong(column);
+            }
+
+            @Override
+            public int getInt(int column) {
+                return mRows.getInt(column);
+            }
+
+            @Override
+            public String getString(int column) {
+                return mRows.getString(column);
+            }
+        });
+        volumes.add(() -> FakeImageCursor.create(CHUNK_SIZE, "/storage/sdcard", 1_500_000_001L,
+                4 * CHUNK_SIZE, 8));
+        ExecutorService executor = Executors.newFixedThreadPool(volumes.size());
+        try {
+            int count = MediaStoreScanner.scanVolumes(volumes, executor, CHUNK_SIZE,
+                    chunk -> delivered.countDown());
+
+            assertEquals(5 * CHUNK_SIZE, count);
+            assertTrue("nothing merged before the volumes were read", streamed[0]);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates one query per fake volume. The volumes interleave in time: the larger a volume,
+     * the more often it was written to. Ids are unique across volumes, as in MediaStore.
+     *
+     * @param latencyMillis the query latency of each volume, or {@code null} for none
+     */
+    static List<Callable<Cursor>> createVolumes(long[] latencyMillis) {
+        List<Callable<Cursor>> volumes = new ArrayList<>();
+        long idBase = 0;
+        for (int v = 0; v < VOLUME_ROWS.length; v++) {
+            final FakeImageCursor cursor = FakeImageCursor.create(VOLUME_ROWS[v],
+                    "/storage/volume" + v, 1_500_000_000L - v, idBase,
+                    1 + (VOLUME_ROWS[0] / Math.max(1, VOLUME_ROWS[v])));
+            final long latency = (latencyMillis != null) ? latencyMillis[v] : 0;
+            idBase += VOLUME_ROWS[v];
+            volumes.add(() -> {
+                Thread.sleep(latency);
+                return cursor;
+            });
+        }
+        return volumes;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link PathTable}, including its retained bytes for a 200k item library.
+ */
+public class PathTableTest {
+    private static final int ITEM_COUNT = 200_000;
+    /** The table must retain at most a third of the characters of the equivalent Strings. */
+    private static final double MIN_COMPRESSION = 3.0;
+
+    @Test
+    public void get_rebuildsEveryPath() {
+        String[] paths = createPaths(10_000);
+        PathTable.Builder builder = new PathTable.Builder();
+        for (String path : paths) {
+            builder.add(path);
+        }
+        builder.add("no_directory.jpg").add("/storage/emulated/0/DCIM/Camera/写真.jpg");
+        PathTable table = builder.build();
+
+        assertEquals(paths.length + 2, table.size());
+        for (int i = 0; i < paths.length; i++) {
+            assertEquals(paths[i], table.get(i));
+        }
+        assertEquals("no_directory.jpg", table.get(paths.length));
+        assertEquals("/storage/emulated/0/DCIM/Camera/写真.jpg", table.get(paths.length + 1));
+        assertSame(table.getDirectory(1), table.getDirectory(5));
+    }
+
+    @Test
+    public void get_nullPathIsKeptAsAbsent() {
+        PathTable.Builder builder = new PathTable.Builder();
+        builder.add("/a/1.jpg").add((String) null).add("/a/2.jpg");
+        PathTable table = builder.build();
+
+        assertEquals(3, table.size());
+        assertNull(table.get(1));
+        assertNull(table.getDirectory(1));
+        assertEquals("/a/2.jpg", table.get(2));
+        PathTable copy = new PathTable.Builder().add(table, 1).add(table, 2).build();
+        assertNull(copy.get(0));
+        assertEquals("/a/2.jpg", copy.get(1));
+    }
+
+    @Test
+    public void build_earlierTablesAreNotAffectedByLaterEntries() {
+        PathTable.Builder builder = new PathTable.Builder();
+        builder.add("/a/1.jpg");
+        PathTable first = builder.build();
+        String[] paths = createPaths(5_000);
+        for (String path : paths) {
+            builder.add(path);
+        }
+        PathTable second = builder.build();
+
+        assertEquals(1, first.size());
+        assertEquals("/a/1.jpg", first.get(0));
+        assertEquals(paths[4_999], second.get(5_000));
+
+        PathTable.Builder copy = new PathTable.Builder();
+        copy.add(second, 5_000).add(first, 0);
+        assertEquals(paths[4_999], copy.build().get(0));
+        assertEquals("/a/1.jpg", copy.build().get(1));
+    }
+
+    @Test
+    public void getRetainedBytes_countsTheTrimmedArrays() {
+        String[] paths = createPaths(ITEM_COUNT);
+        PathTable.Builder builder = new PathTable.Builder();
+        for (String path : paths) {
+            builder.add(path);
+        }
+        PathTable untrimmed = builder.build();
+        PathTable table = builder.trimToSize().build();
+
+        long nameBytes = 0;
+        long stringBytes = 0;
+        for (String path : paths) {
+            nameBytes += path.length() - (path.lastIndexOf('/') + 1);
+            stringBytes += 2L * path.length();
+        }
+        long directoryBytes = 2L * ("/storage/emulated/0/DCIM/Camera/".length()
+                + "/storage/emulated/0/Pictures/Screenshots/".length()
+                + "/storage/emulated/0/Download/".length()
+                + "/storage/emulated/0/Pictures/Instagram/".length());
+        long expected = (4L * ITEM_COUNT) + (4L * (ITEM_COUNT + 1)) + nameBytes
+                + directoryBytes;
+
+        assertEquals(ITEM_COUNT, table.size());
+        assertEquals(expected, table.getRetainedBytes());
+        assertTrue(untrimmed.getRetainedBytes() > expected);
+        assertTrue("table retains " + expected + " bytes, Strings " + stringBytes,
+                expected * MIN_COMPRESSION <= stringBytes);
+    }
+
+    /** Paths as found on a phone: a few directories holding many similar file names. */
+    private static String[] createPaths(int count) {
+        final String[] dirs = {
+                "/storage/emulated/0/DCIM/Camera/",
+                "/storage/emulated/0/Pictures/Screenshots/",
+                "/storage/emulated/0/Download/",
+                "/storage/emulated/0/Pictures/Instagram/",
+        };
+        String[] paths = new String[count];
+        for (int i = 0; i < count; i++) {
+            // Build each path through a StringBuilder so every String is a distinct object.
+            paths[i] = new StringBuilder(dirs[i % dirs.length])
+                    .append("IMG_2019").append(1000 + (i % 9000)).append('_')
+                    .append(100000 + i).append(".jpg").toString();
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link ThumbnailPack}: lookups, compaction, recovery from corrupt and
+ * truncated files, and readers running concurrently with a writer.
+ */
+public class ThumbnailPackTest {
+    private static final int TIER = 0;
+    private static final int SEGMENT_BYTES = 64 * 1024;
+    private static final long MAX_BYTES = 4 * SEGMENT_BYTES;
+    private static final int RECORD_BYTES = 1000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("pack").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void get_returnsEntriesAcrossReopen() throws IOException {
+        ThumbnailPack pack = open();
+        for (long id = 0; id < 100; id++) {
+            assertTrue(pack.put(id, TIER, 10 + id, data(id, 10 + id)));
+        }
+        assertTrue(pack.put(5, TIER, 20, data(5, 20)));
+        assertNull(pack.get(100, TIER, 0));
+        assertNull(pack.get(1, TIER + 1, 0));
+        pack.close();
+        assertNull(pack.get(1, TIER, 0));
+
+        pack = open();
+        assertEquals(100, pack.getEntryCount());
+        assertEquals(ByteBuffer.wrap(data(1, 11)), pack.get(1, TIER, 11));
+        assertEquals(ByteBuffer.wrap(data(5, 20)), pack.get(5, TIER, 0));
+        assertNull(pack.get(1, TIER, 12));
+        assertTrue(pack.get(1, TIER, 0).isReadOnly());
+    }
+
+    @Test
+    public void compact_dropsOldestSegmentButKeepsReadEntries() throws IOException {
+        ThumbnailPack pack = open();
+        for (long id = 0; id < 300; id++) {
+            pack.put(id, TIER, 0, data(id, 0));
+            if (id == 10) {
+                assertNotNull(pack.get(0, TIER, 0));
+            }
+        }
+
+        assertTrue(pack.getSizeBytes() <= MAX_BYTES + SEGMENT_BYTES);
+        assertTrue(pack.getEntryCount() < 300);
+        assertEquals(ByteBuffer.wrap(data(0, 0)), pack.get(0, TIER, 0));
+        assertNull(pack.get(1, TIER, 0));
+        assertEquals(ByteBuffer.wrap(data(299, 0)), pack.get(299, TIER, 0));
+    }
+
+    @Test
+    public void compact_rewritesMostlyDeadSegments() throws IOException {
+        ThumbnailPack pack = open();
+        for (int round = 0; round < 3; round++) {
+            for (long id = 0; id < 50; id++) {
+                pack.put(id, TIER, round, data(id, round));
+            }
+        }
+        assertEquals(50, pack.getEntryCount());
+        assertTrue(pack.getSizeBytes() < 2 * 50 * (RECORD_BYTES + 32));
+        for (long id = 0; id < 50; id++) {
+            assertEquals(ByteBuffer.wrap(data(id, 2)), pack.get(id, TIER, 2));
+        }
+    }
+
+    @Test
+    public void get_corruptBytesAreMisses() throws IOException {
+        ThumbnailPack pack = open();
+        pack.put(1, TIER, 0, data(1, 0));
+        pack.put(2, TIER, 0, data(2, 0));
+        pack.close();
+        // The bytes of the first record, then the header of the second.
+        corrupt(new File(mDirectory, ThumbnailPack.SEGMENT_PREFIX + 0), 100);
+        corrupt(new File(mDirectory, ThumbnailPack.SEGMENT_PREFIX + 0),
+                ThumbnailPack.RECORD_HEADER_BYTES + RECORD_BYTES + 4);
+
+        pack = open();
+        assertNull(pack.get(1, TIER, 0));
+        assertNull(pack.get(2, TIER, 0));
+        assertTrue(pack.put(3, TIER, 0, data(3, 0)));
+        assertEquals(ByteBuffer.wrap(data(3, 0)), pack.get(3, TIER, 0));
+    }
+
+    @Test
+    public void open_corruptIndexIsRebuiltFromSegments() throws IOException {
+        ThumbnailPack pack = open();
+        for (long id = 0; id < 200; id++) {
+            pack.put(id, TIER, 0, data(id, 0));
+        }
+        pack.close();
+        corrupt(new File(mDirectory, ThumbnailPack.INDEX_FILE), 0);
+
+        pack = open();
+        assertEquals(200, pack.getEntryCount());
+        for (long id = 0; id < 200; id++) {
+            assertEquals(ByteBuffer.wrap(data(id, 0)), pack.get(id, TIER, 0));
+        }
+    }
+
+    @Test
+    public void get_afterCrashMissesTornRecord() throws IOException {
+        ThumbnailPack pack = open();
+        for (long id = 0; id < 20; id++) {
+            pack.put(id, TIER, 0, data(id, 0));
+        }
+        // Not closed, as after a crash. The last record is torn, which only its CRC can tell.
+        corrupt(new File(mDirectory, ThumbnailPack.SEGMENT_PREFIX + 0),
+                (19 * (ThumbnailPack.RECORD_HEADER_BYTES + RECORD_BYTES))
+                        + ThumbnailPack.RECORD_HEADER_BYTES + RECORD_BYTES - 1);
+
+        pack = open();
+        assertEquals(ByteBuffer.wrap(data(18, 0)), pack.get(18, TIER, 0));
+        assertNull(pack.get(19, TIER, 0));
+        assertTrue(pack.put(19, TIER, 1, data(19, 1)));
+        assertEquals(ByteBuffer.wrap(data(19, 1)), pack.get(19, TIER, 1));
+    }
+
+    @Test
+    public void open_withoutCloseReusesIndex() throws IOException {
+        ThumbnailPack pack = open();
+        for (long id = 0; id < 100; id++) {
+            pack.put(id, TIER, 0, data(id, 0));
+        }
+        assertNotNull(pack.get(0, TIER, 0));
+        // Not closed. A rebuilt index would have lost the mark of the entry read.
+
+        pack = open();
+        assertEquals(100, pack.getEntryCount());
+        for (long id = 100; id < 300; id++) {
+            pack.put(id, TIER, 0, data(id, 0));
+        }
+        assertEquals(ByteBuffer.wrap(data(0, 0)), pack.get(0, TIER, 0));
+        assertNull(pack.get(1, TIER, 0));
+    }
+
+    @Test
+    public void open_truncatedFilesLoseOnlyTheirTail() throws IOException {
+        ThumbnailPack pack = open();
+        for (long id = 0; id < 20; id++) {
+            pack.put(id, TIER, 0, data(id, 0));
+        }
+        pack.close();
+        truncate(new File(mDirectory, ThumbnailPack.SEGMENT_PREFIX + 0),
+                10 * (ThumbnailPack.RECORD_HEADER_BYTES + RECORD_BYTES) + 500);
+
+        pack = open();
+        assertEquals(ByteBuffer.wrap(data(9, 0)), pack.get(9, TIER, 0));
+        assertNull(pack.get(10, TIER, 0));
+        assertNull(pack.get(19, TIER, 0));
+        pack.close();
+        truncate(new File(mDirectory, ThumbnailPack.INDEX_FILE), 100);
+
+        pack = open();
+        assertEquals(10, pack.getEntryCount());
+        assertEquals(ByteBuffer.wrap(data(9, 0)), pack.get(9, TIER, 0));
+        assertNull(pack.get(10, TIER, 0));
+    }
+
+    @Test
+    public void get_concurrentReadersSeeCompleteEntries() throws Exception {
+        final ThumbnailPack pack = open();
+        final int ids = 200;
+        for (long id = 0; id < ids; id++) {
+            pack.put(id, TIER, 0, data(id, 0));
+        }
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int reader = 0; reader < 4; reader++) {
+            final Random random = new Random(reader);
+            readers.add(executor.submit(() -> {
+                int hits = 0;
+                while (writing.get()) {
+                    long id = random.nextInt(ids);
+                    ByteBuffer bytes = pack.get(id, TIER, 0);
+                    if (bytes != null) {
+                        long date = bytes.getLong(8);
+                        assertEquals(ByteBuffer.wrap(data(id, date)), bytes);
+                        hits++;
+                    }
+                }
+                return hits;
+            }));
+        }
+        Future<?> writer = executor.submit(() -> {
+            Random random = new Random(ids);
+            for (int i = 0; i < 3_000; i++) {
+                long id = random.nextInt(ids);
+                pack.put(id, TIER, i, data(id, i));
+            }
+            writing.set(false);
+        });
+        writer.get(60, TimeUnit.SECONDS);
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get(10, TimeUnit.SECONDS) > 0);
+        }
+        executor.shutdown();
+    }
+
+    private ThumbnailPack open() throws IOException {
+        return ThumbnailPack.open(mDirectory, MAX_BYTES, SEGMENT_BYTES, Runnable::run);
+    }
+
+    /** Bytes identifying the entry: its id and date, then filler derived from them. */
+    private static byte[] data(long id, long dateModified) {
+        ByteBuffer data = ByteBuffer.allocate(RECORD_BYTES);
+        data.putLong(id).putLong(dateModified);
+        Random random = new Random(id * 31 + dateModified);
+        while (data.hasRemaining()) {
+            data.put((byte) random.nextInt());
+        }
+        return data.array();
+    }
+
+    private static void corrupt(File file, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xff);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link ThumbnailSlab} with the geometry of the micro tier.
+ */
+public class ThumbnailSlabTest {
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 96;
+    private static final int BYTES_PER_PIXEL = 4;
+    private static final int SLOT_COUNT = 16;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = Files.createTempFile("slab", null).toFile();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void get_returnsLandscapeAcrossReopen() throws IOException {
+        ThumbnailSlab slab = open();
+        assertTrue(put(slab, 1, 10, WIDTH, HEIGHT));
+
+        slab = open();
+        assertPixels(slab, 1, 10, WIDTH, HEIGHT);
+        assertFalse(slab.get(1, 11, (width, height, pixels) -> fail()));
+        assertFalse(slab.get(2, 0, (width, height, pixels) -> fail()));
+    }
+
+    @Test
+    public void put_portraitFitsTransposed() throws IOException {
+        ThumbnailSlab slab = open();
+
+        assertTrue(slab.fits(HEIGHT, WIDTH));
+        assertTrue(put(slab, 3, 10, HEIGHT, WIDTH));
+        assertPixels(slab, 3, 10, HEIGHT, WIDTH);
+    }
+
+    @Test
+    public void fits_rejectsLargerThanTheSlot() throws IOException {
+        ThumbnailSlab slab = open();
+
+        assertFalse(slab.fits(WIDTH + 1, HEIGHT));
+        assertFalse(slab.fits(WIDTH, WIDTH));
+        assertFalse(slab.fits(0, HEIGHT));
+        assertFalse(put(slab, 4, 10, HEIGHT + 1, WIDTH));
+    }
+
+    private ThumbnailSlab open() throws IOException {
+        return ThumbnailSlab.open(mFile, WIDTH, HEIGHT, BYTES_PER_PIXEL, SLOT_COUNT);
+    }
+
+    private static boolean put(ThumbnailSlab slab, long id, long dateModified, int width,
+            int height) {
+        return slab.put(id, dateModified, width, height, target -> {
+            for (int i = 0; i < width * height; i++) {
+                target.putInt((int) id * 31 + i);
+            }
+        });
+    }
+
+    private static void assertPixels(ThumbnailSlab slab, long id, long dateModified,
+            int expectedWidth, int expectedHeight) {
+        assertTrue(slab.get(id, dateModified, (width, height, pixels) -> {
+            assertEquals(expectedWidth, width);
+            assertEquals(expectedHeight, height);
+            assertEquals(width * height * BYTES_PER_PIXEL, pixels.remaining());
+            ByteBuffer ints = pixels.duplicate();
+            for (int i = 0; i < width * height; i++) {
+                assertEquals((int) id * 31 + i, ints.getInt());
+            }
+        }));
+    }
+}
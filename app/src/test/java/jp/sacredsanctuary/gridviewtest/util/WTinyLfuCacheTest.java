@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2019 Sacred Sanctuary Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package jp.sacredsanctuary.gridviewtest.util;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for {@link WTinyLfuCache}, replaying scroll traces of the grid against it
+ * and against a plain LRU cache of the same capacity.
+ */
+public class WTinyLfuCacheTest {
+    private static final int COLUMNS = 4;
+    private static final int VISIBLE_ROWS = 8;
+    private static final int LIBRARY_ROWS = 2_500;
+    /** Entries both caches hold, each thumbnail weighing 1. */
+    private static final int CAPACITY = 600;
+    private static final int WINDOW_PERCENT = 20;
+
+    @Test
+    public void get_returnsPutValues() {
+        WTinyLfuCache<String> cache = createCache(10);
+        cache.put(1, "a");
+        cache.put(2, "b");
+
+        assertEquals("a", cache.get(1));
+        assertEquals("b", cache.get(2));
+        assertNull(cache.get(3));
+        assertEquals(2, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        cache.put(1, "c");
+        assertEquals("c", cache.get(1));
+        assertEquals(2, cache.size());
+        assertEquals("c", cache.remove(1));
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void put_staysWithinMaxWeight() {
+        WTinyLfuCache<String> cache = new WTinyLfuCache<>(100, 20, 100, String::length);
+        for (long key = 0; key < 1_000; key++) {
+            cache.get(key);
+            cache.put(key, "0123456789".substring(0, 1 + (int) (key % 10)));
+            assertTrue(cache.weight() <= 100);
+        }
+        cache.put(-1, new String(new char[101]));
+        assertNull(cache.get(-1));
+
+        cache.trimToWeight(50);
+        assertTrue(cache.weight() <= 50);
+        cache.trimToWeight(-1);
+        assertEquals(0, cache.weight());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void removalListener_seesEveryValueLeaving() {
+        final Map<Long, Integer> removed = new LinkedHashMap<>();
+        WTinyLfuCache<String> cache = new WTinyLfuCache<>(10, WINDOW_PERCENT, 10, value -> 1,
+                (key, value) -> {
+                    Integer count = removed.get(key);
+                    removed.put(key, (count != null) ? count + 1 : 1);
+                });
+        for (long key = 0; key < 100; key++) {
+            cache.get(key);
+            cache.put(key, "v" + key);
+        }
+        cache.put(99, "w99");
+        cache.remove(98);
+        cache.trimToWeight(-1);
+
+        // Each value put left exactly once: 99 twice since it was replaced.
+        assertEquals(100, removed.size());
+        for (long key = 0; key < 100; key++) {
+            assertEquals(Integer.valueOf((key == 99) ? 2 : 1), removed.get(key));
+        }
+    }
+
+    @Test
+    public void put_oneHitWondersDoNotEvictFrequentEntries() {
+        WTinyLfuCache<String> cache = createCache(100);
+        for (int round = 0; round < 3; round++) {
+            for (long key = 0; key < 50; key++) {
+                access(cache, key);
+            }
+        }
+        for (long key = 1_000; key < 1_500; key++) {
+            access(cache, key);
+        }
+        for (long key = 0; key < 50; key++) {
+            assertNotNull("key:" + key, cache.get(key));
+        }
+        assertTrue(cache.rejectionCount() > 0);
+    }
+
+    @Test
+    public void hitRate_browseAndFling_beatsLru() {
+        long[] trace = recordBrowseAndFling(new Random(15));
+        double tinyLfu = replay(trace, createCache(CAPACITY));
+        double lru = replayLru(trace, CAPACITY);
+
+        assertTrue("W-TinyLFU:" + tinyLfu + " LRU:" + lru, tinyLfu > lru * 1.5);
+    }
+
+    @Test
+    public void hitRate_scrollBackAndForth_isCloseToLru() {
+        long[] trace = recordBackAndForth(new Random(15));
+        double tinyLfu = replay(trace, createCache(CAPACITY));
+        double lru = replayLru(trace, CAPACITY);
+
+        assertTrue("W-TinyLFU:" + tinyLfu + " LRU:" + lru, tinyLfu > lru * 0.9);
+    }
+
+    private static WTinyLfuCache<String> createCache(int capacity) {
+        return new WTinyLfuCache<>(capacity, WINDOW_PERCENT, capacity, value -> 1);
+    }
+
+    private static void access(WTinyLfuCache<String> cache, long key) {
+        if (cache.get(key) == null) {
+            cache.put(key, String.valueOf(key));
+        }
+    }
+
+    private static double replay(long[] trace, WTinyLfuCache<String> cache) {
+        for (long key : trace) {
+            access(cache, key);
+        }
+        return (double) cache.hitCount() / trace.length;
+    }
+
+    private static double replayLru(long[] trace, final int capacity) {
+        Map<Long, String> cache = new LinkedHashMap<Long, String>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > capacity;
+            }
+        };
+        int hits = 0;
+        for (long key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, String.valueOf(key));
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    /**
+     * A user keeps browsing the newest photos at the top of the grid, now and then flinging
+     * deep into the library and jumping back to the top with the fast scroller.
+     */
+    private static long[] recordBrowseAndFling(Random random) {
+        Trace trace = new Trace();
+        for (int session = 0; session < 20; session++) {
+            for (int pass = 0; pass < 2; pass++) {
+                trace.scrollTo(40 + random.nextInt(15));
+                trace.scrollTo(random.nextInt(5));
+            }
+            trace.scrollTo(60);
+            trace.scrollTo(60 + 300 + random.nextInt(1_200));
+            trace.jumpTo(0);
+        }
+        return trace.toArray();
+    }
+
+    /**
+     * A user reads the library from top to bottom, regularly scrolling back a little to look
+     * at a photo again.
+     */
+    private static long[] recordBackAndForth(Random random) {
+        Trace trace = new Trace();
+        while (trace.mTopRow < LIBRARY_ROWS - 60) {
+            trace.scrollTo(trace.mTopRow + 20 + random.nextInt(40));
+            trace.scrollTo(trace.mTopRow - 5 - random.nextInt(25));
+        }
+        return trace.toArray();
+    }
+
+    /** The ids of the cells bound while scrolling the grid, in order. */
+    private static final class Trace {
+        private long[] mIds = new long[1024];
+        private int mSize;
+        int mTopRow;
+
+        Trace() {
+            for (int row = 0; row < VISIBLE_ROWS; row++) {
+                bindRow(row);
+            }
+        }
+
+        /** Scrolls row by row, binding each row which comes into view. */
+        void scrollTo(int topRow) {
+            topRow = Math.max(0, Math.min(LIBRARY_ROWS - VISIBLE_ROWS, topRow));
+            while (mTopRow < topRow) {
+                mTopRow++;
+                bindRow(mTopRow + VISIBLE_ROWS - 1);
+            }
+            while (mTopRow > topRow) {
+                mTopRow--;
+                bindRow(mTopRow);
+            }
+        }
+
+        /** Jumps without binding the rows in between. */
+        void jumpTo(int topRow) {
+            mTopRow = topRow;
+            for (int row = topRow; row < topRow + VISIBLE_ROWS; row++) {
+                bindRow(row);
+            }
+        }
+
+        long[] toArray() {
+            long[] ids = new long[mSize];
+            System.arraycopy(mIds, 0, ids, 0, mSize);
+            return ids;
+        }
+
+        private void bindRow(int row) {
+            for (int column = 0; column < COLUMNS; column++) {
+                if (mSize == mIds.length) {
+                    long[] ids = new long[mSize * 2];
+                    System.arraycopy(mIds, 0, ids, 0, mSize);
+                    mIds = ids;
+                }
+                mIds[mSize++] = (long) row * COLUMNS + column;
+            }
+        }
+    }
+}